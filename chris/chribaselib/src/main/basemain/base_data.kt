@@ -37,6 +37,9 @@ const val CUR_VER_FLAG: Short = 32767      // flag, showing that it is the last
 //const val CONFIG_FILE = "chris_config.yaml"       // for loading yaml with class loader
 const val CONFIG_FILE = "/home/su/iskint/chris/src/main/chris_config.yaml"      // for loading yaml as a file
 
+/** System property, that overrides the path of the config file, like -Dchris.config=src/bench/bench_config.yaml. */
+const val CONFIG_FILE_PROPERTY = "chris.config"
+
 /** Enable/disable manual console input. */
 const val EMULATE_CONSOLE = true
 
@@ -53,3 +56,76 @@ const val MAX_POD_THREAD_QUEUE = 250
 
 /** Timeout in miliseconds for the pod thread. */
 const val POD_THREAD_QUEUE_TIMEOUT = 10000
+
+/** Default limit of reasoning steps in one call of the branch reasoning. Reaching it suspends the branch. */
+const val DEFAULT_MAX_REASONING_STEPS = 10_000
+
+/** Enable/disable filling up the live map of a new branch from the template of its breed. */
+const val USE_BRANCH_TEMPLATES = true
+
+/** Enable/disable keeping activations of the logical neurons' premises packed in bitsets by the branch. If disabled,
+    the neurons walk their premises on every calculation. */
+const val PACK_PREMISE_ACTIVATIONS = true
+
+/** Enable/disable running brans of pure breeds, spawned by the same effect, in parallel on the ForkJoin pool. */
+const val PARALLEL_FANOUT = true
+
+/** Brid of the detached brans of the parallel fan-out. The pods never generate it for their brans. */
+const val DETACHED_BRID = -1
+
+/** Number of weight adjustments, after which a live weight neuron sends them to the learning writer. */
+const val LEARNING_SUBMIT_SIZE = 64
+
+/** Maximum time in milliseconds the learning writer keeps the adjustments of the spirit neurons uncommitted. A commit, made
+    while a version is pinned, takes a concept version, so it is not done more often. */
+const val LEARNING_WRITE_PERIOD = 60_000
+
+/** Number of the last reasoning steps kept by the flight recorder of every branch. */
+const val FLIGHT_RECORDER_SIZE = 64
+
+/** Number of lines in the ring buffer of the asynchronous logger. If it is full, the debug logging blocks. */
+const val LOG_RING_SIZE = 4096
+
+/** Default limit of the spirit map cache in bytes of the serialized concepts. Pinned concepts are not counted. */
+const val DEFAULT_SPIRIT_CACHE_SIZE = 64L shl 20
+
+/** Default admission/eviction policy of the spirit map cache: "tinylfu" or "lru". */
+const val DEFAULT_SPIRIT_CACHE_POLICY = "tinylfu"
+
+/** Bytes added to the serialized size of a cached concept for the concept object and the map entry. */
+const val SPIRIT_CACHE_ENTRY_OVERHEAD = 64
+
+/** Slots in the buffer of the reads of the spirit map snapshots, waiting for the cache policy. Must be a power of 2. */
+const val SPIRIT_READ_BUFFER_SIZE = 128
+
+/** Minimal capacity of the filter of the cids, used in the database. The filter is rebuilt twice as big, when it is full. */
+const val CID_FILTER_MIN_CAPACITY = 1 shl 16
+
+/** Number of dynamic cids, reserved by the cid allocator at a time. */
+const val CID_BLOCK_SIZE = 1024
+
+/** Enable/disable permuting the counter of the cid allocator, so that the cids look random. Must not be changed on a
+    filled database, the sequential cids would collide with the permuted ones. */
+const val PERMUTE_CIDS = true
+
+/** Enable/disable loading the concepts of a breed's graph in batches on a background thread before its branch is created.
+    If disabled, the branch faults the concepts in from the DB one by one. */
+const val PREFETCH_ON_SPAWN = true
+
+/** Number of slots in the near cache of spirit concepts of a pod. Must be a power of 2. */
+const val NEAR_CACHE_SIZE = 256
+
+/** Number of rows, fetched at a time by the server-side cursor of the warm-up of the spirit map. */
+const val WARM_UP_FETCH_SIZE = 1000
+
+/** Number of rows, deserialized by a warm-up thread as a batch. */
+const val WARM_UP_BATCH_SIZE = 500
+
+/** Default number of the threads, deserializing the concepts for the warm-up. */
+const val DEFAULT_WARM_UP_THREADS = 4
+
+/** Period in milliseconds of logging the progress of the warm-up. */
+const val WARM_UP_LOG_PERIOD = 5000
+
+/** Period in milliseconds of the collector of the concept versions, that are not seen by any branch anymore. */
+const val VERSION_COLLECT_PERIOD = 60_000
@@ -27,3 +27,42 @@ inline fun<reified T> ins(vararg elem: T) = Array<T>(elem.size){ elem[it]}
 
 /** Alias for the ar() function. */
 inline fun<reified T> outs(vararg elem: T) = Array<T>(elem.size){ elem[it]}
+
+/**
+ *      Weighted sum bias + w[0]*v[0] + ... + w[n-1]*v[n-1]. The loop is unrolled over four independent accumulators, so
+ *  that there is no dependency chain between iterations and the JIT can keep them in vector registers (there is no Vector
+ *  API on the Java 8 target).
+ *  @param weights weights
+ *  @param values values, at least n elements
+ *  @param n number of elements to sum
+ *  @param bias initial value of the sum
+ *  @return the sum
+ */
+fun weightedSum(weights: FloatArray, values: FloatArray, n: Int, bias: Float): Float {
+    var s0 = 0f; var s1 = 0f; var s2 = 0f; var s3 = 0f
+    var i = 0
+    val n4 = n and 3.inv()
+    while(i < n4) {
+        s0 += weights[i]*values[i]
+        s1 += weights[i+1]*values[i+1]
+        s2 += weights[i+2]*values[i+2]
+        s3 += weights[i+3]*values[i+3]
+        i += 4
+    }
+    while(i < n) {
+        s0 += weights[i]*values[i]
+        i++
+    }
+
+    return bias + ((s0 + s1) + (s2 + s3))
+}
+
+/**
+ *      Exponential squash (1 - exp(-x))/(1 + exp(-x)). Maps real numbers into (-1, 1).
+ *  @param x value to squash
+ *  @return squashed value
+ */
+fun esquash(x: Float): Float {
+    val e = Math.exp(-x.toDouble())
+    return ((1 - e)/(1 + e)).toFloat()
+}
@@ -0,0 +1,107 @@
+package basemain
+
+/**
+ *      Count-min sketch of access frequencies with 4-bit counters, the TinyLFU admission filter. A key is counted in four
+ *  rows of the table, its frequency is the minimum of the four counters, so the collisions only overestimate it. Every
+ *  long of the table holds 16 counters. When the number of increments reaches ten times the table size all counters are
+ *  halved, so the old popularity fades away.
+ *
+ *  Not synchronized.
+ *  @param expectedEntries number of the entries to tell apart
+ */
+class FrequencySketch(expectedEntries: Int = 64) {
+
+    /**
+     *      Count an access.
+     *  @param key the key
+     */
+    fun increment(key: Long) {
+        var added = false
+        for(row in 0 until 4) {
+            val h = hash_(key, row)
+            val i = (h ushr 4).toInt() and mask_
+            val shift = (h.toInt() and 15) shl 2
+            if((table_[i] ushr shift) and 15L != 15L) {
+                table_[i] += 1L shl shift
+                added = true
+            }
+        }
+        if(added && ++additions_ >= 10*table_.size) reset_()
+    }
+
+    /**
+     *      Estimate the access frequency.
+     *  @param key the key
+     *  @return the frequency, 0..15
+     */
+    fun frequency(key: Long): Int {
+        var freq = 15
+        for(row in 0 until 4) {
+            val h = hash_(key, row)
+            val i = (h ushr 4).toInt() and mask_
+            val shift = (h.toInt() and 15) shl 2
+            freq = minOf(freq, ((table_[i] ushr shift) and 15L).toInt())
+        }
+
+        return freq
+    }
+
+    /**
+     *      Grow the table, if it is too small for the number of entries. The counts are lost.
+     *  @param entries number of the entries to tell apart
+     */
+    fun ensureCapacity(entries: Int) {
+        if(entries <= table_.size) return
+        var size = table_.size
+        while(size < entries) size *= 2
+        table_ = LongArray(size)
+        mask_ = size - 1
+        additions_ = 0
+    }
+
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+    //
+    //                               Private
+    //
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+
+    //---%%%---%%%---%%%---%%%--- private data ---%%%---%%%---%%%---%%%---%%%---%%%
+
+    private var table_: LongArray
+    private var mask_: Int
+
+    /** Number of increments since the last reset. */
+    private var additions_ = 0
+
+    //---%%%---%%%---%%%---%%%--- private funcs ---%%%---%%%---%%%---%%%---%%%---%%%
+
+    /**
+     *      Hash of a key for a row of the sketch.
+     *  @param key the key
+     *  @param row number of the row, 0..3
+     */
+    private fun hash_(key: Long, row: Int): Long {
+        var h = (key + SEEDS_[row])*SEEDS_[row]
+        h = h xor (h ushr 29)
+        return h*-0x61c8864680b583ebL xor (h ushr 32)
+    }
+
+    /**
+     *      Halve all counters.
+     */
+    private fun reset_() {
+        for(i in table_.indices)
+            table_[i] = (table_[i] ushr 1) and 0x7777777777777777L
+        additions_ /= 2
+    }
+
+    init {
+        var size = 64
+        while(size < expectedEntries) size *= 2
+        table_ = LongArray(size)
+        mask_ = size - 1
+    }
+}
+
+/** Seeds of the rows. */
+private val SEEDS_ = longArrayOf(-0x3c5a37a36834ced9L, -0x4b6d499041670d8dL, -0x651e95c4d06fbfb1L, -0x340d631b7bdddcdbL)
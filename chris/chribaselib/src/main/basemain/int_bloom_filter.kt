@@ -0,0 +1,119 @@
+package basemain
+
+/**
+ *      Bloom filter of Int keys. It answers "surely not there" or "probably there", with about 1% of false positives while
+ *  the number of keys is within the capacity. There are no false negatives. Keys are never removed.
+ *
+ *  Not synchronized.
+ *  @param capacity number of keys the filter is designed for
+ */
+class IntBloomFilter(val capacity: Int) {
+
+    /** Number of added keys, that were not in the filter before. */
+    var count = 0
+        private set
+
+    /**
+     *      Add a key.
+     *  @param key the key
+     */
+    fun add(key: Int) {
+        if(mightContain(key)) return
+        val h = mix_(key)
+        val h1 = h.toInt()
+        val h2 = (h ushr 32).toInt() or 1
+        for(i in 0 until HASHES_) {
+            val bit = (h1 + i*h2) and mask_
+            bits_[bit ushr 6] = bits_[bit ushr 6] or (1L shl bit)
+        }
+        count++
+    }
+
+    /**
+     *      Check a key.
+     *  @param key the key
+     *  @return false if the key was surely never added, true if it probably was
+     */
+    fun mightContain(key: Int): Boolean {
+        val h = mix_(key)
+        val h1 = h.toInt()
+        val h2 = (h ushr 32).toInt() or 1
+        for(i in 0 until HASHES_) {
+            val bit = (h1 + i*h2) and mask_
+            if(bits_[bit ushr 6] and (1L shl bit) == 0L) return false
+        }
+
+        return true
+    }
+
+    /**
+     *      Get the bit table for storing.
+     *  @return the table, 8 bytes per long, big endian
+     */
+    fun toBytes(): ByteArray {
+        val bytes = ByteArray(8*bits_.size)
+        for(i in bits_.indices)
+            for(b in 0 until 8)
+                bytes[8*i + b] = (bits_[i] ushr (56 - 8*b)).toByte()
+
+        return bytes
+    }
+
+    companion object {
+
+        /**
+         *      Restore a filter from the stored bit table.
+         *  @param capacity capacity of the stored filter
+         *  @param count number of keys in the stored filter
+         *  @param bytes the bit table from toBytes()
+         *  @return the filter or null if the table does not fit the capacity
+         */
+        fun fromBytes(capacity: Int, count: Int, bytes: ByteArray): IntBloomFilter? {
+            val filter = IntBloomFilter(capacity)
+            if(bytes.size != 8*filter.bits_.size) return null
+            for(i in filter.bits_.indices) {
+                var v = 0L
+                for(b in 0 until 8)
+                    v = (v shl 8) or (bytes[8*i + b].toLong() and 0xff)
+                filter.bits_[i] = v
+            }
+            filter.count = count
+
+            return filter
+        }
+
+        /** Number of hash functions. With 10 bits per key it gives about 1% of false positives. */
+        private const val HASHES_ = 7
+    }
+
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+    //
+    //                               Private
+    //
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+
+    //---%%%---%%%---%%%---%%%--- private data ---%%%---%%%---%%%---%%%---%%%---%%%
+
+    /** The bits, at least 10 per key of the capacity, the number of them is a power of 2. */
+    private val bits_: LongArray
+    private val mask_: Int
+
+    //---%%%---%%%---%%%---%%%--- private funcs ---%%%---%%%---%%%---%%%---%%%---%%%
+
+    /** Spread a key over 64 bits, the halves give the two hashes of the double hashing. */
+    private fun mix_(key: Int): Long {
+        var h = key.toLong()*-0x61c8864680b583ebL
+        h = h xor (h ushr 31)
+        h *= -0x40a7b892e31b1a47L
+        return h xor (h ushr 29)
+    }
+
+    init {
+        require(capacity > 0) {"Capacity of the bloom filter must be positive. Demanded capacity = $capacity"}
+        var nBits = 64L
+        while(nBits < 10L*capacity) nBits *= 2
+        require(nBits <= 1L shl 31) {"Capacity of the bloom filter is too big. Demanded capacity = $capacity"}
+        bits_ = LongArray((nBits/64).toInt())
+        mask_ = (nBits - 1).toInt()
+    }
+}
@@ -0,0 +1,154 @@
+package basemain
+
+/**
+ *      Hash map with primitive Int keys, so that neither get() nor set() box the key. Open addressing with linear probing,
+ *  the table is kept at most half full. A slot is free if its value is null, so null values are not allowed.
+ *
+ *  Not synchronized.
+ *  @param expectedSize number of entries to fit without rehashing
+ */
+class IntMap<V: Any>(expectedSize: Int = 8) {
+
+    /** Number of entries. */
+    var size = 0
+        private set
+
+    /**
+     *      Get value by key.
+     *  @param key key
+     *  @return value or null if the key is not in the map
+     */
+    operator fun get(key: Int): V? {
+        var i = index_(key)
+        while(true) {
+            val v = values_[i]?: return null
+            if(keys_[i] == key) {
+                @Suppress("UNCHECKED_CAST")
+                return v as V
+            }
+            i = (i + 1) and mask_
+        }
+    }
+
+    /**
+     *      Put value by key, replacing the old one if present.
+     *  @param key key
+     *  @param value value
+     */
+    operator fun set(key: Int, value: V) {
+        var i = index_(key)
+        while(values_[i] != null) {
+            if(keys_[i] == key) {
+                values_[i] = value
+                return
+            }
+            i = (i + 1) and mask_
+        }
+        keys_[i] = key
+        values_[i] = value
+        size++
+        if(2*size > keys_.size) rehash_(2*keys_.size)
+    }
+
+    operator fun contains(key: Int) = get(key) != null
+
+    /**
+     *      Remove an entry.
+     *  @param key key
+     *  @return removed value or null if there was no such key
+     */
+    fun remove(key: Int): V? {
+        var i = index_(key)
+        while(true) {
+            if(values_[i] == null) return null
+            if(keys_[i] == key) break
+            i = (i + 1) and mask_
+        }
+        @Suppress("UNCHECKED_CAST")
+        val removed = values_[i] as V
+
+        // Shift back the following entries of the cluster, so that there is no hole in their probe sequences
+        var hole = i
+        var j = i
+        while(true) {
+            j = (j + 1) and mask_
+            if(values_[j] == null) break
+            val home = index_(keys_[j])
+            if      // is the entry's home slot not in the cyclic range (hole, j]?
+                    (if(hole <= j) home <= hole || home > j else home <= hole && home > j)
+            {   //yes: move it to the hole
+                keys_[hole] = keys_[j]
+                values_[hole] = values_[j]
+                hole = j
+            }
+        }
+        values_[hole] = null
+        size--
+
+        return removed
+    }
+
+    /**
+     *      Remove all entries.
+     */
+    fun clear() {
+        values_.fill(null)
+        size = 0
+    }
+
+    /**
+     *      Call the action for all entries in no particular order. The map must not be changed in the action.
+     *  @param action lambda (key, value)
+     */
+    fun forEach(action: (Int, V) -> Unit) {
+        for(i in keys_.indices) {
+            val v = values_[i]?: continue
+            @Suppress("UNCHECKED_CAST")
+            action(keys_[i], v as V)
+        }
+    }
+
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+    //
+    //                               Private
+    //
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+
+    //---%%%---%%%---%%%---%%%--- private data ---%%%---%%%---%%%---%%%---%%%---%%%
+
+    private var keys_: IntArray
+    private var values_: Array<Any?>
+    private var mask_: Int
+
+    //---%%%---%%%---%%%---%%%--- private funcs ---%%%---%%%---%%%---%%%---%%%---%%%
+
+    /** Home slot of a key. The multiplication by the golden ratio spreads the sequential cids. */
+    private fun index_(key: Int) = (key*-0x61c88647 xor (key*-0x61c88647 ushr 16)) and mask_
+
+    /**
+     *      Move all entries to a new table.
+     *  @param capacity size of the new table, power of 2
+     */
+    private fun rehash_(capacity: Int) {
+        val oldKeys = keys_
+        val oldValues = values_
+        keys_ = IntArray(capacity)
+        values_ = arrayOfNulls(capacity)
+        mask_ = capacity - 1
+        for(i in oldKeys.indices) {
+            val v = oldValues[i]?: continue
+            var j = index_(oldKeys[i])
+            while(values_[j] != null) j = (j + 1) and mask_
+            keys_[j] = oldKeys[i]
+            values_[j] = v
+        }
+    }
+
+    init {
+        var capacity = 8
+        while(capacity < 2*expectedSize) capacity *= 2
+        keys_ = IntArray(capacity)
+        values_ = arrayOfNulls(capacity)
+        mask_ = capacity - 1
+    }
+}
@@ -0,0 +1,249 @@
+package basemain
+
+/**
+ *      Immutable map Int -> value, a hash array mapped trie. Put and remove return a new map, that shares everything but
+ *  the path to the changed entry with the old one, so keeping many versions of a big map costs little. A node of the trie
+ *  holds the entries and the subnodes of its 32 slots in compact arrays, marked by two bitmaps. The hash of the key is a
+ *  bijection, so two keys never collide and the trie is at most 7 levels deep.
+ *
+ *  Reads need no synchronization: a map, published by a volatile write, is seen complete by all threads. Null values are
+ *  not allowed.
+ */
+class PersistentIntMap<V: Any> private constructor(private val root_: Node_?, val size: Int) {
+
+    /**
+     *      Empty map.
+     */
+    constructor(): this(null, 0)
+
+    /**
+     *      Get value by key.
+     *  @param key the key
+     *  @return value or null if there is no such key
+     */
+    operator fun get(key: Int): V? {
+        var node = root_?: return null
+        val h = hash_(key)
+        var shift = 0
+        while(true) {
+            val bit = 1 shl ((h ushr shift) and 31)
+            if(node.dataMap and bit != 0) {
+                val i = Integer.bitCount(node.dataMap and (bit - 1))
+                @Suppress("UNCHECKED_CAST")
+                return if(node.keys[i] == key) node.values[i] as V else null
+            }
+            if(node.nodeMap and bit == 0) return null
+            node = node.nodes[Integer.bitCount(node.nodeMap and (bit - 1))]
+            shift += 5
+        }
+    }
+
+    /**
+     *      Check if the key is in the map.
+     *  @param key the key
+     */
+    operator fun contains(key: Int) = get(key) != null
+
+    /**
+     *      Make a map with the value put by the key, replacing the old value if present.
+     *  @param key the key
+     *  @param value the value
+     *  @return the new map or this one, if the key already had this very value
+     */
+    fun put(key: Int, value: V): PersistentIntMap<V> {
+        val old = get(key)
+        if(old === value) return this
+
+        return PersistentIntMap(put_(root_, key, hash_(key), value, 0), if(old == null) size + 1 else size)
+    }
+
+    /**
+     *      Make a map without the key.
+     *  @param key the key
+     *  @return the new map or this one, if there was no such key
+     */
+    fun remove(key: Int): PersistentIntMap<V> {
+        if(get(key) == null) return this
+
+        return PersistentIntMap(remove_(root_!!, key, hash_(key), 0), size - 1)
+    }
+
+    /**
+     *      Call the action for all entries in no particular order.
+     *  @param action lambda (key, value)
+     */
+    fun forEach(action: (Int, V) -> Unit) {
+        if(root_ != null) forEach_(root_, action)
+    }
+
+    /**
+     *      Walk the nodes of the trie from the root, for estimating the memory taken. The nodes are compared by identity,
+     *  a node shared by two maps is the same object in both of them.
+     *  @param visit lambda (node, its size in bytes without the values) -> false to skip the subnodes of the node
+     */
+    fun walkNodes(visit: (Any, Int) -> Boolean) {
+        if(root_ != null) walkNodes_(root_, visit)
+    }
+
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+    //
+    //                               Private
+    //
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+
+    /**
+     *      Node of the trie. The entries and the subnodes are ordered by their slots.
+     *  @param dataMap slots, taken by the entries
+     *  @param nodeMap slots, taken by the subnodes
+     *  @param keys keys of the entries
+     *  @param values values of the entries
+     *  @param nodes subnodes
+     */
+    private class Node_(val dataMap: Int, val nodeMap: Int, val keys: IntArray, val values: Array<Any>, val nodes: Array<Node_>) {
+
+        /** Estimated size in bytes: the object and its three arrays with the headers. */
+        val bytes: Int
+            get() = 24 + 16 + 4*keys.size + 16 + 4*values.size + 16 + 4*nodes.size
+    }
+
+    companion object {
+
+        /** Spread the key over the hash bits. Both steps are bijective, so different keys get different hashes. */
+        private fun hash_(key: Int): Int {
+            val h = key*-0x61c88647
+            return h xor (h ushr 16)
+        }
+
+        private fun put_(node: Node_?, key: Int, h: Int, value: Any, shift: Int): Node_ {
+            val bit = 1 shl ((h ushr shift) and 31)
+            if(node == null)
+                return Node_(bit, 0, intArrayOf(key), arrayOf(value), NO_NODES_)
+
+            if      // is the slot taken by an entry?
+                    (node.dataMap and bit != 0)
+            {   //yes: replace the value or push both entries down into a subnode
+                val i = Integer.bitCount(node.dataMap and (bit - 1))
+                if(node.keys[i] == key) {
+                    val values = node.values.copyOf()
+                    values[i] = value
+                    return Node_(node.dataMap, node.nodeMap, node.keys, values, node.nodes)
+                }
+
+                val sub = merge_(node.keys[i], hash_(node.keys[i]), node.values[i], key, h, value, shift + 5)
+                val j = Integer.bitCount(node.nodeMap and (bit - 1))
+                return Node_(node.dataMap xor bit, node.nodeMap or bit, removeInt_(node.keys, i), remove_(node.values, i),
+                        insert_(node.nodes, j, sub))
+            }
+            else if // is the slot taken by a subnode?
+                    (node.nodeMap and bit != 0)
+            {   //yes: put into the subnode
+                val j = Integer.bitCount(node.nodeMap and (bit - 1))
+                val nodes = node.nodes.copyOf()
+                nodes[j] = put_(node.nodes[j], key, h, value, shift + 5)
+                return Node_(node.dataMap, node.nodeMap, node.keys, node.values, nodes)
+            }
+            else
+            {   //no: take the slot
+                val i = Integer.bitCount(node.dataMap and (bit - 1))
+                return Node_(node.dataMap or bit, node.nodeMap, insertInt_(node.keys, i, key), insert_(node.values, i, value),
+                        node.nodes)
+            }
+        }
+
+        /**
+         *      Make a subnode of two entries, which share the slots up to the shift.
+         */
+        private fun merge_(key1: Int, h1: Int, value1: Any, key2: Int, h2: Int, value2: Any, shift: Int): Node_ {
+            val bit1 = 1 shl ((h1 ushr shift) and 31)
+            val bit2 = 1 shl ((h2 ushr shift) and 31)
+            if(bit1 == bit2)
+                return Node_(0, bit1, NO_KEYS_, NO_VALUES_, arrayOf(merge_(key1, h1, value1, key2, h2, value2, shift + 5)))
+
+            return if(Integer.compareUnsigned(bit1, bit2) < 0)
+                Node_(bit1 or bit2, 0, intArrayOf(key1, key2), arrayOf(value1, value2), NO_NODES_)
+            else
+                Node_(bit1 or bit2, 0, intArrayOf(key2, key1), arrayOf(value2, value1), NO_NODES_)
+        }
+
+        /**
+         *      Remove a key, that is surely in the node's subtrie.
+         *  @return the new node or null if it got empty
+         */
+        private fun remove_(node: Node_, key: Int, h: Int, shift: Int): Node_? {
+            val bit = 1 shl ((h ushr shift) and 31)
+            if(node.dataMap and bit != 0) {
+                if(node.dataMap == bit && node.nodeMap == 0) return null
+                val i = Integer.bitCount(node.dataMap and (bit - 1))
+                return Node_(node.dataMap xor bit, node.nodeMap, removeInt_(node.keys, i), remove_(node.values, i), node.nodes)
+            }
+
+            val j = Integer.bitCount(node.nodeMap and (bit - 1))
+            val sub = remove_(node.nodes[j], key, h, shift + 5)
+            if      // is the subnode left with a single entry?
+                    (sub == null || sub.nodeMap == 0 && sub.keys.size == 1)
+            {   //yes: take the entry into this node, there is no need for the subnode
+                if(sub == null && node.nodeMap == bit && node.dataMap == 0) return null
+                val nodes = remove_(node.nodes, j)
+                if(sub == null) return Node_(node.dataMap, node.nodeMap xor bit, node.keys, node.values, nodes)
+                val i = Integer.bitCount(node.dataMap and (bit - 1))
+                return Node_(node.dataMap or bit, node.nodeMap xor bit, insertInt_(node.keys, i, sub.keys[0]),
+                        insert_(node.values, i, sub.values[0]), nodes)
+            }
+
+            val nodes = node.nodes.copyOf()
+            nodes[j] = sub
+            return Node_(node.dataMap, node.nodeMap, node.keys, node.values, nodes)
+        }
+
+        private fun <V> forEach_(node: Node_, action: (Int, V) -> Unit) {
+            for(i in node.keys.indices) {
+                @Suppress("UNCHECKED_CAST")
+                action(node.keys[i], node.values[i] as V)
+            }
+            for(sub in node.nodes)
+                forEach_(sub, action)
+        }
+
+        private fun walkNodes_(node: Node_, visit: (Any, Int) -> Boolean) {
+            if(!visit(node, node.bytes)) return
+            for(sub in node.nodes)
+                walkNodes_(sub, visit)
+        }
+
+        private fun insertInt_(a: IntArray, i: Int, v: Int): IntArray {
+            val b = IntArray(a.size + 1)
+            System.arraycopy(a, 0, b, 0, i)
+            b[i] = v
+            System.arraycopy(a, i, b, i + 1, a.size - i)
+            return b
+        }
+
+        private fun removeInt_(a: IntArray, i: Int): IntArray {
+            val b = IntArray(a.size - 1)
+            System.arraycopy(a, 0, b, 0, i)
+            System.arraycopy(a, i + 1, b, i, a.size - i - 1)
+            return b
+        }
+
+        private inline fun <reified T> insert_(a: Array<T>, i: Int, v: T): Array<T> {
+            val b = arrayOfNulls<T>(a.size + 1)
+            System.arraycopy(a, 0, b, 0, i)
+            b[i] = v
+            System.arraycopy(a, i, b, i + 1, a.size - i)
+            @Suppress("UNCHECKED_CAST")
+            return b as Array<T>
+        }
+
+        private inline fun <reified T> remove_(a: Array<T>, i: Int): Array<T> {
+            val b = arrayOfNulls<T>(a.size - 1)
+            System.arraycopy(a, 0, b, 0, i)
+            System.arraycopy(a, i + 1, b, i, a.size - i - 1)
+            @Suppress("UNCHECKED_CAST")
+            return b as Array<T>
+        }
+
+        private val NO_KEYS_ = IntArray(0)
+        private val NO_VALUES_ = arrayOf<Any>()
+        private val NO_NODES_ = arrayOf<Node_>()
+    }
+}
@@ -0,0 +1,176 @@
+package basemain
+
+import java.util.Arrays
+
+/**
+ *      Map (cid, version) -> value. All versions of a cid are kept under the cid in an IntMap as a small sorted array, so
+ *  different pairs never alias, and the earliest version not below a given one is found by a binary search over the few
+ *  versions of the cid. Since CUR_VER_FLAG is the biggest version, the head is found from any version above the images.
+ *  Null values are not allowed.
+ *
+ *  Not synchronized.
+ *  @param expectedCids number of cids to fit without rehashing
+ */
+class VersionMap<V: Any>(expectedCids: Int = 8) {
+
+    /** Number of (cid, version) entries. */
+    var size = 0
+        private set
+
+    /**
+     *      Get value by cid and exact version.
+     *  @param cid cid
+     *  @param ver version
+     *  @return value or null if there is no such pair
+     */
+    operator fun get(cid: Cid, ver: Ver): V? {
+        val cv = cidMap_[cid]?: return null
+        val i = Arrays.binarySearch(cv.vers, 0, cv.size, ver)
+        @Suppress("UNCHECKED_CAST")
+        return if(i >= 0) cv.values[i] as V else null
+    }
+
+    /**
+     *      Get value of the earliest version of a cid, that is not below a given version.
+     *  @param cid cid
+     *  @param ver the lower bound, including
+     *  @return value or null if the cid has no versions from the bound on
+     */
+    fun earliest(cid: Cid, ver: Ver): V? {
+        val cv = cidMap_[cid]?: return null
+        var i = Arrays.binarySearch(cv.vers, 0, cv.size, ver)
+        if(i < 0) i = -i - 1
+        @Suppress("UNCHECKED_CAST")
+        return if(i < cv.size) cv.values[i] as V else null
+    }
+
+    /**
+     *      Put value by cid and version, replacing the old one if present.
+     *  @param cid cid
+     *  @param ver version
+     *  @param value value
+     */
+    operator fun set(cid: Cid, ver: Ver, value: V) {
+        val cv = cidMap_[cid]
+        if(cv == null) {
+            cidMap_[cid] = CidVersions_(ver, value)
+            size++
+            return
+        }
+
+        val i = Arrays.binarySearch(cv.vers, 0, cv.size, ver)
+        if(i >= 0) {
+            cv.values[i] = value
+            return
+        }
+        cv.insert(-i - 1, ver, value)
+        size++
+    }
+
+    /**
+     *      Check if the cid has any version.
+     *  @param cid cid
+     */
+    operator fun contains(cid: Cid) = cid in cidMap_
+
+    /**
+     *      Remove an entry.
+     *  @param cid cid
+     *  @param ver version
+     *  @return removed value or null if there was no such pair
+     */
+    fun remove(cid: Cid, ver: Ver): V? {
+        val cv = cidMap_[cid]?: return null
+        val i = Arrays.binarySearch(cv.vers, 0, cv.size, ver)
+        if(i < 0) return null
+
+        @Suppress("UNCHECKED_CAST")
+        val removed = cv.values[i] as V
+        if(cv.size == 1)
+            cidMap_.remove(cid)
+        else
+            cv.delete(i)
+        size--
+
+        return removed
+    }
+
+    /**
+     *      Get versions of a cid.
+     *  @param cid cid
+     *  @return ascending array of the versions or null if the cid is not in the map
+     */
+    fun versions(cid: Cid): ShortArray? {
+        val cv = cidMap_[cid]?: return null
+        return Arrays.copyOf(cv.vers, cv.size)
+    }
+
+    /**
+     *      Remove all entries.
+     */
+    fun clear() {
+        cidMap_.clear()
+        size = 0
+    }
+
+    /**
+     *      Call the action for all entries, cids in no particular order, versions of a cid ascending. The map must not be
+     *  changed in the action.
+     *  @param action lambda (cid, version, value)
+     */
+    fun forEach(action: (Cid, Ver, V) -> Unit) {
+        cidMap_.forEach { cid, cv ->
+            for(i in 0 until cv.size) {
+                @Suppress("UNCHECKED_CAST")
+                action(cid, cv.vers[i], cv.values[i] as V)
+            }
+        }
+    }
+
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+    //
+    //                               Private
+    //
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+
+    /**
+     *      Versions of a cid with their values, sorted by the versions. Usually there are one or two of them.
+     */
+    private class CidVersions_(ver: Ver, value: Any) {
+        var vers = shortArrayOf(ver)
+        var values = arrayOf<Any?>(value)
+        var size = 1
+
+        /**
+         *      Insert a version.
+         *  @param index place in the sorted arrays
+         */
+        fun insert(index: Int, ver: Ver, value: Any) {
+            if(size == vers.size) {
+                vers = Arrays.copyOf(vers, 2*size)
+                values = Arrays.copyOf(values, 2*size)
+            }
+            System.arraycopy(vers, index, vers, index + 1, size - index)
+            System.arraycopy(values, index, values, index + 1, size - index)
+            vers[index] = ver
+            values[index] = value
+            size++
+        }
+
+        /**
+         *      Delete a version.
+         *  @param index place in the sorted arrays
+         */
+        fun delete(index: Int) {
+            System.arraycopy(vers, index + 1, vers, index, size - index - 1)
+            System.arraycopy(values, index + 1, values, index, size - index - 1)
+            size--
+            values[size] = null
+        }
+    }
+
+    //---%%%---%%%---%%%---%%%--- private data ---%%%---%%%---%%%---%%%---%%%---%%%
+
+    /** Map cid/its versions. */
+    private val cidMap_ = IntMap<CidVersions_>(expectedCids)
+}
@@ -0,0 +1,157 @@
+package chribase_thread
+
+import basemain.LOG_RING_SIZE
+import basemain.logit
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+
+/**
+ *      Asynchronous logger. Producers put into a bounded ring buffer the references to a prefix and a line, without any
+ *  formatting, and go on. Concatenation and I/O take place in this thread. If the ring is full, the producer waits
+ *  until the logger frees some space, so no lines are lost and the order of lines of a producer is preserved.
+ *
+ *  It is not a CuteThread, because wrapping every line into a message object is exactly what we want to avoid.
+ *
+ *  @param capacity size of the ring buffer in lines
+ */
+class LogThread(val capacity: Int = LOG_RING_SIZE): Thread("logger") {
+
+    /** Number of times a producer had to wait on the full ring. */
+    @Volatile var congestions: Long = 0
+        private set
+
+    /**
+     *      Put a line in the ring. The line is logged as "prefix: line", or just "line" if the prefix is null. If the logger
+     *  is not started or already finished, the line is logged synchronously.
+     *  @param prefix prefix, like branch or pod name. Can be null.
+     *  @param line text to log
+     */
+    fun put(prefix: String?, line: String) {
+        lock_.withLock {
+            if      // is the logger not running?
+                    (state == State.NEW || state == State.TERMINATED)
+            {   //yes: log it right here
+                logit(if(prefix == null) line else prefix + ": " + line)
+                return
+            }
+
+            while(size_ == capacity) {
+                congestions++
+                notFull_.awaitUninterruptibly()
+            }
+
+            prefix_[tail_] = prefix
+            line_[tail_] = line
+            tail_ = if(tail_ + 1 == capacity) 0 else tail_ + 1
+            size_++
+            notEmpty_.signal()
+        }
+    }
+
+    /**
+     *      Wait until all lines put so far are logged.
+     */
+    fun flush() {
+        lock_.withLock {
+            while(size_ > 0 || writing_)
+                written_.awaitUninterruptibly()
+        }
+    }
+
+    /**
+     *      Log all lines remaining in the ring and finish the thread.
+     */
+    fun terminate() {
+        lock_.withLock {
+            terminating_ = true
+            notEmpty_.signal()
+        }
+        join()
+    }
+
+    override fun run() {
+        val prefixes = arrayOfNulls<String>(capacity)
+        val lines = arrayOfNulls<String>(capacity)
+        while(true) {
+            val n = take_(prefixes, lines)
+            if(n == 0) break
+
+            for(i in 0 until n) {
+                val prefix = prefixes[i]
+                logit(if(prefix == null) lines[i]!! else prefix + ": " + lines[i])
+                prefixes[i] = null
+                lines[i] = null
+            }
+        }
+    }
+
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+    //
+    //                               Private
+    //
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+
+    //---%%%---%%%---%%%---%%%--- private data ---%%%---%%%---%%%---%%%---%%%---%%%
+
+    private val prefix_ = arrayOfNulls<String>(capacity)
+    private val line_ = arrayOfNulls<String>(capacity)
+
+    /** Position of the oldest line in the ring. */
+    private var head_ = 0
+
+    /** Position for the next line to put. */
+    private var tail_ = 0
+
+    /** Number of lines in the ring. */
+    private var size_ = 0
+
+    /** The logger has taken lines out of the ring and is writing them. */
+    private var writing_ = false
+
+    private var terminating_ = false
+
+    /** Guards the ring. The producers wait on notFull_, the logger on notEmpty_, flush() on written_. */
+    private val lock_ = ReentrantLock()
+    private val notFull_ = lock_.newCondition()
+    private val notEmpty_ = lock_.newCondition()
+    private val written_ = lock_.newCondition()
+
+    //---%%%---%%%---%%%---%%%--- private funcs ---%%%---%%%---%%%---%%%---%%%---%%%
+
+    /**
+     *      Wait for lines and move all of them from the ring into the given arrays, so that the producers are not held while
+     *  the lines are being written.
+     *  @param prefixes array to receive prefixes
+     *  @param lines array to receive lines
+     *  @return number of lines taken. 0 means termination.
+     */
+    private fun take_(prefixes: Array<String?>, lines: Array<String?>): Int {
+        return lock_.withLock {
+            writing_ = false
+            written_.signalAll()        // the previous batch is written, wake up flush()
+            while(size_ == 0) {
+                if(terminating_) return 0
+                notEmpty_.awaitUninterruptibly()
+            }
+
+            val n = size_
+            for(i in 0 until n) {
+                prefixes[i] = prefix_[head_]
+                lines[i] = line_[head_]
+                prefix_[head_] = null
+                line_[head_] = null
+                head_ = if(head_ + 1 == capacity) 0 else head_ + 1
+            }
+            size_ = 0
+            writing_ = true
+            notFull_.signalAll()        // wake up producers waiting on the full ring
+
+            n
+        }
+    }
+
+    init {
+        require(capacity > 0) {"Log ring capacity must be positive, but it is $capacity."}
+        isDaemon = true
+    }
+}
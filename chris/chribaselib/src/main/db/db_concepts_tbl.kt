@@ -30,7 +30,7 @@ data class SerializedConceptData(
  *      "stable",       // data responsible for logic and behavior
  *      "transient"     // changeable data like usage statistics
  */
-class ConceptsTbl(conn: Connection, private val schema: String, private val tableName: String) {
+class ConceptsTbl(private val conn: Connection, private val schema: String, private val tableName: String) {
 
     /**
      *      Insert record to the concepts table.
@@ -62,6 +62,17 @@ class ConceptsTbl(conn: Connection, private val schema: String, private val tabl
         deleteConceptStmt_.executeUpdate()
     }
 
+    /**
+     *      Delete the records of all concepts with versions below a given one.
+     *  @param ver the version
+     *  @return number of the deleted records
+     */
+    fun deleteVersionsBelow(ver: Ver): Int {
+        deleteVersionsBelowStmt_.setShort(1, ver)
+
+        return deleteVersionsBelowStmt_.executeUpdate()
+    }
+
     /**
      *      Get record from the concepts table.
      *  @param cid cid
@@ -96,6 +107,57 @@ class ConceptsTbl(conn: Connection, private val schema: String, private val tabl
             }
     }
 
+    /**
+     *      Get all versions of a number of concepts in one query.
+     *  @param cids cids
+     *  @return list of the found records, in no particular order
+     */
+    fun getConcepts(cids: IntArray): List<SerializedConceptData> {
+        getConceptsStmt_.setArray(1, conn.createArrayOf("integer", cids.toTypedArray()))
+
+        val sCDs = ArrayList<SerializedConceptData>(cids.size)
+        getConceptsStmt_.executeQuery().use {
+            while(it.next())
+                sCDs.add(readRecord_(it))
+        }
+
+        return sCDs
+    }
+
+    /**
+     *      Stream all records with versions not below a given one, ordered by cid, so that the versions of a cid come
+     *  together. The records are fetched through a server-side cursor in portions of fetchSize rows, so the table is never
+     *  held in memory as a whole. Postgres opens the cursor only inside a transaction, so the autocommit is off for the time
+     *  of the streaming.
+     *  @param ver the minimal version
+     *  @param fetchSize number of rows, fetched from the server at a time
+     *  @param action lambda (record) -> false to stop the streaming
+     *  @return number of the streamed records
+     */
+    fun streamConcepts(ver: Ver, fetchSize: Int, action: (SerializedConceptData) -> Boolean): Long {
+        val autoCommit = conn.autoCommit
+        var n = 0L
+        try {
+            conn.autoCommit = false
+            streamConceptsStmt_.fetchSize = fetchSize
+            streamConceptsStmt_.setShort(1, ver)
+            streamConceptsStmt_.executeQuery().use {
+                while(it.next()) {
+                    n++
+                    if(!action(readRecord_(it))) break
+                }
+            }
+            conn.commit()
+        } catch(e: SQLException) {
+            conn.rollback()
+            throw IllegalStateException(e.message)
+        } finally {
+            conn.autoCommit = autoCommit
+        }
+
+        return n
+    }
+
     /**
      *      Update record in the concepts table.
      *  @param cid cid
@@ -130,6 +192,27 @@ class ConceptsTbl(conn: Connection, private val schema: String, private val tabl
             rs.use { it.getArray("ver") }.array as ShortArray    // not sure, needs debugging
     }
 
+    /**
+     *      Count records of the table.
+     *  @return number of the records
+     */
+    fun countConcepts(): Int {
+        val rs = countConceptsStmt_.executeQuery()
+        return rs.use { it.next(); it.getInt(1) }
+    }
+
+    /**
+     *      Call the action for every cid of the table. A cid with several versions is given once.
+     *  @param action lambda (cid)
+     */
+    fun forEachCid(action: (Cid) -> Unit) {
+        val rs = getCidsStmt_.executeQuery()
+        rs.use {
+            while(it.next())
+                action(it.getInt(1))
+        }
+    }
+
     //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
     //
     //                               Private
@@ -154,6 +237,14 @@ class ConceptsTbl(conn: Connection, private val schema: String, private val tabl
             throw IllegalStateException(e.message)
         }
 
+    /** Prepared statement: remove from the table all concepts with versions below given one. */
+    private val deleteVersionsBelowStmt_ =
+        try {
+            conn.prepareStatement("""delete from "$schema"."$tableName" where ver < ?""")
+        } catch (e: SQLException) {
+            throw IllegalStateException(e.message)
+        }
+
     /** Prepared statement: get concept by cid+ver. */
     private val getConceptStmt_ =
         try {
@@ -162,6 +253,22 @@ class ConceptsTbl(conn: Connection, private val schema: String, private val tabl
             throw IllegalStateException(e.message)
         }
 
+    /** Prepared statement: get all versions of the concepts by an array of cids. */
+    private val getConceptsStmt_ =
+        try {
+            conn.prepareStatement("""select cid, ver, clid, stable, transient from "$schema"."$tableName" where cid = any(?)""")
+        } catch (e: SQLException) {
+            throw IllegalStateException(e.message)
+        }
+
+    /** Prepared statement: get all records with versions not below given one, ordered by cid. */
+    private val streamConceptsStmt_ =
+        try {
+            conn.prepareStatement("""select cid, ver, clid, stable, transient from "$schema"."$tableName" where ver >= ? order by cid""")
+        } catch (e: SQLException) {
+            throw IllegalStateException(e.message)
+        }
+
     /** Prepared statement: update concept with given cid+ver. */
     private val updateConceptStmt_ =
         try {
@@ -170,6 +277,22 @@ class ConceptsTbl(conn: Connection, private val schema: String, private val tabl
             throw IllegalStateException(e.message)
         }
 
+    /** Prepared statement: count all records. */
+    private val countConceptsStmt_ =
+        try {
+            conn.prepareStatement("""select count(*) from "$schema"."$tableName"""")
+        } catch (e: SQLException) {
+            throw IllegalStateException(e.message)
+        }
+
+    /** Prepared statement: get all distinct cids. */
+    private val getCidsStmt_ =
+        try {
+            conn.prepareStatement("""select distinct cid from "$schema"."$tableName"""")
+        } catch (e: SQLException) {
+            throw IllegalStateException(e.message)
+        }
+
     /** Prepared statement: find all versions of a concept with given cid. */
     private val getConceptVersionsStmt_ =
         try {
@@ -177,4 +300,29 @@ class ConceptsTbl(conn: Connection, private val schema: String, private val tabl
         } catch (e: SQLException) {
             throw IllegalStateException(e.message)
         }
+
+    //---%%%---%%%---%%%---%%%--- private funcs ---%%%---%%%---%%%---%%%---%%%---%%%
+
+    /**
+     *      Read the current record of a result set with all the fields.
+     *  @param rs the result set
+     *  @return the record
+     */
+    private fun readRecord_(rs: ResultSet): SerializedConceptData {
+        val sCD = SerializedConceptData(
+            cid = rs.getInt("cid"),
+            ver = rs.getShort("ver"),
+            clid = rs.getShort("clid"),
+            stable = null,
+            transient = null
+        )
+        val stable = rs.getBytes("stable")
+        if(stable != null)
+            sCD.stable = ByteBuffer.wrap(stable).order(ByteOrder.nativeOrder())
+        val transient = rs.getBytes("transient")
+        if(transient != null)
+            sCD.transient = ByteBuffer.wrap(transient).order(ByteOrder.nativeOrder())
+
+        return sCD
+    }
 }
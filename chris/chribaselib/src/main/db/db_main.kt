@@ -25,6 +25,26 @@ class DataBase(connectionString: String, dbName: String, schema: String, user: S
         conn.close()
     }
 
+    /**
+     *      Run statements in one transaction: they are all committed or, if any of them throws, all rolled back.
+     *  @param block the statements
+     *  @return result of the block
+     */
+    fun <T> transaction(block: () -> T): T {
+        val autoCommit = conn.autoCommit
+        try {
+            conn.autoCommit = false
+            val result = block()
+            conn.commit()
+            return result
+        } catch(e: Throwable) {
+            conn.rollback()
+            throw e
+        } finally {
+            conn.autoCommit = autoCommit
+        }
+    }
+
     /** Postgres connection object */
     private fun connectDb(connectionString: String, dbName: String, user: String, password: String):
             Connection
@@ -65,6 +85,17 @@ class ParamsTbl(private val conn: Connection, private val schema: String, privat
             return rs.use{ it.getString("value") }
     }
 
+    /**
+     *      Get value of a parameter, that may be absent.
+     *  @param parName
+     *  @return the value or null if there is no such parameter or its value is null
+     */
+    fun findParam(parName: String): String? {
+        getParamStmt_.setString(1, parName)
+        val rs = getParamStmt_.executeQuery()
+        return rs.use { if(it.next()) it.getString("value") else null }
+    }
+
     /**
      *      Set parameter value.
      *  @param parName
@@ -76,6 +107,19 @@ class ParamsTbl(private val conn: Connection, private val schema: String, privat
         SetParamStmt_.executeUpdate()
     }
 
+    /**
+     *      Set parameter value, creating the parameter if it is absent.
+     *  @param parName
+     *  @param value
+     *  @param description description for the new parameter
+     */
+    fun putParam(parName: String, value: String?, description: String) {
+        putParamStmt_.setString(1, parName)
+        putParamStmt_.setString(2, value)
+        putParamStmt_.setString(3, description)
+        putParamStmt_.executeUpdate()
+    }
+
     /** Prepared SQL for funk getParam() */
     private var getParamStmt_: PreparedStatement =
         try {
@@ -91,4 +135,13 @@ class ParamsTbl(private val conn: Connection, private val schema: String, privat
         } catch (e: SQLException) {
             throw IllegalStateException(e.message)
         }
+
+    /** Prepared SQL for funk putParam() */
+    private var putParamStmt_: PreparedStatement =
+        try {
+            conn.prepareStatement("""insert into "$schema"."$tableName" (name, value, description) values(?, ?, ?)
+                on conflict (name) do update set value = excluded.value""")
+        } catch (e: SQLException) {
+            throw IllegalStateException(e.message)
+        }
 }
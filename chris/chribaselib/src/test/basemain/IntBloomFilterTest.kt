@@ -0,0 +1,42 @@
+package basemain
+
+import org.junit.Test
+import kotlin.random.Random
+
+class IntBloomFilterTest {
+
+    /**
+     * No false negatives, about 1% of false positives at the full capacity.
+     */
+    @Test fun falsePositives() {
+        val filter = IntBloomFilter(100_000)
+        val rnd = Random(7)
+        val keys = HashSet<Int>()
+        while(keys.size < 100_000) keys.add(rnd.nextInt())
+        for(key in keys) filter.add(key)
+        assert(filter.count <= keys.size && filter.count > keys.size*98/100)     // the false positives are not counted
+        for(key in keys) assert(filter.mightContain(key))
+
+        var positives = 0
+        var probes = 0
+        while(probes < 100_000) {
+            val key = rnd.nextInt()
+            if(key in keys) continue
+            probes++
+            if(filter.mightContain(key)) positives++
+        }
+        assert(positives < 2_000) {"False positives: $positives of $probes"}
+    }
+
+    /**
+     * The stored bit table gives the same filter.
+     */
+    @Test fun roundTrip() {
+        val filter = IntBloomFilter(1000)
+        for(i in 0 until 1000) filter.add(2_000_000 + 3*i)
+        val restored = IntBloomFilter.fromBytes(1000, filter.count, filter.toBytes())!!
+        assert(restored.count == filter.count)
+        for(i in 0 until 3000) assert(restored.mightContain(2_000_000 + i) == filter.mightContain(2_000_000 + i))
+        assert(IntBloomFilter.fromBytes(5000, 0, filter.toBytes()) == null)
+    }
+}
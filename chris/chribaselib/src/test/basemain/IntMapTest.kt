@@ -0,0 +1,57 @@
+package basemain
+
+import org.junit.Test
+import java.lang.management.ManagementFactory
+import kotlin.random.Random
+
+class IntMapTest {
+
+    /**
+     * Random puts and removes must give the same content as java.util.HashMap.
+     */
+    @Test fun sameAsHashMap() {
+        val rnd = Random(3)
+        val map = IntMap<String>()
+        val ref = HashMap<Int, String>()
+        for(i in 0 until 100_000) {
+            val key = rnd.nextInt(-1000, 1000)
+            if(rnd.nextInt(3) == 0) {
+                assert(map.remove(key) == ref.remove(key))
+            }
+            else {
+                map[key] = "v$i"
+                ref[key] = "v$i"
+            }
+            assert(map.size == ref.size)
+        }
+        for(key in -1000 until 1000)
+            assert(map[key] == ref[key])
+
+        var n = 0
+        map.forEach { key, value -> assert(ref[key] == value); n++ }
+        assert(n == ref.size)
+    }
+
+    /**
+     * Lookups must not allocate, i.e. the keys are not boxed.
+     */
+    @Test fun getDoesNotAllocate() {
+        val map = IntMap<String>()
+        for(i in 0 until 1000) map[2_000_000 + i*7] = "v$i"
+
+        val mx = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+        val tid = Thread.currentThread().id
+        var found = 0
+        for(round in 0 until 2) {       // the first round warms up
+            val before = mx.getThreadAllocatedBytes(tid)
+            for(i in 0 until 100_000)
+                if(map[2_000_000 + (i % 2000)*7] != null) found++
+            val allocated = mx.getThreadAllocatedBytes(tid) - before
+            if(round == 1) {
+                println("allocated $allocated bytes on 100_000 lookups")
+                assert(allocated < 1000)
+            }
+        }
+        assert(found == 100_000)
+    }
+}
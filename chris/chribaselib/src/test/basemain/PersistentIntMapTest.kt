@@ -0,0 +1,64 @@
+package basemain
+
+import org.junit.Test
+import java.util.Collections
+import java.util.IdentityHashMap
+import kotlin.random.Random
+
+class PersistentIntMapTest {
+
+    /**
+     * Random puts and removes must give the same content as java.util.HashMap, and the old versions must stay intact.
+     */
+    @Test fun sameAsHashMap() {
+        val rnd = Random(7)
+        var map = PersistentIntMap<String>()
+        val ref = HashMap<Int, String>()
+        val versions = ArrayList<Pair<PersistentIntMap<String>, HashMap<Int, String>>>()
+        for(i in 0 until 100_000) {
+            val key = if(rnd.nextBoolean()) rnd.nextInt(-500, 500) else rnd.nextInt()
+            if(rnd.nextInt(3) == 0) {
+                map = map.remove(key)
+                ref.remove(key)
+            }
+            else {
+                map = map.put(key, "v$i")
+                ref[key] = "v$i"
+            }
+            assert(map.size == ref.size)
+            if(i%10_000 == 0) versions.add(Pair(map, HashMap(ref)))
+        }
+
+        for((old, oldRef) in versions + Pair(map, ref)) {
+            var n = 0
+            old.forEach { key, value -> assert(oldRef[key] == value); n++ }
+            assert(n == oldRef.size && old.size == oldRef.size)
+            for((key, value) in oldRef) assert(old[key] == value)
+        }
+        for(key in -500 until 500) assert(map[key] == ref[key])
+    }
+
+    /**
+     * A put copies only the path to the entry, the rest of the nodes is shared.
+     */
+    @Test fun structuralSharing() {
+        var map = PersistentIntMap<Int>()
+        for(i in 0 until 10_000) map = map.put(i, i)
+        val next = map.put(5, -5)
+
+        val nodes = Collections.newSetFromMap(IdentityHashMap<Any, Boolean>())
+        map.walkNodes { node, _ -> nodes.add(node); true }
+        var copied = 0
+        next.walkNodes { node, _ -> if(node in nodes) false else { copied++; true } }
+        assert(copied in 1..7) {"Copied nodes: $copied"}
+        assert(map[5] == 5 && next[5] == -5 && next.size == map.size)
+
+        // Removing everything gives the empty map
+        var m = next
+        for(i in 0 until 10_000) m = m.remove(i)
+        assert(m.size == 0 && m[5] == null)
+        var walked = 0
+        m.walkNodes { _, _ -> walked++; true }
+        assert(walked == 0)
+    }
+}
@@ -0,0 +1,84 @@
+package basemain
+
+import org.junit.Test
+import kotlin.random.Random
+
+class VersionMapTest {
+
+    /**
+     * Pairs, that aliased in the old cid xor (ver shl 16) key, must be different entries.
+     */
+    @Test fun noAliasing() {
+        val map = VersionMap<String>()
+        map[0x10000, 0] = "a"
+        map[0, 1] = "b"
+        assert(map[0x10000, 0] == "a")
+        assert(map[0, 1] == "b")
+        assert(map[0, 0] == null)
+        assert(map.size == 2)
+    }
+
+    /**
+     * Versions of a cid are kept sorted.
+     */
+    @UseExperimental(ExperimentalUnsignedTypes::class)
+    @Test fun versions() {
+        val map = VersionMap<String>()
+        map[7, CUR_VER_FLAG] = "cur"
+        map[7, 5] = "v5"
+        map[7, 2] = "v2"
+        assert(map.versions(7)!!.contentEquals(shortArrayOf(2, 5, CUR_VER_FLAG)))
+        assert(map[7, 4] == null && map[7, 5] == "v5" && map[7, CUR_VER_FLAG] == "cur")
+        assert(map.versions(8) == null)
+
+        assert(map.remove(7, 5) == "v5")
+        assert(map.versions(7)!!.contentEquals(shortArrayOf(2, CUR_VER_FLAG)))
+        map.remove(7, 2)
+        map.remove(7, CUR_VER_FLAG)
+        assert(7 !in map && map.size == 0)
+    }
+
+    /**
+     * The earliest version not below the bound.
+     */
+    @UseExperimental(ExperimentalUnsignedTypes::class)
+    @Test fun earliest() {
+        val map = VersionMap<String>()
+        map[7, CUR_VER_FLAG] = "cur"
+        map[7, 5] = "v5"
+        map[7, 2] = "v2"
+        assert(map.earliest(7, 0) == "v2")
+        assert(map.earliest(7, 2) == "v2")
+        assert(map.earliest(7, 3) == "v5")
+        assert(map.earliest(7, 6) == "cur")
+        assert(map.earliest(7, CUR_VER_FLAG) == "cur")
+        assert(map.earliest(8, 0) == null)
+
+        map.remove(7, CUR_VER_FLAG)
+        assert(map.earliest(7, 6) == null)
+    }
+
+    /**
+     * Random puts and removes must give the same content as java.util.HashMap with pair keys.
+     */
+    @Test fun sameAsHashMap() {
+        val rnd = Random(5)
+        val map = VersionMap<String>()
+        val ref = HashMap<Pair<Cid, Ver>, String>()
+        for(i in 0 until 100_000) {
+            val cid = rnd.nextInt(-300, 300)
+            val ver = rnd.nextInt(0, 8).toShort()
+            if(rnd.nextInt(3) == 0) {
+                assert(map.remove(cid, ver) == ref.remove(Pair(cid, ver)))
+            }
+            else {
+                map[cid, ver] = "v$i"
+                ref[Pair(cid, ver)] = "v$i"
+            }
+            assert(map.size == ref.size)
+        }
+        var n = 0
+        map.forEach { cid, ver, value -> assert(ref[Pair(cid, ver)] == value); n++ }
+        assert(n == ref.size)
+    }
+}
@@ -0,0 +1,24 @@
+package basemain
+
+import org.junit.Test
+import kotlin.math.abs
+import kotlin.random.Random
+
+class WeightedSumTest {
+
+    /**
+     * The unrolled sum must agree with the straightforward one for all sizes around the unroll width.
+     */
+    @Test fun sameAsSequential() {
+        val rnd = Random(1)
+        for(n in 0..9) {
+            val w = FloatArray(n) { rnd.nextFloat()*2 - 1 }
+            val v = FloatArray(n) { rnd.nextFloat()*2 - 1 }
+            var s = 0.3f
+            for(i in 0 until n) s += w[i]*v[i]
+            assert(abs(weightedSum(w, v, n, 0.3f) - s) < 1e-5f)
+        }
+        assert(abs(esquash(0f)) < 1e-7f)
+        assert(esquash(100f) > 0.999f && esquash(-100f) < -0.999f)
+    }
+}
@@ -0,0 +1,39 @@
+package chribase_thread
+
+import org.junit.Test
+
+class LogThreadTest {
+
+    /**
+     * Put into a small ring many more lines than it holds from two producers. The producers must be held back, but
+     * not lost, so after flush() the logger has nothing left and the congestions were counted.
+     */
+    @Test fun congestedRingIsDrained() {
+        val logger = LogThread(4).also { it.start() }
+
+        val producers = Array(2) { p ->
+            object : Thread() {
+                override fun run() {
+                    for(i in 1..100)
+                        logger.put("producer$p", "line $i")
+                }
+            }.also { it.start() }
+        }
+        for(producer in producers) producer.join()
+
+        logger.flush()
+        assert(logger.congestions > 0)
+        logger.terminate()
+        assert(!logger.isAlive)
+    }
+
+    /**
+     * Lines put into a logger that is not started are written synchronously instead of being held in the ring.
+     */
+    @Test fun notStartedLoggerDoesNotBlock() {
+        val logger = LogThread(1)
+        logger.put(null, "first")
+        logger.put(null, "second")
+        assert(logger.congestions == 0L)
+    }
+}
@@ -0,0 +1,56 @@
+package atn
+
+import java.util.Arrays
+
+/**
+ *      Activations of the live concepts of a branch, kept in one flat array instead of the concept objects. Every concept,
+ *  implementing ActivationIfc, gets a slot on materialization in the branch and reads/writes its activation through it.
+ *  Neighbouring activations share cache lines, and all of them can be reset or copied at once.
+ *
+ *  Like the branch, not synchronized.
+ *  @param capacity initial number of slots
+ */
+class ActivationStore(capacity: Int = 32) {
+
+    /** Activations by slots. The array is replaced when it grows, so it must not be kept outside. */
+    var values = FloatArray(capacity)
+        private set
+
+    /** Number of the allocated slots. */
+    var size = 0
+        private set
+
+    /**
+     *      Allocate a slot.
+     *  @param activation initial activation
+     *  @return the slot
+     */
+    fun allocate(activation: Float): Int {
+        if(size == values.size) values = Arrays.copyOf(values, 2*size)
+        values[size] = activation
+        return size++
+    }
+
+    /**
+     *      Set all activations to a value.
+     *  @param activation the value
+     */
+    fun fill(activation: Float) {
+        Arrays.fill(values, 0, size, activation)
+    }
+
+    /**
+     *      Copy all activations.
+     *  @return the copy
+     */
+    fun snapshot(): FloatArray = Arrays.copyOf(values, size)
+
+    /**
+     *      Copy back activations from a snapshot. Slots allocated after the snapshot was taken are not touched.
+     *  @param snapshot the snapshot
+     */
+    fun restore(snapshot: FloatArray) {
+        assert(snapshot.size <= size) {"Snapshot of ${snapshot.size} slots is bigger than the store of $size slots."}
+        System.arraycopy(snapshot, 0, values, 0, snapshot.size)
+    }
+}
@@ -3,13 +3,21 @@ package atn
 import basemain.*
 import chribase_thread.CuteThread
 import cpt.Breed
+import cpt.ActivationIfc
 import cpt.CuteThreadPrem
 import cpt.SpBreed
+import cpt.SpWeightNeuron
+import cpt.WeightNeuron
 import cpt.abs.Action
 import cpt.abs.DynamicConcept
+import cpt.abs.LogicalNeuron
 import cpt.abs.Neuron
+import cpt.abs.SpiritConcept
 import cpt.abs.SpiritDynamicConcept
+import cpt.abs.SpiritLogicalNeuron
+import cpt.abs.SpiritNeuron
 import libmain.*
+import java.util.concurrent.ForkJoinTask
 import kotlin.math.max
 
 /**
@@ -23,23 +31,66 @@ import kotlin.math.max
  *  @param breedCid Cid of the breed concept for the branch.
  *  @param ownBrad Brad object, that identifies its place in the pod pool and pod.
  *  @param parentBrad parent's origBrad. Can be null if it's root.
+ *  @param detached the branch is run by a ForkJoin task for its parent and is not registered in any pod
+ *  @param baseVer version, pinned for the branch. It sees the spirit concepts as of it all its life. Unpinned by close().
  */
 open class Branch(
     val breedCid: Cid,
     val ownBrad: Brad,                  // own address
     val parentBrad: Brad?,              // parent's address
-    var dlv: Int = -1                   // branch debug level. There is also thread debug level and GDEBUG_LV.
+    var dlv: Int = -1,                  // branch debug level. There is also thread debug level and GDEBUG_LV.
+    val detached: Boolean = false,      // run out of pods as a part of parallel fan-out
+    val baseVer: Ver = _sm_.pinVersion()    // base concept version for the branch and all its children
 ) {
     var breakPoint = false              // cranking controlled break point flag (see the common.setBreakPoint functor).
 
+    /** The last reasoning steps of the branch. */
+    val flightRecorder = FlightRecorder()
+
+    /** Activations of the live concepts. Must be initialized before the live map. */
+    val activations = ActivationStore()
+
+    /** The reasoning went astray (step limit reached or stem cycle found) and is not run for this branch anymore. */
+    var suspended = false
+        private set
+
+    /** The detached branch has finished. */
+    var finished = false
+        private set
+
+    /** Outs of the finished detached branch, to be injected into the parent. */
+    var detachedOuts: Array<DynamicConcept>? = null
+        private set
+
 
     /**
      *      It is a heart of the system. In here we calculate activation of a current neuron (the stem) and take decision
      *  what acts should be done, which brans spawned, and which neuron will become our next stem or should we yield
      *  the flow control and wait until conditions change and the next call comes.
+     *
+     *      The loop is guarded. If the number of steps reaches the configured limit or the stems go in a cycle without
+     *  changing anything, the branch is suspended and reported.
+     *
+     *      If the last call ended on a quiet step (no acts, no brans) and none of the stem's premises changed since, the
+     *  stem would come to the same result, so the call is skipped.
      */
     fun reasoning() {
+        if(suspended) return
+        if      // did the stem yield quietly and are its inputs the same?
+                (quietYield_ && !stem_.inputsChanged)
+        {   //yes: nothing to do
+            if(!detached) ownBrad.pod.reasoningMetrics.recordSkip(breedCid)
+            return
+        }
         var stem = stem_
+        var quietStep = false
+        var steps = 0
+
+        // Brent's cycle detection over the quiet steps (no acts, no brans), since only they can repeat unchanged
+        var cyclePower = 1
+        var cycleLength = 0
+        var tortoiseCid: Cid = 0
+        var tortoiseActivation = 0f
         if(GDEBUG_LV >= 0) breakPoint = false       // reset the break point
         dlog {ar(
             "enter, stem = ${stem.toStr()}",
@@ -50,15 +101,26 @@ open class Branch(
         while(true) {
 
             // Do the neuron's assessment and determine effect
-            val eff = stem.calculateActivationAndSelectEffect(this)
+            val stepTime = System.nanoTime()
+            val spStem = stem.sp as SpiritNeuron
+            stem.inputsChanged = false
+            val activation = stem.calculateActivation(this)
+            val effIndex = spStem.selectEffectIndex(activation)
+            val eff = spStem.effect(effIndex)
             dlog {ar(
                 "activation = ${stem.activation}, actCids: ${eff.actCids?.size}, branCids: ${eff.branCids?.size}, stem: ${namedCid(eff.stemCid)}",
                 "activation = ${stem.activation}, $eff"
             )}
 
+            if      // is it a detached branch, whose breed turned out not to be pure?
+                    (detached && eff.branCids != null)
+            {   //yes: it cannot spawn out of a pod, stop unfinished before the acts and let the parent respawn it in a pod
+                break
+            }
+
             // Do acts, if any
             if(eff.actCids != null)
-                for(actCid in eff.actCids!!) {
+                for(actCid in eff.actCids) {
                     dlog {ar(
                         "action = ${this[actCid].toStr()}",
                         "action = ${this[actCid]}"
@@ -70,25 +132,58 @@ open class Branch(
                 }
 
             // Spawn brans, if any
-            if(eff.branCids != null)
-                for(destBreedCid in eff.branCids!!) {
+            if(eff.branCids != null) {
+                var pureBreedCids: ArrayList<Cid>? = null
+                for(destBreedCid in eff.branCids) {
                     dlog {ar(
                         "branch = ${this[destBreedCid].toStr()}",
                         "branch = ${this[destBreedCid]}"
                     )}
 
-                    // Form an array of cloned from the current branch ins for the destination branch
-                    val insCids = (_sm_[destBreedCid] as SpBreed).ins
-                    val clonedIns = if(insCids != null) Array(insCids.size)
-                        { this[insCids[it]].clone() as DynamicConcept} else null
+                    if      // can the branch be run in parallel with its siblings?
+                            (PARALLEL_FANOUT && eff.branCids.size > 1 && _bt_.detachable(destBreedCid, baseVer))
+                    {   //yes: postpone it until all brans of the effect are looked through
+                        pureBreedCids = pureBreedCids?: ArrayList()
+                        pureBreedCids.add(destBreedCid)
+                    }
+                    else
+                        spawnInPod_(destBreedCid)
+                }
+                if(pureBreedCids != null)
+                    if(pureBreedCids.size > 1) fanOut_(pureBreedCids) else spawnInPod_(pureBreedCids[0])
+            }
 
-                    _pp_.putInQueue(ParentRequestsPodpoolCreateChildMsg(destBreedCid, destIns = clonedIns, parentBrad = ownBrad))
+            val actsRun = eff.actCids?.size?: 0
+            val bransSpawned = eff.branCids?.size?: 0
+            flightRecorder.record(stepTime, stem.cid, activation, effIndex, actsRun, bransSpawned)
+            steps++
 
-                    // The breed will be fully activated  on getting report of creation message. Until then we change activation
-                    // value from -1 to 0 to show that the branch is in the process of starting. The breed will be anactivated
-                    // again on getting the report of finishing the branch.
-                    (this[destBreedCid] as Breed).activation = 0f
+            // Guard the loop
+            quietStep = actsRun == 0 && bransSpawned == 0
+            if      // is it a quiet step?
+                    (quietStep)
+            {   //yes: the state is the same as on the previous quiet steps, a repeated stem with the same activation means a cycle
+                if(stem.cid == tortoiseCid && activation == tortoiseActivation) {
+                    suspend_("stem cycle of $cycleLength quiet steps without state change")
+                    break
+                }
+                if(cycleLength == cyclePower) {
+                    tortoiseCid = stem.cid
+                    tortoiseActivation = activation
+                    cyclePower *= 2
+                    cycleLength = 0
                 }
+                cycleLength++
+            }
+            else {//no: the state could have changed, start the detection anew
+                cyclePower = 1
+                cycleLength = 0
+                tortoiseCid = 0
+            }
+            if(steps >= _conf_.maxReasoningSteps) {
+                suspend_("step limit of ${_conf_.maxReasoningSteps} reached")
+                break
+            }
 
             // Assign new stem or yield
             if(eff.stemCid != 0) {
@@ -104,6 +199,8 @@ open class Branch(
 
         // Save stem and exit
         stem_ = stem
+        quietYield_ = quietStep
+        if(!detached) ownBrad.pod.reasoningMetrics.record(breedCid, steps, suspended)     // metrics belong to the pod's thread
         dlog {ar(
             "exit, stem_ = ${stem.toStr()}",
             "exit, stem_ = $stem"
@@ -111,11 +208,105 @@ open class Branch(
     }
 
     /**
-     *      Add concept to live map bypassing the spirit map. Used for concept injections.
+     *      Add concept to live map bypassing the spirit map. Used for concept injections. If it replaces a concept, that is
+     *  a premise of some neurons, they are told about the new activation.
      *  @param cpt live dynamic concept
      */
     fun add(cpt: DynamicConcept) {
+        val old = liveMap_[cpt.cid]
         liveMap_[cpt.cid] = cpt
+        if(old != null) {
+            if(old === stem_) quietYield_ = false       // the detached stem would not learn about changes anymore
+            if      // does the old concept have activation?
+                    (old is ActivationIfc)
+            {   //yes: the new one takes over its slot, so the slots, cached by the neurons, stay valid
+                val slot = old.slot
+                val oldActivation = old.activation
+                unbind_(old)
+                bind_(cpt, slot)
+                activationChanged(cpt.cid, oldActivation, (cpt as ActivationIfc).activation)
+            }
+            else
+                unbind_(old)
+        }
+        attach_(cpt)
+    }
+
+    /**
+     *      Finish the detached branch. Instead of messaging the parent and the pod, the outs are kept for the parent, that
+     *  waits for the branch's task.
+     *  @param outs the outs
+     */
+    fun finishDetached(outs: Array<DynamicConcept>?) {
+        assert(detached) {"Branch ${branchName()} is not detached."}
+        detachedOuts = outs
+        finished = true
+    }
+
+    /**
+     *      Send the learning writer all weight adjustments, accumulated by the live neurons.
+     */
+    fun submitLearning() {
+        liveMap_.forEach { _, cpt -> if(cpt is WeightNeuron) cpt.submitLearning() }
+    }
+
+    /**
+     *      Get spirit concept as it is seen by the branch, i.e. as of the base version. A branch of a pod takes it through
+     *  the pod's near cache, a detached one straight from the spirit map.
+     *  @param cid
+     *  @return the concept or null if not found
+     */
+    fun spiritConcept(cid: Cid): SpiritConcept? {
+        return if(detached) _sm_[cid, baseVer] else ownBrad.pod.nearCache[cid, baseVer]
+    }
+
+    /**
+     *      Let go of the branch, when it is terminated: submit the learning and unpin the base version.
+     */
+    fun close() {
+        submitLearning()
+        _sm_.releaseVersion(baseVer)
+    }
+
+    /**
+     *      Take a copy of activations of all live concepts.
+     *  @return the snapshot
+     */
+    fun snapshotActivations(): FloatArray = activations.snapshot()
+
+    /**
+     *      Return activations of the live concepts to a snapshot. Concepts materialized after the snapshot keep their
+     *  activations. All neurons are considered to have changed inputs.
+     *  @param snapshot the snapshot
+     */
+    fun restoreActivations(snapshot: FloatArray) {
+        activations.restore(snapshot)
+        activationsReloaded_()
+    }
+
+    /**
+     *      Anactivate all live concepts at once.
+     */
+    fun resetActivations() {
+        activations.fill(-1f)
+        activationsReloaded_()
+    }
+
+    /**
+     *      Activation of a concept in the live map changed. Called from the activation setters of the live concepts.
+     *  @param cid cid of the concept
+     *  @param oldActivation activation before the change
+     *  @param newActivation activation after the change
+     */
+    fun activationChanged(cid: Cid, oldActivation: Float, newActivation: Float) {
+        val deps = depIndex_.dependents(cid)?: return
+        val active = newActivation > 0
+        val flipped = oldActivation > 0 != active
+        for(k in 0 until deps.size step 2) {
+            val neuron = liveMap_[deps[k]] as? Neuron?: continue
+            neuron.inputsChanged = true
+            if(flipped && neuron is LogicalNeuron) neuron.premiseFlipped(deps[k+1], active)
+        }
     }
 
     /**
@@ -127,8 +318,9 @@ open class Branch(
         when {
             cpt != null -> return cpt
             else -> {   // Create and setup live concept
-                cpt = (_sm_[cid] as SpiritDynamicConcept).liveFactory()
+                cpt = (spiritConcept(cid) as SpiritDynamicConcept).liveFactory()
                 liveMap_[cid] = cpt
+                attach_(cpt)
                 return cpt
 
 //                // May be go deeper
@@ -164,28 +356,41 @@ open class Branch(
         children.remove(childBrad)
     }
 
+    /**
+     *      Request termination of all child branches, that have not reported their termination yet. Used, when the branch
+     *  is terminated before its children, so that they would not report to a branch, that is gone.
+     */
+    fun terminateChildren() {
+        for(child in children)
+            child.pod.putInQueue(ParentRequestsChildTerminationIbr(child.brid))
+        children.clear()
+    }
+
     /**
      *      Log a debugging line. The debug level is taken as a maximum of the global, thread or branch debug level. The lambda
      *  provides an array of lines, corresponding to the debug levels, where the first array element corresponds to the
      *  level 1. If there is no corresponding line, than the last line of the array is used. If the line is empty, nothing
-     *  is logged.
+     *  is logged. The lambda is called only if the effective level is positive and only once, the line is formatted and
+     *  written by the logger thread.
      *  @param lines Lamba, resulting in ar array of strings, one of which will be logged.
      */
     inline fun dlog(lines: () -> Array<String>) {
         if (GDEBUG_LV >= 0) {
-            val pod = ownBrad.pod
-            val effectiveLvl = max(max(GDEBUG_LV, pod.dlv), this.dlv)
+            val effectiveLvl = max(max(GDEBUG_LV, ownBrad.pod.dlv), this.dlv)
             if(effectiveLvl <= 0) return
-            if      // is there a line corresponding to the debug level?
-                    (effectiveLvl <= lines().size)
-            {   //yes: log that line
-                if(lines()[effectiveLvl-1] != "") logit("%s(%s): %s".format(branchName(), pod.podName, lines()[effectiveLvl-1]))
-            }
-            else //no: log the last line of the array
-                if(lines()[lines().lastIndex] != "") logit("%s(%s): %s".format(branchName(), pod.podName, lines()[lines().lastIndex]))
+            val ar = lines()
+            val line = if(effectiveLvl <= ar.size) ar[effectiveLvl-1] else ar[ar.lastIndex]
+            if(line != "") _logger_.put(logPrefix(), line)
         }
     }
 
+    /**
+     *      Prefix of the debugging lines of the branch, like "branch(pod)". Built on the first call.
+     */
+    fun logPrefix(): String {
+        return logPrefix_?: "${branchName()}(${ownBrad.pod.podName})".also { logPrefix_ = it }
+    }
+
     fun branchName(): String {
         var s = if(GDEBUG_LV >= 0) _nm_!![breedCid]?: "noname" else this::class.qualifiedName?: ""
         if(s == "hardCid.circle_breed")
@@ -204,17 +409,203 @@ open class Branch(
 
     //---%%%---%%%---%%%---%%%--- private data ---%%%---%%%---%%%---%%%---%%%---%%%
 
-    /** Branch-local map of live concepts */
-    private val liveMap_ = hashMapOf<Cid, DynamicConcept>()
+    /** Cached prefix of the debugging lines. */
+    private var logPrefix_: String? = null
+
+    /** Premise cid -> neurons, depending on it. Must be initialized before the live map. */
+    private val depIndex_ = DependencyIndex()
+
+    /** Branch-local map of live concepts. Keys are cids, they are not boxed on lookup. */
+    private val liveMap_ = newLiveMap_()
+
+    init {
+        // Attach the concepts, cloned from the template. It must be done before the stem is taken from the live map.
+        liveMap_.forEach { _, cpt -> bind_(cpt) }
+        liveMap_.forEach { _, cpt -> if(cpt is LogicalNeuron || cpt is WeightNeuron) attach_(cpt) }
+    }
 
     /** The head neuron of the branch. Initially it's the seed from the breed concept. */
     private var stem_: Neuron = this[(this[breedCid].sp as SpBreed).seedCid] as Neuron
 
+    /** The last reasoning call ended on a quiet step of the stem. */
+    private var quietYield_ = false
+
     /** List of child brans. Used to send them the termination message. */
     private val children = HashSet<Brad>()
 
-    /** Base concept version for the branch and all its children. */
-    private var baseVer: Ver = 0
+    //---%%%---%%%---%%%---%%%--- private funcs ---%%%---%%%---%%%---%%%---%%%---%%%
+
+    /**
+     *      Make the concept, just put into the live map, a part of the branch. A logical neuron registers its premises in
+     *  the dependency index and packs their activations, if enabled.
+     *  @param cpt live concept
+     */
+    private fun attach_(cpt: DynamicConcept) {
+        if(cpt.branch !== this) bind_(cpt)
+        if(cpt is LogicalNeuron) {
+            val premises = (cpt.sp as SpiritLogicalNeuron).premises
+            if(premises != null) depIndex_.register(cpt.cid, premises)
+            if(PACK_PREMISE_ACTIVATIONS) cpt.initActive(this)
+        }
+        else if(cpt is WeightNeuron)
+            depIndex_.register(cpt.sp as SpWeightNeuron)
+    }
+
+    /**
+     *      Set the branch of a concept. A concept with activation moves it into the activation store.
+     *  @param cpt live concept, not in any branch
+     *  @param slot slot to take over or -1 to allocate a new one
+     */
+    private fun bind_(cpt: DynamicConcept, slot: Int = -1) {
+        if(cpt is ActivationIfc) {
+            val activation = cpt.activation
+            if(slot < 0)
+                cpt.slot = activations.allocate(activation)
+            else {
+                cpt.slot = slot
+                activations.values[slot] = activation
+            }
+        }
+        cpt.branch = this
+    }
+
+    /**
+     *      Take a concept out of the branch. A concept with activation takes it back from the activation store.
+     *  @param cpt live concept
+     */
+    private fun unbind_(cpt: DynamicConcept) {
+        if(cpt is ActivationIfc) {
+            val activation = cpt.activation
+            cpt.branch = null
+            cpt.activation = activation
+        }
+        cpt.branch = null
+        cpt.slot = -1
+    }
+
+    /**
+     *      Activations were changed in bulk, bypassing the setters. Refresh everything derived from them.
+     */
+    private fun activationsReloaded_() {
+        liveMap_.forEach { _, cpt ->
+            if(cpt is Neuron) cpt.inputsChanged = true
+            if(PACK_PREMISE_ACTIVATIONS && cpt is LogicalNeuron) cpt.initActive(this)
+        }
+        quietYield_ = false
+    }
+
+    /**
+     *      Create the live map. If templates are enabled, it is filled up with clones of the breed's template.
+     */
+    private fun newLiveMap_(): IntMap<DynamicConcept> {
+        if(!USE_BRANCH_TEMPLATES) return IntMap()
+
+        val prototypes = _bt_[breedCid, baseVer]
+        val map = IntMap<DynamicConcept>(prototypes.size)
+        for(proto in prototypes)
+            map[proto.cid] = proto.clone()
+
+        return map
+    }
+
+    /**
+     *      Clone the ins of a breed from the branch.
+     *  @param destBreedCid cid of the child's breed
+     *  @return array of the clones or null if the breed has no ins
+     */
+    private fun cloneIns_(destBreedCid: Cid): Array<DynamicConcept>? {
+        val insCids = (spiritConcept(destBreedCid) as SpBreed).ins
+        return if(insCids != null) Array(insCids.size) { this[insCids[it]].clone() } else null
+    }
+
+    /**
+     *      Request the pod pool to create a child branch.
+     *  @param destBreedCid cid of the child's breed
+     */
+    private fun spawnInPod_(destBreedCid: Cid) {
+        _pp_.putInQueue(ParentRequestsPodpoolCreateChildMsg(destBreedCid, destIns = cloneIns_(destBreedCid), parentBrad = ownBrad,
+            baseVer = baseVer))
+
+        // The breed will be fully activated  on getting report of creation message. Until then we change activation
+        // value from -1 to 0 to show that the branch is in the process of starting. The breed will be anactivated
+        // again on getting the report of finishing the branch.
+        (this[destBreedCid] as Breed).activation = 0f
+    }
+
+    /**
+     *      Run brans of pure breeds as ForkJoin tasks and wait for them. The outs of the finished children are injected as
+     *  ChildReportsParentItsTerminationIbr would do it. A child, that did not finish in its reasoning call, was not pure
+     *  after all, it is dropped and spawned anew in a pod.
+     *  @param pureBreedCids cids of the children's breeds
+     */
+    private fun fanOut_(pureBreedCids: List<Cid>) {
+        val detachedChildren = arrayOfNulls<Branch>(pureBreedCids.size)
+        val tasks = ArrayList<ForkJoinTask<*>>(pureBreedCids.size)
+        for((i, destBreedCid) in pureBreedCids.withIndex()) {
+            val clonedIns = cloneIns_(destBreedCid)
+            tasks.add(ForkJoinTask.adapt {
+                // A task never fails, or invokeAll() would not wait for the others, which are closed afterwards
+                try {
+                    val ver = _sm_.pinVersion(baseVer)
+                    val child = try {
+                        Branch(destBreedCid, Brad(ownBrad.pod, DETACHED_BRID), ownBrad, detached = true, baseVer = ver)
+                    } catch(e: Throwable) {
+                        _sm_.releaseVersion(ver)
+                        throw e
+                    }
+                    detachedChildren[i] = child
+                    if(clonedIns != null)
+                        for(cpt in clonedIns)
+                            child.add(cpt)
+                    child.reasoning()
+                } catch(e: Throwable) {
+                    logit("${logPrefix()}: branch of the pure breed ${namedCid(destBreedCid)} failed: $e")
+                }
+            })
+        }
+        try {
+            ForkJoinTask.invokeAll(tasks)
+
+            // Respawn the unfinished ones, while the parent's ins are still the same
+            for((i, child) in detachedChildren.withIndex())
+                if(child == null || !child.finished) {
+                    logit("${logPrefix()}: branch of the pure breed ${namedCid(pureBreedCids[i])} did not finish, " +
+                            "it is respawned in a pod")
+                    spawnInPod_(pureBreedCids[i])
+                }
+
+            // Take the outs of the finished ones
+            for(child in detachedChildren) {
+                if(child == null || !child.finished) continue
+                if(child.detachedOuts != null)
+                    for(cpt in child.detachedOuts!!)
+                        add(cpt)
+                (this[child.breedCid] as Breed).anactivate()
+            }
+        } finally {
+            for(child in detachedChildren)
+                child?.close()
+        }
+    }
+
+    /**
+     *      Suspend the branch and report it with its last steps. A branch of a pod, that has a parent, is terminated without
+     *  outs, as if it finished, so that the parent would not wait for it forever. Its live children are terminated first.
+     *  A detached branch stays unfinished and is respawned in a pod by the parent. The attention circle has no parent, it
+     *  is only logged.
+     *  @param reason text explaining the suspension
+     */
+    private fun suspend_(reason: String) {
+        suspended = true
+        logit("${logPrefix()}, brid = ${ownBrad.brid}: reasoning suspended, $reason. ${flightRecorder.dump()}")
+        if      // is it a branch of a pod with a parent?
+                (!detached && parentBrad != null)
+        {   //yes: terminate it with its children
+            terminateChildren()
+            parentBrad.pod.putInQueue(ChildReportsParentItsTerminationIbr(parentBrad.brid, null, ownBrad, breedCid))
+            ownBrad.pod.putInQueue(BranchRequestsPodToTerminateItMsg(ownBrad.brid))
+        }
+    }
 
     /**
      *      Main constructor.
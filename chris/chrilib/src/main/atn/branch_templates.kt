@@ -0,0 +1,171 @@
+package atn
+
+import basemain.CUR_VER_FLAG
+import basemain.Cid
+import basemain.Ver
+import basemain.logit
+import cpt.SpBreed
+import cpt.abs.DynamicConcept
+import cpt.abs.SpStaticConcept
+import cpt.abs.SpiritAction
+import cpt.abs.SpiritDynamicConcept
+import cpt.abs.SpiritNeuron
+import libmain._sm_
+import libmain.namedCid
+
+/**
+ *      Registry of branch templates. A template of a breed is an array of pristine live concepts, reachable from the breed:
+ *  the breed itself, its seed and everything referred to by them through effects, premises, action parameters and
+ *  ins/outs of the child breeds. It is built once on the first spawn of the breed, after that a new branch gets its live
+ *  map as clones of the prototypes instead of going to the spirit map concept by concept.
+ *
+ *  The prototypes are shared by all pods, so they are never changed, only cloned. Concepts, not reachable statically
+ *  (injected or found by functors), are still created on the first access by Branch.get().
+ *
+ *  A template is built as of a version. Only the template of the last demanded version is kept for a breed, since the
+ *  branches of the older versions die out after a commit.
+ */
+class BranchTemplates {
+
+    /**
+     *      Get the template for a breed, building it if necessary.
+     *  @param breedCid cid of the breed
+     *  @param ver version, the concepts are seen as of
+     *  @return array of prototype live concepts
+     */
+    @UseExperimental(ExperimentalUnsignedTypes::class)
+    operator fun get(breedCid: Cid, ver: Ver = CUR_VER_FLAG): Array<DynamicConcept> {
+        return template_(breedCid, ver).prototypes
+    }
+
+    /**
+     *      Check if a branch of the breed can be run detached, i.e. the breed is flagged pure and its closure has neither
+     *  effects with brans nor acts, that send messages out of the branch. So a wrongly flagged breed is found before its
+     *  branch runs anything. The template is built, if necessary.
+     *  @param breedCid cid of the breed
+     *  @param ver version, the concepts are seen as of
+     *  @return true/false
+     */
+    @UseExperimental(ExperimentalUnsignedTypes::class)
+    fun detachable(breedCid: Cid, ver: Ver = CUR_VER_FLAG): Boolean {
+        return template_(breedCid, ver).detachable
+    }
+
+    /**
+     *      Check if the template for a breed is built.
+     *  @param breedCid cid of the breed
+     *  @param ver version, the concepts are seen as of
+     *  @return true/false
+     */
+    @UseExperimental(ExperimentalUnsignedTypes::class)
+    @Synchronized fun contains(breedCid: Cid, ver: Ver = CUR_VER_FLAG): Boolean {
+        return templateMap_[breedCid]?.ver == ver
+    }
+
+    /**
+     *      Drop all templates, for example when the spirit concepts have got new versions. They will be rebuilt on the next
+     *  spawns.
+     */
+    @Synchronized fun clear() {
+        templateMap_.clear()
+    }
+
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+    //
+    //                               Private
+    //
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+
+    /**
+     *      Prototypes with the version they were built as of.
+     *  @param detachable see detachable()
+     */
+    private class Template_(val ver: Ver, val prototypes: Array<DynamicConcept>, val detachable: Boolean)
+
+    //---%%%---%%%---%%%---%%%--- private data ---%%%---%%%---%%%---%%%---%%%---%%%
+
+    /** Map breed cid/template. */
+    private val templateMap_ = HashMap<Cid, Template_>()
+
+    //---%%%---%%%---%%%---%%%--- private funcs ---%%%---%%%---%%%---%%%---%%%---%%%
+
+    /**
+     *      Get the template for a breed, building it if necessary. The template is built out of the lock, since the walk
+     *  may load concepts from the database, and spawns of other breeds must not wait for it. If two threads build the
+     *  same template at once, the one put into the map first wins.
+     *  @param breedCid cid of the breed
+     *  @param ver version, the concepts are seen as of
+     */
+    private fun template_(breedCid: Cid, ver: Ver): Template_ {
+        synchronized(this) {
+            val template = templateMap_[breedCid]
+            if(template != null && template.ver == ver) return template
+        }
+
+        val built = build_(breedCid, ver)
+        synchronized(this) {
+            val template = templateMap_[breedCid]
+            if(template != null && template.ver == ver) return template
+            templateMap_[breedCid] = built
+        }
+
+        return built
+    }
+
+    /**
+     *      Create a live concept for every dynamic concept of the breed's closure (see walkBreedClosure()) and check, if
+     *  the breed's branch can be run detached.
+     *  @param breedCid cid of the breed
+     *  @param ver version, the concepts are seen as of
+     *  @return the template
+     */
+    private fun build_(breedCid: Cid, ver: Ver): Template_ {
+        val prototypes = ArrayList<DynamicConcept>()
+        var outward = false
+        walkBreedClosure(breedCid, ver) { spCpt ->
+            prototypes.add(spCpt.liveFactory())
+            if(spCpt is SpiritNeuron)
+                for(i in 0 until spCpt.effectCount)
+                    if(spCpt.effect(i).branCids?.isNotEmpty() == true) outward = true
+            if(spCpt is SpiritAction && (_sm_[spCpt.statCid] as? SpStaticConcept)?.messaging == true) outward = true
+        }
+
+        val pure = (_sm_[breedCid, ver] as SpBreed).pure
+        if(pure && outward)
+            logit("Breed ${namedCid(breedCid)} is flagged pure, but it spawns brans or sends messages. It is run in pods.")
+
+        return Template_(ver, prototypes.toTypedArray(), pure && !outward)
+    }
+}
+
+/**
+ *      Walk the graph of references from a breed and its seed level by level, breadth first. Other breeds are not walked
+ *  past their ins/outs (see SpBreed.collectCidRefs()), so the children's graphs do not get into the closure. Static or
+ *  missing concepts are skipped.
+ *  @param breedCid cid of the breed
+ *  @param ver version, the concepts are seen as of
+ *  @param loadLevel called with the not yet visited cids of a level before they are taken from the spirit map, so that they
+ *          could be loaded in one go
+ *  @param visit called for every dynamic concept of the closure
+ */
+@UseExperimental(ExperimentalUnsignedTypes::class)
+fun walkBreedClosure(breedCid: Cid, ver: Ver = CUR_VER_FLAG, loadLevel: ((List<Cid>) -> Unit)? = null,
+                     visit: (SpiritDynamicConcept) -> Unit)
+{
+    val visited = HashSet<Cid>()
+    var level = ArrayList<Cid>()
+    level.add(breedCid)
+    while(level.isNotEmpty()) {
+        level.removeAll { !visited.add(it) }
+        loadLevel?.invoke(level)
+
+        val next = ArrayList<Cid>()
+        for(cid in level) {
+            if(cid == breedCid) next.add((_sm_[breedCid, ver] as SpBreed).seedCid)
+            val spCpt = _sm_[cid, ver] as? SpiritDynamicConcept?: continue
+            visit(spCpt)
+            spCpt.collectCidRefs(next)
+        }
+        level = next
+    }
+}
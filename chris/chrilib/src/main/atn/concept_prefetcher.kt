@@ -0,0 +1,70 @@
+package atn
+
+import basemain.CUR_VER_FLAG
+import basemain.Cid
+import basemain.Ver
+import basemain.logit
+import chribase_thread.CuteThread
+import chribase_thread.MessageMsg
+import chribase_thread.TerminationRequestMsg
+import libmain.PodpoolRequestsPrefetcherLoadBreedMsg
+import libmain._sm_
+
+/**
+ *      Background loader of the concepts of a spawned breed. The pod pool sends it the creation requests of the branches,
+ *  whose breeds have no templates yet. It walks the breed's closure level by level, loading the missing concepts of every
+ *  level from the DB in one query, and then forwards the request to the chosen pod. So the pod starts reasoning with the
+ *  working set in the spirit map instead of fetching the concepts one by one on its own thread.
+ */
+class ConceptPrefetcher(threadName: String = "concept_prefetcher"): CuteThread(0, 0, threadName) {
+
+    /** Number of the loaded concept versions. */
+    var loaded: Long = 0
+        private set
+
+    /**
+     *      Load the closure of a breed into the spirit map.
+     *  @param breedCid cid of the breed
+     *  @param ver version, the closure is seen as of
+     *  @return number of the loaded concept versions
+     */
+    @UseExperimental(ExperimentalUnsignedTypes::class)
+    fun prefetch(breedCid: Cid, ver: Ver = CUR_VER_FLAG): Int {
+        var n = 0
+        walkBreedClosure(breedCid, ver, { n += _sm_.prefetch(it) }) {}
+        loaded += n
+
+        return n
+    }
+
+    //~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$
+    //
+    //                                  Protected
+    //
+    //~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$
+
+    //---$$$---$$$---$$$---$$$---$$$--- protected methods ---$$$---$$$---$$$---$$$---$$$---
+
+    override protected fun _messageProc(msg: MessageMsg?): Boolean {
+        when(msg) {
+            is PodpoolRequestsPrefetcherLoadBreedMsg -> {
+                try {
+                    prefetch(msg.createMsg.destBreedCid, msg.createMsg.baseVer)
+                } catch(e: Throwable) {
+                    // The prefetch is only an optimization, the pod loads what is missing on its own. The thread must
+                    // survive, or the requests, routed through it, would never get to the pods.
+                    logit("$threadName: prefetch of the breed ${msg.createMsg.destBreedCid} failed: $e")
+                }
+                msg.pod.putInQueue(msg.createMsg)      // the pod is borrowed, it must get the request anyway
+
+                return true
+            }
+
+            is TerminationRequestMsg -> {
+                return true
+            }
+        }
+
+        return false
+    }
+}
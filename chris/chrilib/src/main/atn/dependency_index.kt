@@ -0,0 +1,79 @@
+package atn
+
+import basemain.Cid
+import basemain.IntMap
+import cpt.SpWeightNeuron
+import cpt.abs.Prem
+import java.util.Arrays
+
+/**
+ *      Reverse index of a branch: premise cid -> neurons, that have it among their premises. For every dependent neuron
+ *  the index of the premise in the neuron's premises is kept as well, so the neuron can update its state for exactly
+ *  that premise. Neurons are referred to by cids, so a neuron concept, replaced in the live map, needs no re-registering.
+ *
+ *  Like the branch, not synchronized.
+ */
+class DependencyIndex {
+
+    /**
+     *      Register the premises of a neuron. Registering the same neuron again does nothing.
+     *  @param neuronCid cid of the neuron
+     *  @param premises the neuron's premises
+     */
+    fun register(neuronCid: Cid, premises: Array<Prem>) {
+        if(neuronCid in registered_) return
+        registered_[neuronCid] = true
+
+        for((i, prem) in premises.withIndex())
+            add_(prem.premCid, neuronCid, i)
+    }
+
+    /**
+     *      Register the premises of a weight neuron. Registering the same neuron again does nothing.
+     *  @param spNeuron the spirit weight neuron
+     */
+    fun register(spNeuron: SpWeightNeuron) {
+        if(spNeuron.cid in registered_) return
+        registered_[spNeuron.cid] = true
+
+        for(i in 0 until spNeuron.size)
+            add_(spNeuron.premCid(i), spNeuron.cid, i)
+    }
+
+    /**
+     *      Get dependents of a premise.
+     *  @param premCid cid of the premise
+     *  @return array of pairs (neuron cid, premise index in the neuron) or null if nothing depends on the premise
+     */
+    fun dependents(premCid: Cid): IntArray? = depMap_[premCid]
+
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+    //
+    //                               Private
+    //
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+
+    //---%%%---%%%---%%%---%%%--- private data ---%%%---%%%---%%%---%%%---%%%---%%%
+
+    /** Map premise cid/dependents as pairs (neuron cid, premise index). */
+    private val depMap_ = IntMap<IntArray>()
+
+    /** Set of the registered neurons. */
+    private val registered_ = IntMap<Boolean>()
+
+    //---%%%---%%%---%%%---%%%--- private funcs ---%%%---%%%---%%%---%%%---%%%---%%%
+
+    /**
+     *      Add a dependent to a premise.
+     *  @param premCid cid of the premise
+     *  @param neuronCid cid of the neuron
+     *  @param index index of the premise in the neuron
+     */
+    private fun add_(premCid: Cid, neuronCid: Cid, index: Int) {
+        val old = depMap_[premCid]
+        val deps = if(old == null) IntArray(2) else Arrays.copyOf(old, old.size + 2)
+        deps[deps.size - 2] = neuronCid
+        deps[deps.size - 1] = index
+        depMap_[premCid] = deps
+    }
+}
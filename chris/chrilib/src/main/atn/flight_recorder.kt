@@ -0,0 +1,95 @@
+package atn
+
+import basemain.Cid
+import basemain.FLIGHT_RECORDER_SIZE
+import cpt.abs.CUTOFF_EFFECT_INDEX
+import cpt.abs.NO_SPAN_EFFECT_INDEX
+import libmain.namedCid
+
+/**
+ *      Always-on record of the last reasoning steps of a branch. It is a ring buffer of primitive arrays, so recording a
+ *  step allocates nothing and costs a few array stores. When something goes wrong the last steps can be dumped with
+ *  concept names, without turning on the debug logging.
+ *
+ *  Like the branch it belongs to, it is not synchronized. It is written and read only in the thread of the branch's pod.
+ *
+ *  @param capacity number of the last steps to keep
+ */
+class FlightRecorder(val capacity: Int = FLIGHT_RECORDER_SIZE) {
+
+    /** Total number of steps recorded since the branch creation. */
+    var totalSteps: Long = 0
+        private set
+
+    /**
+     *      Record a reasoning step.
+     *  @param time time of the step in nanoseconds (System.nanoTime())
+     *  @param stemCid cid of the stem neuron
+     *  @param activation activation of the stem
+     *  @param effIndex index of the selected effect or CUTOFF_EFFECT_INDEX/NO_SPAN_EFFECT_INDEX
+     *  @param actsRun number of actions run
+     *  @param bransSpawned number of branches spawned
+     */
+    fun record(time: Long, stemCid: Cid, activation: Float, effIndex: Int, actsRun: Int, bransSpawned: Int) {
+        val i = pos_
+        time_[i] = time
+        stemCid_[i] = stemCid
+        activation_[i] = activation
+        effIndex_[i] = effIndex
+        actsRun_[i] = actsRun
+        bransSpawned_[i] = bransSpawned
+
+        pos_ = if(i + 1 == capacity) 0 else i + 1
+        totalSteps++
+    }
+
+    /**
+     *      Format the last steps, the oldest first. Time is shown in microseconds back from the last step.
+     *  @param steps number of steps to show. It is limited by the capacity and number of recorded steps.
+     *  @return text of the dump
+     */
+    fun dump(steps: Int = capacity): String {
+        val n = minOf(steps.toLong(), capacity.toLong(), totalSteps).toInt()
+        val s = StringBuilder()
+        s.append("last $n of $totalSteps steps:")
+        if(n == 0) return s.toString()
+
+        val last = if(pos_ == 0) capacity - 1 else pos_ - 1
+        val lastTime = time_[last]
+        for(k in n - 1 downTo 0) {
+            val i = (last - k + capacity) % capacity
+            val effIndex = effIndex_[i]
+            val eff = when(effIndex) {
+                CUTOFF_EFFECT_INDEX -> "cutoff"
+                NO_SPAN_EFFECT_INDEX -> "none"
+                else -> effIndex.toString()
+            }
+            s.append("\n    #${totalSteps - k - 1} -${(lastTime - time_[i])/1000}us stem = ${namedCid(stemCid_[i])}, " +
+                    "activation = ${activation_[i]}, effect = $eff, acts = ${actsRun_[i]}, brans = ${bransSpawned_[i]}")
+        }
+
+        return s.toString()
+    }
+
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+    //
+    //                               Private
+    //
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+
+    //---%%%---%%%---%%%---%%%--- private data ---%%%---%%%---%%%---%%%---%%%---%%%
+
+    /** Position in the ring to record the next step to. */
+    private var pos_ = 0
+
+    private val time_ = LongArray(capacity)
+    private val stemCid_ = IntArray(capacity)
+    private val activation_ = FloatArray(capacity)
+    private val effIndex_ = IntArray(capacity)
+    private val actsRun_ = IntArray(capacity)
+    private val bransSpawned_ = IntArray(capacity)
+
+    init {
+        require(capacity > 0) {"Flight recorder capacity must be positive, but it is $capacity."}
+    }
+}
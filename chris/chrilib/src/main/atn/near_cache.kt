@@ -0,0 +1,115 @@
+package atn
+
+import basemain.CUR_VER_FLAG
+import basemain.Cid
+import basemain.NEAR_CACHE_SIZE
+import basemain.Ver
+import cpt.abs.SpiritConcept
+import libmain.SpiritMap
+import libmain._sm_
+
+/**
+ *      Small cache of spirit concepts in front of the spirit map, owned by a pod and used only by its thread, so that the
+ *  popular concepts are taken without touching the shared map. It is direct mapped: a cid has one slot and a newcomer
+ *  replaces the old entry.
+ *
+ *  The entries are valid for one version, the highest one asked for. The view of a version never changes, so nothing has
+ *  to be invalidated until a branch asks for a newer version, which happens after a commit: then all entries are dropped.
+ *  The older versions, asked for by the branches, spawned before the commit, are passed to the spirit map. The head
+ *  (CUR_VER_FLAG) is taken as the published version of the spirit map.
+ *
+ *  The entries are also dropped, when the spirit map has evicted something since they were taken (see
+ *  SpiritMap.evictionEpoch). An evicted concept is reloaded as a new object, that may be changed by a commit, so the
+ *  old one must not be served, nor kept alive past the bound of the spirit map. The same goes for a commit, that replaced
+ *  the heads without incrementing the version.
+ *  @param sm the spirit map
+ *  @param capacity number of slots, a power of 2
+ */
+class NearCache(val sm: SpiritMap = _sm_, val capacity: Int = NEAR_CACHE_SIZE) {
+
+    /** Statistics. */
+    var hits = 0L
+        private set
+    var misses = 0L
+        private set
+    var invalidations = 0L
+        private set
+
+    /**
+     *      Get spirit concept as it is seen by a reader of a version.
+     *  @param cid
+     *  @param ver version of the reader. CUR_VER_FLAG - the head.
+     *  @return the concept or null if not found
+     */
+    @UseExperimental(ExperimentalUnsignedTypes::class)
+    operator fun get(cid: Cid, ver: Ver): SpiritConcept? {
+        val epoch = sm.evictionEpoch
+        if      // has the spirit map evicted anything since the entries were taken?
+                (epoch != epoch_)
+        {   //yes: they could be evicted, drop them
+            invalidations++
+            cpts_.fill(null)
+            epoch_ = epoch
+        }
+
+        val v = if(ver == CUR_VER_FLAG) sm.publishedVer else ver
+        if      // is it not the version of the entries?
+                (v.toInt() != ver_)
+        {   //yes: an older one goes to the spirit map, a newer one replaces the entries
+            if(v < ver_) {
+                misses++
+                return sm[cid, ver]
+            }
+            if(ver_ >= 0) invalidations++
+            cpts_.fill(null)
+            ver_ = v.toInt()
+        }
+
+        val i = (cid*-0x61c88647 ushr 16) and (capacity - 1)
+        val cpt = cpts_[i]
+        if(cpt != null && cids_[i] == cid) {
+            hits++
+            return cpt
+        }
+
+        misses++
+        val found = sm[cid, v]?: return null
+        cids_[i] = cid
+        cpts_[i] = found
+
+        return found
+    }
+
+    /**
+     *      Format the statistics.
+     *  @return text of the report
+     */
+    fun report(): String {
+        val requests = hits + misses
+        return "near cache: hits = $hits, misses = $misses, " +
+                "hit ratio = ${"%.3f".format(if(requests == 0L) 0.0 else hits.toDouble()/requests)}, " +
+                "invalidations = $invalidations"
+    }
+
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+    //
+    //                               Private
+    //
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+
+    //---%%%---%%%---%%%---%%%--- private data ---%%%---%%%---%%%---%%%---%%%---%%%
+
+    /** Version of the entries. -1 - none yet. */
+    private var ver_ = -1
+
+    /** Eviction epoch of the spirit map, the entries were taken in. */
+    private var epoch_ = sm.evictionEpoch
+
+    /** Slots. */
+    private val cids_ = IntArray(capacity)
+    private val cpts_ = arrayOfNulls<SpiritConcept>(capacity)
+
+    init {
+        require(capacity > 0 && capacity and (capacity - 1) == 0) {"Capacity must be a power of 2. Capacity = $capacity"}
+    }
+}
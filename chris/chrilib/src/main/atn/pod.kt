@@ -1,8 +1,11 @@
 package atn
 
+import basemain.Cid
 import basemain.GDEBUG_LV
+import basemain.IntMap
 import basemain.MAX_POD_THREAD_QUEUE
 import basemain.POD_THREAD_QUEUE_TIMEOUT
+import basemain.PREFETCH_ON_SPAWN
 import basemain.logit
 import chribase_thread.CuteThread
 import chribase_thread.MessageMsg
@@ -51,6 +54,16 @@ class Pod(
     /** Number of brans currently assigned to the pod. */
     internal var numOfBranches = 0
 
+    /** Statistics of reasoning steps of the pod's brans. */
+    val reasoningMetrics = ReasoningMetrics()
+
+    /** Spirit concepts, taken by the pod's brans. */
+    val nearCache = NearCache()
+
+    /** Number of reasoning calls avoided by coalescing the activation messages for a branch. */
+    var reasoningCallsSaved: Long = 0
+        private set
+
     override fun toString(): String {
         var s = super.toString()
         s += "\n    numOfBranches = $numOfBranches"
@@ -73,38 +86,54 @@ class Pod(
     //---$$$---$$$---$$$---$$$---$$$--- protected methods ---$$$---$$$---$$$---$$$---$$$---
     protected override fun _messageProc(msg: MessageMsg): Boolean {
 
+        // Branches, whose state is changed by previous messages, must reason before anything else happens in the pod
+        if(pendingReasoning_.isNotEmpty() && !isCoalescable_(msg))
+            flushPendingReasoning_()
+
         when(msg) {
 
             is IbrMsg -> {
-                val br = branchMap_[msg.destBrid] as Branch
+                val br = branchMap_[msg.destBrid]
+                if      // is the destination branch already terminated?
+                        (br == null)
+                {   //yes: drop the message, but do not let a child, that reports its creation to a gone parent, live on
+                    dlog_ {"msg = ${msg.toStr()}, no destination branch, dropped"}
+                    if(msg is ChildReportsParentItsCreationIbr)
+                        msg.origBrad.pod.putInQueue(ParentRequestsChildTerminationIbr(msg.origBrad.brid))
+
+                    return true
+                }
                 when(msg) {
                     is ActivateRemotelyIbr ->
                     {
-                        dlog_(br, "msg = ${msg.toStr()}")
+                        dlog_(br) {"msg = ${msg.toStr()}"}
 
+                        deferReasoning_(br, msg.cptCid)
                         (br[msg.cptCid] as ActivationIfc).activate()
-                        br.reasoning()
+                        if(empty()) flushPendingReasoning_()
 
                         return true
                     }
 
                     is AnactivateRemotelyIbr ->
                     {
-                        dlog_(br, "msg = ${msg.toStr()}")
+                        dlog_(br) {"msg = ${msg.toStr()}"}
 
+                        deferReasoning_(br, msg.cptCid)
                         (br[msg.cptCid] as ActivationIfc).anactivate()
-                        br.reasoning()
+                        if(empty()) flushPendingReasoning_()
 
                         return true
                     }
 
                     is TransportSingleConceptIbr ->
                     {
-                        dlog_(br, "msg = ${msg.toStr()}")
+                        dlog_(br) {"msg = ${msg.toStr()}"}
 
                         // Inject load
+                        deferReasoning_(br, msg.load.cid)
                         br.add(msg.load)
-                        br.reasoning()
+                        if(empty()) flushPendingReasoning_()
 
                         return true
                     }
@@ -112,7 +141,7 @@ class Pod(
                     is      // parent gets report on creating child branch?
                             ChildReportsParentItsCreationIbr ->
                     {
-                        dlog_(br,"msg = ${msg.toStr()}")
+                        dlog_(br) {"msg = ${msg.toStr()}"}
 
                         // Set up and activate the child's breed in the parent's space name
                         val childBreed = br[msg.origBreedCid] as Breed
@@ -127,7 +156,7 @@ class Pod(
                     }
 
                     is ChildReportsParentItsTerminationIbr -> {
-                        dlog_(br,"msg = ${msg.toStr()}")
+                        dlog_(br) {"msg = ${msg.toStr()}"}
 
                         // Take the child's devise, if present. No need to clone, there is no owner to them anymore.
                         if(msg.outs != null)
@@ -144,15 +173,32 @@ class Pod(
 
                         return true
                     }
+
+                    is      // parent, that is terminated, requests termination of the child?
+                            ParentRequestsChildTerminationIbr ->
+                    {
+                        dlog_(br) {"msg = ${msg.toStr()}"}
+
+                        br.terminateChildren()
+                        terminateBranch_(msg.destBrid)
+
+                        return true
+                    }
                 }
             }
 
             // Create new branch
             is ParentRequestsPodpoolCreateChildMsg -> {
-                dlog_("msg = ${msg.toStr()}")
+                dlog_ {"msg = ${msg.toStr()}"}
                 val brid = generateSockid()
                 val destBrad = Brad(this, brid)
-                val br = Branch(msg.destBreedCid, destBrad, msg.parentBrad)
+                val ver = _sm_.pinVersion(msg.baseVer)
+                val br = try {
+                    Branch(msg.destBreedCid, destBrad, msg.parentBrad, baseVer = ver)
+                } catch(e: Throwable) {
+                    _sm_.releaseVersion(ver)        // the branch will never be closed, so the pin would stay forever
+                    throw e
+                }
 
                 // May be, inject ins
                 if(msg.destIns != null)
@@ -171,29 +217,27 @@ class Pod(
 
             // Delete branch
             is BranchRequestsPodToTerminateItMsg -> {
-                dlog_("msg = ${msg.toStr()}")
-                branchMap_.remove(msg.origBrid)
-                numOfBranches--
-                _pp_.putInQueue(PodReportsPodpoolBranchTerminationMsg(this))
+                dlog_ {"msg = ${msg.toStr()}"}
+                terminateBranch_(msg.origBrid)
 
                 return true
             }
 
             is UserTellsCircleMsg -> {
                 val br = branchMap_[msg.destBrid] as Branch
-                dlog_(br, "msg = ${msg.toStr()}")
+                dlog_(br) {"msg = ${msg.toStr()}"}
+                deferReasoning_(br, hCr.hardCid.userInputBuffer_strqprem.cid)
                 val inputBufferCpt = br[hCr.hardCid.userInputBuffer_strqprem.cid] as StringQueuePrem
                 inputBufferCpt.queue.add(msg.text)
                 inputBufferCpt.activate()
-
-                br.reasoning()
+                if(empty()) flushPendingReasoning_()
 
                 return true
             }
 
             // Create attention circle
             is UserRequestsDispatcherCreateAttentionCircleMsg -> {
-                dlog_("msg = ${msg.toStr()}")
+                dlog_ {"msg = ${msg.toStr()}"}
                 val breedCid = hCr.hardCid.circle_breed.cid
                 val cellid = generateSockid()
                 val circle = AttentionCircle(breedCid, Brad(this, cellid), msg.userThread)
@@ -206,8 +250,26 @@ class Pod(
                 return true
             }
 
+            is UserRequestsDumpFlightRecordersMsg -> {
+                for((brid, br) in branchMap_)
+                    if(msg.brid == -1 || msg.brid == brid)
+                        logit("$podName, ${br.branchName()}($brid): ${br.flightRecorder.dump(msg.steps)}")
+
+                return true
+            }
+
+            is UserRequestsReasoningMetricsMsg -> {
+                logit("$podName: reasoning calls saved = $reasoningCallsSaved, ${reasoningMetrics.report()}, " +
+                        nearCache.report())
+
+                return true
+            }
+
             is TerminationRequestMsg -> {
-                dlog_("msg = ${msg.toStr()}")
+                dlog_ {"msg = ${msg.toStr()}"}
+                logit("$podName: reasoning calls saved = $reasoningCallsSaved")
+                for(br in branchMap_.values)
+                    br.close()
                 return true
             }
 
@@ -235,8 +297,80 @@ class Pod(
     /** Map Branch/origBrad. */
     private val branchMap_ = hashMapOf<Int, Branch>()
 
+    /** Brans, that got state changes and wait for reasoning, in the order of the first change. The value is the set of
+        cids changed since the last reasoning of the branch. */
+    private val pendingReasoning_ = LinkedHashMap<Branch, IntMap<Boolean>>()
+
+    /** Cleared sets of the changed cids, given back by the flushPendingReasoning_() for reuse. */
+    private val spareCidSets_ = ArrayList<IntMap<Boolean>>()
+
     //---%%%---%%%---%%%---%%%--- private funcs ---%%%---%%%---%%%---%%%---%%%---%%%
 
+    /**
+     *      Is the message only changing the state of a branch, so that the reasoning on it can be postponed until other
+     *  such messages for the branch are applied?
+     *  @param msg message
+     */
+    private fun isCoalescable_(msg: MessageMsg): Boolean {
+        return msg is ActivateRemotelyIbr || msg is AnactivateRemotelyIbr || msg is TransportSingleConceptIbr ||
+                msg is UserTellsCircleMsg
+    }
+
+    /**
+     *      Register a branch for reasoning after a state change of a concept, that is about to be applied. If that concept
+     *  has already been changed since the last reasoning, the branch reasons right now, so that it sees every state
+     *  in the order it came and no change is overwritten unnoticed.
+     *  @param br branch
+     *  @param cid cid of the concept to be changed
+     */
+    private fun deferReasoning_(br: Branch, cid: Cid) {
+        val changedCids = pendingReasoning_[br]
+        if      // isn't the branch waiting for reasoning yet?
+                (changedCids == null)
+        {   //no: it will wait from now on
+            val cids = if(spareCidSets_.isEmpty()) IntMap() else spareCidSets_.removeAt(spareCidSets_.size - 1)
+            cids[cid] = true
+            pendingReasoning_[br] = cids
+        }
+        else if // is the concept changed for the second time?
+                (cid in changedCids)
+        {   //yes: reason on the previous state and start collecting changes anew
+            br.reasoning()
+            changedCids.clear()
+            changedCids[cid] = true
+        }
+        else {  // the change joins the pending ones, one reasoning call less
+            changedCids[cid] = true
+            reasoningCallsSaved++
+        }
+    }
+
+    /**
+     *      Run reasoning once for every branch with pending state changes, in the order the branches got them.
+     */
+    private fun flushPendingReasoning_() {
+        while(pendingReasoning_.isNotEmpty()) {
+            val iter = pendingReasoning_.entries.iterator()
+            val (br, changedCids) = iter.next()
+            iter.remove()
+            changedCids.clear()
+            spareCidSets_.add(changedCids)
+            br.reasoning()
+        }
+    }
+
+    /**
+     *      Delete a branch from the pod and notify the pod pool. The branch could have been terminated already by its
+     *  parent's request, then nothing is done.
+     *  @param brid brid of the branch
+     */
+    private fun terminateBranch_(brid: Int) {
+        val br = branchMap_.remove(brid)?: return
+        br.close()
+        numOfBranches--
+        _pp_.putInQueue(PodReportsPodpoolBranchTerminationMsg(this))
+    }
+
     /**
      *      Generate socket identifier of a branch in the pod, that is guaranteed in no use. -1 is excluded, so it
      *  can serve as a "no branch" flag.
@@ -253,27 +387,28 @@ class Pod(
 
     /**
      *          Log a debugging line without filtering.
-     *      The debug level is taken as a maximum of the global or thread debug level.
-     *  @param line text to log
+     *      The debug level is taken as a maximum of the global or thread debug level. The lambda is called only if the
+     *  level is positive.
+     *  @param line lambda, resulting in the text to log
      */
-    private fun dlog_(line: String) {
+    private inline fun dlog_(line: () -> String) {
         if (GDEBUG_LV >= 0) {
             val effectiveLvl = max(GDEBUG_LV, this.dlv)
             if(effectiveLvl > 0)
-                logit(this.podName + ": " + line)
+                _logger_.put(this.podName, line())
         }
     }
 
     /**
      *          Log a debugging line if it passes the filter
      *  @param branch Branch, the message is meant for
-     *  @param line text to log
+     *  @param line lambda, resulting in the text to log
      */
-    private fun dlog_(branch: Branch, line: String) {
+    private inline fun dlog_(branch: Branch, line: () -> String) {
         if (GDEBUG_LV >= 0)
             if      // does the message pass the filter?
                 (dBranchFilter == -1 || dBranchFilter == branch.ownBrad.brid)
-            dlog_("(to ${branch.branchName()}): " + line)
+            dlog_ {"(to ${branch.branchName()}): " + line()}
     }
 }
 
@@ -306,7 +441,7 @@ class Podpool(
         when(msg) {
 
             is PodReportsPodpoolBranchCreationMsg -> {
-                dlog_("msg = ${msg.toStr()}")
+                dlog_ {"msg = ${msg.toStr()}"}
                 hostCandidates.add(msg.origPod)
                 borrowedPods--
 
@@ -314,7 +449,7 @@ class Podpool(
             }
 
             is PodReportsPodpoolBranchTerminationMsg -> {
-                dlog_("msg = ${msg.toStr()}")
+                dlog_ {"msg = ${msg.toStr()}"}
 
                 // Reinsert pod in the hostCandidates. That may change the ordering.
                 val pod = msg.origPod
@@ -326,7 +461,7 @@ class Podpool(
 
             is ParentRequestsPodpoolCreateChildMsg,
             is UserRequestsDispatcherCreateAttentionCircleMsg -> {
-                dlog_("msg = ${msg.toStr()}")
+                dlog_ {"msg = ${msg.toStr()}"}
 
                 // Take from hostCandidates the pod with smallest usage, i.e. the first one. The pod is taken out of the
                 // set, so it would not get used again before it is loaded with this branch. The pod will be returned back
@@ -352,14 +487,19 @@ class Podpool(
                         logit("Creating...")
                         podpoolOverflowReported = false
                     }
-                    pod.putInQueue(msg)     // forward message to pod
+                    if      // is it a child, whose breed's concepts may be not in the spirit map?
+                            (PREFETCH_ON_SPAWN && msg is ParentRequestsPodpoolCreateChildMsg && _dm_.db_ != null &&
+                            !_bt_.contains(msg.destBreedCid, msg.baseVer))
+                        _pf_.putInQueue(PodpoolRequestsPrefetcherLoadBreedMsg(pod, msg))  //yes: let them be loaded first
+                    else
+                        pod.putInQueue(msg)     // forward message to pod
 
                     return true
                 }
             }
 
             is AttentionCircleReportsPodpoolAndDispatcherItsCreationMsg -> {
-                dlog_("msg = ${msg.toStr()}")
+                dlog_ {"msg = ${msg.toStr()}"}
 
                 hostCandidates.add(msg.ownBrad.pod)
                 borrowedPods--
@@ -368,12 +508,39 @@ class Podpool(
                 return true
             }
 
+            is UserRequestsDumpFlightRecordersMsg -> {
+                dlog_ {"msg = ${msg.toStr()}"}
+
+                // Let every pod dump its branches
+                for(pod in pods)
+                    pod.putInQueue(msg)
+
+                return true
+            }
+
+            is UserRequestsReasoningMetricsMsg -> {
+                dlog_ {"msg = ${msg.toStr()}"}
+
+                // Let every pod report its metrics
+                for(pod in pods)
+                    pod.putInQueue(msg)
+
+                return true
+            }
+
             is TerminationRequestMsg -> {
-                dlog_("msg = ${msg.toStr()}")
+                dlog_ {"msg = ${msg.toStr()}"}
 
-                // Terminate pods
+                // Let the prefetcher pass the pods the requests it has got
+                _pf_.putInQueue(msg)
+                _pf_.join()
+
+                // Terminate pods and wait for them, so that everything they send on termination is already sent, when
+                // the pool is joined
                 for(pod in pods)
                     pod.putInQueue(msg)
+                for(pod in pods)
+                    pod.join()
 
                 return true
             }
@@ -413,14 +580,15 @@ class Podpool(
 
     /**
      *          Log a debugging line without filtering.
-     *      The debug level is taken as a maximum of the global or thread debug level.
-     *  @param line line to log.
+     *      The debug level is taken as a maximum of the global or thread debug level. The lambda is called only if the
+     *  level is positive.
+     *  @param line lambda, resulting in the line to log.
      */
-    private fun dlog_(line: String) {
+    private inline fun dlog_(line: () -> String) {
         if (GDEBUG_LV >= 0) {
             val effectiveLvl = max(GDEBUG_LV, this.dlv)
             if(effectiveLvl > 0)
-                logit(this.threadName + ": " + line)
+                _logger_.put(this.threadName, line())
         }
     }
 
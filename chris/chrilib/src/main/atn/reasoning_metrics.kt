@@ -0,0 +1,71 @@
+package atn
+
+import basemain.Cid
+import basemain.IntMap
+import libmain.namedCid
+
+/**
+ *      Statistics of reasoning steps per call of Branch.reasoning(), gathered by breeds. Every pod has its own object,
+ *  so it is not synchronized. It is written and read only in the thread of the pod.
+ */
+class ReasoningMetrics {
+
+    /**
+     *      Record a call of the reasoning.
+     *  @param breedCid breed of the branch
+     *  @param steps number of steps made in the call
+     *  @param suspended the call ended with suspension of the branch
+     */
+    fun record(breedCid: Cid, steps: Int, suspended: Boolean) {
+        val bs = breedMap_[breedCid]?: BreedSteps_().also { breedMap_[breedCid] = it }
+        bs.calls++
+        bs.steps += steps
+        if(steps > bs.maxSteps) bs.maxSteps = steps
+        if(suspended) bs.suspensions++
+    }
+
+    /**
+     *      Record a call of the reasoning, skipped because the stem's inputs had not changed.
+     *  @param breedCid breed of the branch
+     */
+    fun recordSkip(breedCid: Cid) {
+        val bs = breedMap_[breedCid]?: BreedSteps_().also { breedMap_[breedCid] = it }
+        bs.skipped++
+    }
+
+    /**
+     *      Format the statistics, a line per breed.
+     *  @return text of the report
+     */
+    fun report(): String {
+        val s = StringBuilder()
+        s.append("reasoning steps by breed:")
+        breedMap_.forEach { breedCid, bs ->
+            s.append("\n    ${namedCid(breedCid)}: calls = ${bs.calls}, steps = ${bs.steps}, " +
+                    "steps/call = ${"%.1f".format(if(bs.calls == 0L) 0.0 else bs.steps.toDouble()/bs.calls)}, max steps = ${bs.maxSteps}, " +
+                    "suspensions = ${bs.suspensions}, evaluations skipped = ${bs.skipped}")
+        }
+
+        return s.toString()
+    }
+
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+    //
+    //                               Private
+    //
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+
+    /** Counters of a breed. */
+    private class BreedSteps_ {
+        var calls: Long = 0
+        var steps: Long = 0
+        var maxSteps: Int = 0
+        var suspensions: Int = 0
+        var skipped: Long = 0
+    }
+
+    //---%%%---%%%---%%%---%%%--- private data ---%%%---%%%---%%%---%%%---%%%---%%%
+
+    /** Map breed cid/counters. */
+    private val breedMap_ = IntMap<BreedSteps_>()
+}
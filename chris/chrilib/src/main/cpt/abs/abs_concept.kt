@@ -142,6 +142,13 @@ abstract class SpiritDynamicConcept(cid: Cid): SpiritConcept(cid) {
     */
     abstract fun liveFactory(): DynamicConcept
 
+    /**
+     *      Add to the collection cids of the dynamic concepts, this concept refers to and which are to be live in the same
+     *  branch, like effects of a neuron or parameters of an action. Used for building the branch templates.
+     *  @param refs collection to add cids to
+     */
+    open fun collectCidRefs(refs: MutableCollection<Cid>) {}
+
     init {
         assert(cid == 0 || cid.toUInt() >= MIN_DYNAMIC_CID && cid.toUInt() <= MAX_DYNAMIC_CID)
         assert(this in _cr_) { "Class ${this::class} isn't in the class registry."}
@@ -153,7 +160,28 @@ abstract class SpiritDynamicConcept(cid: Cid): SpiritConcept(cid) {
  *
  *  @param spiritDynamicConcept
  */
-abstract class DynamicConcept(spiritDynamicConcept: SpiritDynamicConcept): Concept(spiritDynamicConcept)
+abstract class DynamicConcept(spiritDynamicConcept: SpiritDynamicConcept): Concept(spiritDynamicConcept) {
+
+    /** Branch, whose live map holds this concept. It is set by the branch. null for concepts out of any branch, like
+        template prototypes or clones on their way to another branch. */
+    var branch: Branch? = null
+        internal set
+
+    /** Slot of the concept's activation in the activation store of the branch. -1 if the concept has no activation or
+        is out of any branch. */
+    var slot = -1
+        internal set
+
+    /**
+     *      The clone does not belong to any branch until it is put into a live map.
+     */
+    override fun clone(): DynamicConcept {
+        val o = super.clone() as DynamicConcept
+        o.branch = null
+        o.slot = -1
+        return o
+    }
+}
 
 /**
  *       Base for all acts.
@@ -193,6 +221,10 @@ abstract class SpiritAction(cid: Cid): SpiritDynamicConcept(cid) {
      */
     abstract fun run(br: Branch)
 
+    /** Cid of the static concept, whose functor the action runs. */
+    val statCid: Cid
+        get() = _statCid
+
     /** Cid of the static concept. */
     protected var _statCid: Cid = 0
 }
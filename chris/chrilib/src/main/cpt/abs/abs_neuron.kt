@@ -9,6 +9,22 @@ import libmain.arrayOfCidsNamed
 import libmain.cidNamed
 import java.util.*
 
+/** Effect index of the cutoff span, i.e. [-infinity, cutoff]. */
+const val CUTOFF_EFFECT_INDEX = -1
+
+/** Effect index of the span beyond the upper bound of the last effect. */
+const val NO_SPAN_EFFECT_INDEX = -2
+
+/** Shared effect of the cutoff span: no acts, no brans, stay on the stem. Its upper bound is -infinity, not the cutoff of
+    the neuron, since it is shared by all neurons. */
+val CUTOFF_EFFECT = Effect(Float.NEGATIVE_INFINITY)
+
+/** Shared effect of the span beyond the last upper bound: no acts, no brans, stay on the stem. */
+val NO_SPAN_EFFECT = Effect(Float.POSITIVE_INFINITY)
+
+/** If a neuron has more effects than this, the effect is searched by bisection instead of scanning. */
+const val EFFECT_BISECTION_THRESHOLD = 8
+
 /**
         Base for all neurons.
 */
@@ -28,6 +44,15 @@ abstract class SpiritNeuron(cid: Cid): SpiritDynamicConcept(cid) {
     val isCutoff: Boolean
         get() = !cutoff.isNaN()
 
+    override fun collectCidRefs(refs: MutableCollection<Cid>) {
+        if(_effects != null)
+            for(eff in _effects!!) {
+                if(eff.actCids != null) for(cid in eff.actCids) refs.add(cid)
+                if(eff.branCids != null) for(cid in eff.branCids) refs.add(cid)
+                if(eff.stemCid != 0) refs.add(eff.stemCid)
+            }
+    }
+
     override fun toString(): String {
         var s = super.toString()
         if(_effects == null)
@@ -107,16 +132,16 @@ abstract class SpiritNeuron(cid: Cid): SpiritDynamicConcept(cid) {
                 stable.putFloat(eff.upperBound)     // upper bound
 
                 if(eff.actCids != null) {
-                    stable.putInt(eff.actCids!!.size)   // number of act cids
-                    for(cid in eff.actCids!!)
+                    stable.putInt(eff.actCids.size)   // number of act cids
+                    for(cid in eff.actCids)
                         stable.putInt(cid)      // act cids
                 }
                 else
                     stable.putInt(0)    // number of act cids: no acts
 
                 if(eff.branCids != null) {
-                    stable.putInt(eff.branCids!!.size)   // number of bran cids
-                    for(cid in eff.branCids!!)
+                    stable.putInt(eff.branCids.size)   // number of bran cids
+                    for(cid in eff.branCids)
                         stable.putInt(cid)      // bran cids
                 }
                 else
@@ -134,32 +159,17 @@ abstract class SpiritNeuron(cid: Cid): SpiritDynamicConcept(cid) {
         cutoff = stable.getFloat()
         val effSize = stable.getInt()
         if(effSize != 0) {
-            // Create empty array of effects
+            // Read the effects and only then assign the array, so that the upper bounds get into upperBounds_
             _effects = Array<Effect>(effSize) {
-                Effect(
-                upperBound = Float.NaN,
-                actCids = null,
-                branCids = null,
-                stemCid = 0
-            )}
-
-            // Fill in array of effects
-            for(eff in _effects!!) {
-                eff.upperBound = stable.getFloat()
+                val upperBound = stable.getFloat()
 
                 val actSize = stable.getInt()
-                if(actSize != 0)
-                    eff.actCids = IntArray(actSize) { stable.getInt()}
-                else
-                    eff.actCids = null
+                val actCids = if(actSize != 0) IntArray(actSize) { stable.getInt()} else null
 
                 val branSize = stable.getInt()
-                if(branSize != 0)
-                    eff.branCids = IntArray(branSize) { stable.getInt()}
-                else
-                    eff.branCids = null
+                val branCids = if(branSize != 0) IntArray(branSize) { stable.getInt()} else null
 
-                eff.stemCid = stable.getInt()
+                Effect(upperBound, actCids, branCids, stemCid = stable.getInt())
             }
         }
         else
@@ -179,19 +189,59 @@ abstract class SpiritNeuron(cid: Cid): SpiritDynamicConcept(cid) {
             the Effect struct as the Voldemort value.
     */
     fun selectEffect(activation: Float): Effect {
+        return effect(selectEffectIndex(activation))
+    }
+
+    /**
+     *      Get index of the effect corresponding to given activation.
+     *  @param activation activation value
+     *  @return index in the effects array or CUTOFF_EFFECT_INDEX/NO_SPAN_EFFECT_INDEX if activation falls into the cutoff
+     *          span or is greater than the upper bound of the last span.
+     */
+    fun selectEffectIndex(activation: Float): Int {
         if      // is activation falling into the cutoff span?
                 (activation <= cutoff)
-            // return an empty effect
-            return Effect(cutoff)
+            return CUTOFF_EFFECT_INDEX
 
-        if(_effects != null)
-            for(eff in _effects!!)
+        val upperBounds = upperBounds_?: return NO_SPAN_EFFECT_INDEX
+        if      // are there few spans?
+                (upperBounds.size <= EFFECT_BISECTION_THRESHOLD)
+        {   //yes: scan them
+            for(i in 0 until upperBounds.size)
                 if      // is activation fitting a span?
-                        (activation <= eff.upperBound)
-                    return eff
+                        (activation <= upperBounds[i])
+                    return i
+        }
+        else {//no: find the first span with the upper bound >= activation by bisection
+            var lo = 0
+            var hi = upperBounds.size
+            while(lo < hi) {
+                val mid = (lo + hi) ushr 1
+                if(activation <= upperBounds[mid]) hi = mid else lo = mid + 1
+            }
+            if(lo < upperBounds.size) return lo
+        }
 
-        // Activation not found? Return the last empty span
-        return Effect(Float.POSITIVE_INFINITY)
+        // Activation not found
+        return NO_SPAN_EFFECT_INDEX
+    }
+
+    /** Number of the effects. */
+    val effectCount: Int
+        get() = _effects?.size?: 0
+
+    /**
+     *      Get effect by its index.
+     *  @param index index in the effects array or CUTOFF_EFFECT_INDEX/NO_SPAN_EFFECT_INDEX
+     *  @return the effect. For the cutoff span and for the span after the last one it is the shared empty effect, the
+     *          cutoff one has -infinity as its upper bound.
+     */
+    fun effect(index: Int): Effect {
+        return when(index) {
+            CUTOFF_EFFECT_INDEX -> CUTOFF_EFFECT
+            NO_SPAN_EFFECT_INDEX -> NO_SPAN_EFFECT
+            else -> _effects!![index]
+        }
     }
 
     /**
@@ -231,8 +281,7 @@ abstract class SpiritNeuron(cid: Cid): SpiritDynamicConcept(cid) {
         if(effSize == 0)
             _effects = Array<Effect>(1){ eff }
         else {
-            _effects = Arrays.copyOf(_effects, _effects!!.size+1)
-            _effects!![_effects!!.lastIndex] = eff
+            _effects = Arrays.copyOf(_effects, _effects!!.size+1).also { it[it.lastIndex] = eff }
         }
     }
 
@@ -273,7 +322,13 @@ abstract class SpiritNeuron(cid: Cid): SpiritDynamicConcept(cid) {
 
     //---$$$---$$$---$$$---$$$---$$$ protected data ---$$$---$$$---$$$---$$$---$$$--
 
+    /** Effects. Assign only whole arrays of set up effects, since the upper bounds are copied into upperBounds_ on
+        assignment. */
     protected var _effects: Array<Effect>? = null
+        set(value) {
+            field = value
+            upperBounds_ = if(value == null) null else FloatArray(value.size) { value[it].upperBound }
+        }
 
     //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
     //
@@ -283,14 +338,44 @@ abstract class SpiritNeuron(cid: Cid): SpiritDynamicConcept(cid) {
 
     //---%%%---%%%---%%%---%%%--- private data ---%%%---%%%---%%%---%%%---%%%---%%%
 
+    /** Upper bounds of the effects in a flat array for the effect selection. */
+    private var upperBounds_: FloatArray? = null
+
     //---%%%---%%%---%%%---%%%--- private funcs ---%%%---%%%---%%%---%%%---%%%---%%%
 }
 
 /** Live. */
 abstract class Neuron(spNeuron: SpiritNeuron): DynamicConcept(spNeuron), ActivationIfc {
 
-    override var activation = -1f   // anactivated by default
+    /** Activation, anactivated by default. In a branch it is kept in the branch's activation store. The change is
+        reported to the branch, since neurons can be premises of other neurons. */
+    override var activation: Float
+        get() {
+            val br = branch
+            return if(br == null) activation_ else br.activations.values[slot]
+        }
+        set(value) {
+            val br = branch
+            if(br == null) {
+                activation_ = value
+                return
+            }
+            val values = br.activations.values
+            val old = values[slot]
+            values[slot] = value
+            if(old != value) br.activationChanged(cid, old, value)
+        }
 
+    /** Some of the premises changed activation since the last calculation. Set by the branch, reset by the reasoning
+        before calculating the activation. */
+    var inputsChanged = true
+
+    override fun clone(): Neuron {
+        val o = super.clone() as Neuron
+        o.inputsChanged = true
+        o.activation_ = activation      // the clone will not be in the branch's store
+        return o
+    }
 
     /**
                 Calculate activation based on premises or lots.
@@ -301,6 +386,9 @@ abstract class Neuron(spNeuron: SpiritNeuron): DynamicConcept(spNeuron), Activat
     fun calculateActivationAndSelectEffect(br: Branch): Effect {
         return (sp as SpiritNeuron).selectEffect(calculateActivation(br))
     }
+
+    /** Activation out of a branch. */
+    private var activation_ = -1f
 }
 
 abstract class SpiritLogicalNeuron(cid: Cid): SpiritNeuron(cid) {
@@ -308,6 +396,20 @@ abstract class SpiritLogicalNeuron(cid: Cid): SpiritNeuron(cid) {
     val premises: Array<Prem>?
         get() = _premises
 
+    /** Bits of the not negated premises, 64 premises per word. Rebuilt on every change of the premises. */
+    val posMask: LongArray?
+        get() = posMask_
+
+    /** Bits of the negated premises, 64 premises per word. */
+    val negMask: LongArray?
+        get() = negMask_
+
+    override fun collectCidRefs(refs: MutableCollection<Cid>) {
+        super.collectCidRefs(refs)
+        if(_premises != null)
+            for(prem in _premises!!) refs.add(prem.premCid)
+    }
+
     override fun toString(): String {
         var s = super.toString()
         if(_premises == null)
@@ -434,11 +536,154 @@ abstract class SpiritLogicalNeuron(cid: Cid): SpiritNeuron(cid) {
     //---$$$---$$$---$$$---$$$---$$$ protected data ---$$$---$$$---$$$---$$$---$$$--
 
     protected var _premises: Array<Prem>? = null
+        set(value) {
+            field = value
+            if(value == null) {
+                posMask_ = null
+                negMask_ = null
+            }
+            else {
+                val pos = LongArray((value.size + 63) ushr 6)
+                val neg = LongArray(pos.size)
+                for((i, prem) in value.withIndex())
+                    if(prem.negated)
+                        neg[i ushr 6] = neg[i ushr 6] or (1L shl i)
+                    else
+                        pos[i ushr 6] = pos[i ushr 6] or (1L shl i)
+                posMask_ = pos
+                negMask_ = neg
+            }
+        }
+
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+    //
+    //                               Private
+    //
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+
+    //---%%%---%%%---%%%---%%%--- private data ---%%%---%%%---%%%---%%%---%%%---%%%
+
+    /** Bits of the not negated premises by their indexes. */
+    private var posMask_: LongArray? = null
+
+    /** Bits of the negated premises by their indexes. */
+    private var negMask_: LongArray? = null
 }
 
-/** Live. */
+/**
+ *      Live. When the neuron is in a branch, the branch keeps BIN-normalized activations of its premises packed in a
+ *  bitset: it tells the neuron about every premise, that changed its sign. Then satisfied premises are calculated word by
+ *  word against the masks of the spirit neuron, 64 premises at a time, without touching the premise concepts. Along with the
+ *  bits the number of the satisfied premises is kept, so that And, Or and Threshold are calculated in O(1). Out of a
+ *  branch (_active == null) the words are packed on the fly from the premises.
+ */
 abstract class LogicalNeuron(spLogicalNeuron: SpiritLogicalNeuron): Neuron(spLogicalNeuron) {
     override fun normalization() = ActivationIfc.NormalizationType.BIN
+
+    override fun clone(): LogicalNeuron {
+        val o = super.clone() as LogicalNeuron
+        o._active = null        // will be set up anew in the branch of the clone
+        o._satisfiedCount = 0
+        return o
+    }
+
+    /**
+     *      Pack the current activations of the premises. Called by the branch on putting the neuron into its live map.
+     *  @param br the branch
+     */
+    fun initActive(br: Branch) {
+        val premises = (sp as SpiritLogicalNeuron).premises
+        val act = LongArray(((premises?.size?: 0) + 63) ushr 6) { packWord_(br, premises!!, it) }
+        _active = act
+        _satisfiedCount = 0
+        for(w in act.indices) _satisfiedCount += java.lang.Long.bitCount(_satisfiedWord(br, w))
+    }
+
+    /**
+     *      A premise changed its sign, update its bit and the satisfied count.
+     *  @param index index of the premise in the premises array
+     *  @param active new activation of the premise is positive
+     */
+    fun premiseFlipped(index: Int, active: Boolean) {
+        val act = _active?: return
+        val w = index ushr 6
+        val bit = 1L shl index
+        if((act[w] and bit != 0L) == active) return
+        act[w] = act[w] xor bit
+
+        // A not negated premise gets satisfied on activation, a negated one on anactivation
+        if      // is the premise satisfied now?
+                ((((sp as SpiritLogicalNeuron).posMask!![w] and bit) != 0L) == active)
+            _satisfiedCount++
+        else
+            _satisfiedCount--
+    }
+
+    //~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$
+    //
+    //                                  Protected
+    //
+    //~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$
+
+    //---$$$---$$$---$$$---$$$---$$$ protected data ---$$$---$$$---$$$---$$$---$$$--
+
+    /** Bits of the active premises by their indexes, negations not applied. null if not kept by a branch. */
+    protected var _active: LongArray? = null
+
+    /** Number of the satisfied (respecting negation) premises. Valid only if _active is not null. */
+    protected var _satisfiedCount = 0
+
+    //---$$$---$$$---$$$---$$$---$$$ protected funcs ---$$$---$$$---$$$---$$$---$$$--
+
+    /** Number of the words in the bitsets of the premises. */
+    protected val _words: Int
+        get() = (sp as SpiritLogicalNeuron).posMask?.size?: 0
+
+    /**
+     *      Get the satisfied (respecting negation) premises of a word: an active premise satisfies if it is not negated, an
+     *  inactive one if it is.
+     *  @param br the branch
+     *  @param w index of the word
+     *  @return bits of the satisfied premises
+     */
+    protected fun _satisfiedWord(br: Branch, w: Int): Long {
+        val spNeuron = sp as SpiritLogicalNeuron
+        val act = _active
+        val bits = if(act != null) act[w] else packWord_(br, spNeuron.premises!!, w)
+        return bits and spNeuron.posMask!![w] or (bits.inv() and spNeuron.negMask!![w])
+    }
+
+    /**
+     *      Check if all premises of a word are satisfied.
+     *  @param br the branch
+     *  @param w index of the word
+     */
+    protected fun _allSatisfied(br: Branch, w: Int): Boolean {
+        val spNeuron = sp as SpiritLogicalNeuron
+        return _satisfiedWord(br, w) == spNeuron.posMask!![w] or spNeuron.negMask!![w]
+    }
+
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+    //
+    //                               Private
+    //
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+
+    //---%%%---%%%---%%%---%%%--- private funcs ---%%%---%%%---%%%---%%%---%%%---%%%
+
+    /**
+     *      Pack BIN-normalized activations of up to 64 premises into a word.
+     *  @param br the branch
+     *  @param premises premises of the neuron
+     *  @param w index of the word
+     *  @return bits of the active premises
+     */
+    private fun packWord_(br: Branch, premises: Array<Prem>, w: Int): Long {
+        var bits = 0L
+        for(i in (w shl 6) until Math.min(premises.size, (w + 1) shl 6))
+            if((br[premises[i].premCid] as ActivationIfc).activation > 0) bits = bits or (1L shl i)
+        return bits
+    }
 }
 
 /**
@@ -447,12 +692,13 @@ abstract class LogicalNeuron(spLogicalNeuron: SpiritLogicalNeuron): Neuron(spLog
  *  ]upBound, Float.POSITIVE_INFINITY].
  *
  *  For typealias Cid=Int used the IntArray arrays. If Cid changes for Long, for example, it also must be changed.
+ *  Effects are immutable, since they are shared by the branches and the cutoff/no span ones by all neurons.
  */
 class Effect(
-    var upperBound: Float,              // the upper boundary of the span, including
-    var actCids: IntArray? = null,      // Array of cids of acts. null or [] - no acts for this span
-    var branCids: IntArray? = null,     // Array of cids of brans. null or [] - no new brans for this span
-    var stemCid: Cid = 0                // 0 - stay on the current stemCid
+    val upperBound: Float,              // the upper boundary of the span, including
+    val actCids: IntArray? = null,      // Array of cids of acts. null or [] - no acts for this span
+    val branCids: IntArray? = null,     // Array of cids of brans. null or [] - no new brans for this span
+    val stemCid: Cid = 0                // 0 - stay on the current stemCid
 ) {
     override fun toString(): String {
         var s = this::class.qualifiedName?: ""
@@ -24,10 +24,37 @@ abstract class SpiritPremise(cid: Cid): SpiritDynamicConcept(cid) {
  *          Base for live premises.
  */
 abstract class Premise(spiritDynamicConcept: SpiritDynamicConcept): DynamicConcept(spiritDynamicConcept), ActivationIfc {
-    override var activation: Float = -1f
+
+    /** Activation. In a branch it is kept in the branch's activation store. The change is reported to the branch, so
+        that the neurons depending on the premise get updated. */
+    override var activation: Float
+        get() {
+            val br = branch
+            return if(br == null) activation_ else br.activations.values[slot]
+        }
+        set(value) {
+            val br = branch
+            if(br == null) {
+                activation_ = value
+                return
+            }
+            val values = br.activations.values
+            val old = values[slot]
+            values[slot] = value
+            if(old != value) br.activationChanged(cid, old, value)
+        }
 
     override fun normalization() = ActivationIfc.NormalizationType.BIN
 
+    /**
+     *      The clone takes the current activation with it, since it will not be in the branch's store.
+     */
+    override fun clone(): Premise {
+        val o = super.clone() as Premise
+        o.activation_ = activation
+        return o
+    }
+
 
     /**
      *      Copy live concepts, without copying spirit part.
@@ -42,6 +69,17 @@ abstract class Premise(spiritDynamicConcept: SpiritDynamicConcept): DynamicConce
         s += "\n    activation = $activation"
         return s
     }
+
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+    //
+    //                               Private
+    //
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+
+    //---%%%---%%%---%%%---%%%--- private data ---%%%---%%%---%%%---%%%---%%%---%%%
+
+    /** Activation out of a branch. */
+    private var activation_ = -1f
 }
 
 /**
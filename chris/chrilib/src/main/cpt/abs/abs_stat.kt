@@ -3,7 +3,12 @@ package cpt.abs
 import atn.Branch
 import basemain.Cid
 
-open class SpStaticConcept(cid: Cid): SpiritConcept(cid)
+open class SpStaticConcept(cid: Cid): SpiritConcept(cid) {
+
+    /** The functor sends messages out of the branch, so a branch, that runs it, cannot be detached (see SpBreed.pure). */
+    open val messaging: Boolean
+        get() = false
+}
 
 /**
  *      Functor: fun(Branch): Unit
@@ -10,7 +10,6 @@ import atn.Branch
 import basemain.Cid
 import cpt.abs.*
 import db.SerializedConceptData
-import libmain._sm_
 import libmain.cidNamed
 import libmain.namedCid
 
@@ -31,7 +30,7 @@ class SpA(cid: Cid): SpiritAction(cid) {
      */
     override fun run(br: Branch) {
         assert(_statCid != 0 ) {"Action ${namedCid(cid)} is not initialized"}
-        (_sm_[_statCid] as F).func(br)
+        (br.spiritConcept(_statCid) as F).func(br)
     }
 
     /**
@@ -75,6 +74,10 @@ class SpA_Cid(cid: Cid): SpiritAction(cid) {
         }
     }
 
+    override fun collectCidRefs(refs: MutableCollection<Cid>) {
+        if(p1Cid_ != 0) refs.add(p1Cid_)
+    }
+
     override fun serialize(stableSuccSpace: Int, tranSuccSpace: Int): SerializedConceptData {
         val sCD = super.serialize(
             stableSuccSpace + Cid.SIZE_BYTES + Cid.SIZE_BYTES,
@@ -102,7 +105,7 @@ class SpA_Cid(cid: Cid): SpiritAction(cid) {
      */
     override fun run(br: Branch) {
         assert(_statCid != 0 && p1Cid_ != 0) {"Action ${namedCid(cid)} is not initialized"}
-        (_sm_[_statCid] as FCid).func(br, p1Cid_)
+        (br.spiritConcept(_statCid) as FCid).func(br, p1Cid_)
     }
 
     /**
@@ -152,6 +155,11 @@ class SpA_2Cid(cid: Cid): SpiritAction(cid) {
         }
     }
 
+    override fun collectCidRefs(refs: MutableCollection<Cid>) {
+        if(p1Cid_ != 0) refs.add(p1Cid_)
+        if(p2Cid_ != 0) refs.add(p2Cid_)
+    }
+
     override fun serialize(stableSuccSpace: Int, tranSuccSpace: Int): SerializedConceptData {
         val sCD = super.serialize(
             stableSuccSpace + 3*Cid.SIZE_BYTES,
@@ -181,7 +189,7 @@ class SpA_2Cid(cid: Cid): SpiritAction(cid) {
      */
     override fun run(br: Branch) {
         assert(_statCid != 0 && p1Cid_ != 0 && p2Cid_ != 0) {"Action ${namedCid(cid)} is not initialized"}
-        (_sm_[_statCid] as F2Cid).func(br, p1Cid_, p2Cid_)
+        (br.spiritConcept(_statCid) as F2Cid).func(br, p1Cid_, p2Cid_)
     }
 
     /**
@@ -252,6 +260,10 @@ class SpA_LCid(cid: Cid): SpiritAction(cid) {
         }
     }
 
+    override fun collectCidRefs(refs: MutableCollection<Cid>) {
+        if(pVar_ != null) for(cid in pVar_!!) refs.add(cid)
+    }
+
     override fun serialize(stableSuccSpace: Int, tranSuccSpace: Int): SerializedConceptData {
         val pVarSize = pVar_?.size?:0
         val sCD = super.serialize(
@@ -285,7 +297,7 @@ class SpA_LCid(cid: Cid): SpiritAction(cid) {
      */
     override fun run(br: Branch) {
         assert(_statCid != 0 && pVar_ != null) {"Action ${namedCid(cid)} is not initialized"}
-        (_sm_[_statCid] as FLCid).func(br, *pVar_ as IntArray)
+        (br.spiritConcept(_statCid) as FLCid).func(br, *pVar_ as IntArray)
     }
 
     /**
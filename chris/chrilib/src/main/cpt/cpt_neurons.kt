@@ -2,7 +2,14 @@ package cpt
 
 import atn.Branch
 import basemain.Cid
+import basemain.LEARNING_SUBMIT_SIZE
+import basemain.esquash
+import basemain.weightedSum
 import cpt.abs.*
+import db.SerializedConceptData
+import libmain.NeuronSendsWriterWeightDeltasMsg
+import libmain._lw_
+import libmain.cidNamed
 import libmain.namedCid
 import java.util.*
 
@@ -32,7 +39,8 @@ open class SpActionNeuron(cid: Cid): SpiritNeuron(cid) {
      */
     fun stem(newStem: SpiritNeuron) {
         assert(_effects != null && _effects!!.size == 1) {"This neuron action must be loaded by the time."}
-        _effects!![0].stemCid = newStem.cid
+        val eff = _effects!![0]
+        _effects!![0] = Effect(eff.upperBound, eff.actCids, eff.branCids, newStem.cid)        // the effects are immutable
     }
 
     init {
@@ -62,19 +70,286 @@ class SpSeed(cid: Cid): SpActionNeuron(cid) {
 /** Live. */
 class Seed(spSeed: SpSeed): ActionNeuron(spSeed)
 
+/**
+ *      Neuron, whose activation is the exponentially squashed weighted sum of its premises' activations plus bias. Premise
+ *  cids and weights are kept in parallel arrays, so there can be hundreds of premises with no object per premise.
+ */
 class SpWeightNeuron(cid: Cid): SpiritNeuron(cid) {
+
+    /** Bias, the weighted sum starts with it. */
+    var bias: Float = 0f
+
+    /** Number of premises. */
+    val size: Int
+        get() = premCids_?.size?: 0
+
     override fun liveFactory(): WeightNeuron {
         return WeightNeuron(this)
     }
+
+    override fun toString(): String {
+        var s = super.toString()
+        s += "\n    bias = $bias"
+        s += "\n    premises = ["
+        for(i in 0 until size)
+            s += "\n        ${cidNamed(premCids_!![i])}: ${weights_!![i]}" + if(learned_ == null) "" else " + ${learned_!![i]}"
+        s += "\n    ]"
+
+        return s
+    }
+
+    override fun equals(other: Any?): Boolean {
+        if(super.equals(other) == false)
+            return false
+        else {
+            val o = other as SpWeightNeuron
+            if(bias != o.bias || size != o.size) return false
+            for(i in 0 until size)
+                if(premCids_!![i] != o.premCids_!![i] || weights_!![i] != o.weights_!![i]) return false
+
+            return true
+        }
+    }
+
+    override fun serialize(stableSuccSpace: Int, tranSuccSpace: Int): SerializedConceptData {
+        val size = size
+        val learned = learned_
+        val sCD = super.serialize(
+            stableSuccSpace + 4 + 4 + size*(Cid.SIZE_BYTES + 4),     // bias + data size + cids + weights
+            tranSuccSpace + if(learned == null) 0 else 4 + size*4   // data size + learned adjustments
+        )
+
+        val stable = sCD.stable!!
+        stable.putFloat(bias)
+        stable.putInt(size)
+        if(size > 0) {
+            stable.asIntBuffer().put(premCids_)
+            stable.position(stable.position() + size*Cid.SIZE_BYTES)
+            stable.asFloatBuffer().put(weights_)
+            stable.position(stable.position() + size*4)
+        }
+        if(learned != null) {
+            val transient = sCD.transient!!
+            transient.putInt(size)
+            transient.asFloatBuffer().put(learned)
+            transient.position(transient.position() + size*4)
+        }
+
+        return sCD
+    }
+
+    override fun deserialize(sCD: SerializedConceptData) {
+        super.deserialize(sCD)
+
+        val stable = sCD.stable!!
+        bias = stable.getFloat()
+        val size = stable.getInt()
+        if(size > 0) {
+            premCids_ = IntArray(size).also { stable.asIntBuffer().get(it) }
+            stable.position(stable.position() + size*Cid.SIZE_BYTES)
+            weights_ = FloatArray(size).also { stable.asFloatBuffer().get(it) }
+            stable.position(stable.position() + size*4)
+        }
+        else {
+            premCids_ = null
+            weights_ = null
+        }
+
+        // The learned adjustments, if any
+        val transient = sCD.transient
+        if(transient != null && transient.remaining() >= 4) {
+            val learnedSize = transient.getInt()
+            assert(learnedSize == size) {"Cid $cid: $learnedSize learned adjustments for $size weights."}
+            learned_ = FloatArray(learnedSize).also { transient.asFloatBuffer().get(it) }
+            transient.position(transient.position() + learnedSize*4)
+        }
+        else
+            learned_ = null
+        effWeights_ = effWeights_()
+    }
+
+    override fun collectCidRefs(refs: MutableCollection<Cid>) {
+        super.collectCidRefs(refs)
+        if(premCids_ != null) for(cid in premCids_!!) refs.add(cid)
+    }
+
+    /**
+     *      Add a premise with its weight.
+     *  @param prem premise or neuron, i.e. concept, whose live counterpart implements ActivationIfc
+     *  @param weight weight of the premise
+     */
+    fun addPrem(prem: SpiritDynamicConcept, weight: Float): SpWeightNeuron {
+        val size = size
+        premCids_ = if(premCids_ == null) IntArray(1) else Arrays.copyOf(premCids_, size + 1)
+        weights_ = if(weights_ == null) FloatArray(1) else Arrays.copyOf(weights_, size + 1)
+        premCids_!![size] = prem.cid
+        weights_!![size] = weight
+        if(learned_ != null) learned_ = Arrays.copyOf(learned_, size + 1)
+        effWeights_ = effWeights_()
+
+        return this
+    }
+
+    /**
+     *      Fold adjustments of the weights into the learned ones. Called by the learning writer on a copy of the head, that
+     *  is committed afterwards. The weights used by calculations are replaced as a whole.
+     *  @param deltas adjustments of the weights in the order of premises
+     */
+    @Synchronized fun learn(deltas: FloatArray) {
+        assert(deltas.size == size) {"Cid $cid: ${deltas.size} adjustments for $size weights."}
+        val learned = learned_?: FloatArray(size)
+        for(i in 0 until size)
+            learned[i] += deltas[i]
+        learned_ = learned
+        effWeights_ = effWeights_()
+    }
+
+    /**
+     *      Weighted sum of the premises' activations plus bias.
+     *  @param activations activations of the premises in the order of premises
+     *  @return the sum
+     */
+    fun weightedSum(activations: FloatArray): Float {
+        return if(size == 0) bias else weightedSum(effWeights_!!, activations, size, bias)
+    }
+
+    /**
+     *      Cid of a premise.
+     *  @param index index of the premise
+     */
+    fun premCid(index: Int) = premCids_!![index]
+
+    /**
+     *      Weight of a premise with the learned adjustment.
+     *  @param index index of the premise
+     */
+    fun weight(index: Int) = effWeights_!![index]
+
+    /**
+     *      Learned adjustment of the weight of a premise.
+     *  @param index index of the premise
+     */
+    fun learned(index: Int) = learned_?.get(index)?: 0f
+
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+    //
+    //                               Private
+    //
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+
+    //---%%%---%%%---%%%---%%%--- private data ---%%%---%%%---%%%---%%%---%%%---%%%
+
+    /** Cids of the premises. */
+    private var premCids_: IntArray? = null
+
+    /** Weights of the premises, parallel to premCids_. */
+    private var weights_: FloatArray? = null
+
+    /** Learned adjustments of the weights, parallel to weights_. They are kept in the transient data. null if nothing
+        was learned. */
+    private var learned_: FloatArray? = null
+
+    /** Weights with the learned adjustments, used in calculations. */
+    @Volatile private var effWeights_: FloatArray? = null
+
+    //---%%%---%%%---%%%---%%%--- private funcs ---%%%---%%%---%%%---%%%---%%%---%%%
+
+    /**
+     *      Build the weights with the learned adjustments.
+     */
+    private fun effWeights_(): FloatArray? {
+        val learned = learned_?: return weights_
+        return FloatArray(size) { weights_!![it] + learned[it] }
+    }
 }
 
+/** Live. */
 class WeightNeuron(spWeightNeuron: SpWeightNeuron): Neuron(spWeightNeuron) {
 
+    /**
+     *      Calculate activation as the exponentially squashed weighted sum of the premises' activations plus bias.
+     *  The activations are gathered into an array, kept in the live neuron, and summed up in one pass. In the neuron's
+     *  branch they are gathered from the activation store by slots.
+     */
     override fun calculateActivation(br: Branch): Float {
-        TODO("not implemented") //To change body of created functions use File | Settings | File Templates.
+        val spWn = sp as SpWeightNeuron
+        val size = spWn.size
+        var values = values_
+        if(values == null || values.size < size) {
+            values = FloatArray(size)
+            values_ = values
+        }
+        if      // is the neuron in this branch?
+                (branch === br)
+        {   //yes: gather the activations straight from the branch's store by the premises' slots
+            val slots = slots_?: IntArray(size) { br[spWn.premCid(it)].slot }.also { slots_ = it }
+            val store = br.activations.values
+            for(i in 0 until size)
+                values[i] = store[slots[i]]
+        }
+        else
+            for(i in 0 until size)
+                values[i] = (br[spWn.premCid(i)] as ActivationIfc).activation
+
+        val weights = weights_
+        activation = esquash(if(weights == null) spWn.weightedSum(values) else weightedSum(weights, values, size, spWn.bias))
+        return activation
+    }
+
+    /**
+     *      Adjust the weight of a premise. The adjustment takes effect in this neuron at once. For the spirit neuron the
+     *  adjustments are accumulated and sent to the learning writer in portions.
+     *  @param index index of the premise
+     *  @param delta the adjustment
+     */
+    fun adjustWeight(index: Int, delta: Float) {
+        val spWn = sp as SpWeightNeuron
+        val weights = weights_?: FloatArray(spWn.size) { spWn.weight(it) }.also { weights_ = it }
+        weights[index] += delta
+        val deltas = deltas_?: FloatArray(spWn.size).also { deltas_ = it }
+        deltas[index] += delta
+        if(++adjustments_ >= LEARNING_SUBMIT_SIZE) submitLearning()
+    }
+
+    /**
+     *      Send the accumulated adjustments to the learning writer.
+     */
+    fun submitLearning() {
+        val deltas = deltas_?: return
+        _lw_.putInQueue(NeuronSendsWriterWeightDeltasMsg(sp as SpWeightNeuron, deltas))
+        deltas_ = null
+        adjustments_ = 0
     }
 
     override fun normalization() = ActivationIfc.NormalizationType.ESQUASH
+
+    override fun clone(): WeightNeuron {
+        val o = super.clone() as WeightNeuron
+        o.values_ = null        // the scratch array must not be shared between brans
+        o.slots_ = null
+        o.weights_ = weights_?.clone()
+        o.deltas_ = null        // the adjustments are submitted by the original
+        o.adjustments_ = 0
+        return o
+    }
+
+    //---%%%---%%%---%%%---%%%--- private data ---%%%---%%%---%%%---%%%---%%%---%%%
+
+    /** Scratch array for the premises' activations. */
+    private var values_: FloatArray? = null
+
+    /** Slots of the premises in the activation store of the branch. They do not change for the life of the branch, since
+        a replaced concept hands over its slot to the new one. */
+    private var slots_: IntArray? = null
+
+    /** Weights with the adjustments made by this neuron. null until the first adjustment, the spirit weights are used. */
+    private var weights_: FloatArray? = null
+
+    /** Adjustments not yet submitted to the learning writer. */
+    private var deltas_: FloatArray? = null
+
+    /** Number of the adjustments not yet submitted. */
+    private var adjustments_ = 0
 }
 
 /**
@@ -96,25 +371,133 @@ class AndNeuron(spAndNeuron: SpAndNeuron): LogicalNeuron(spAndNeuron) {
     */
     override fun calculateActivation(br: Branch): Float {
 
-        val premises = (sp as SpiritLogicalNeuron).premises
-        if (premises != null && !premises.isEmpty())
-            for(prem in premises) {
-                val premCpt = br[prem.premCid] as ActivationIfc
-                if(premCpt.activation <= 0 && !prem.negated || premCpt.activation > 0 && prem.negated) {
-                    anactivate()
-                    return activation
-                }
-            }
-        else {
+        val words = _words
+        if(words == 0) {
             anactivate()
             return activation
         }
 
+        if      // are the bits kept by the branch?
+                (_active != null)
+        {   //yes: the satisfied count tells it
+            if(_satisfiedCount == (sp as SpiritLogicalNeuron).premises!!.size) activate() else anactivate()
+            return activation
+        }
+
+        for(w in 0 until words)
+            if(!_allSatisfied(br, w)) {
+                anactivate()
+                return activation
+            }
+
         activate()
         return activation
     }
 }
 
+/**
+ *      Premises comply boolean logic "Or" (with respect to negations).
+ */
+class SpOrNeuron(cid: Cid): SpiritLogicalNeuron(cid) {
+    override fun liveFactory(): OrNeuron {
+        return OrNeuron(this)
+    }
+}
+
+/** Live. */
+class OrNeuron(spOrNeuron: SpOrNeuron): LogicalNeuron(spOrNeuron) {
+
+    /**
+     *      Calculate activation based on premises.
+     *  @return activation value. Activation is 1 if at least one premise is satisfied, else it is -1. If the list of
+     *          premises is empty, activation is -1.
+     */
+    override fun calculateActivation(br: Branch): Float {
+        if      // are the bits kept by the branch?
+                (_active != null)
+        {   //yes: the satisfied count tells it
+            if(_satisfiedCount > 0) activate() else anactivate()
+            return activation
+        }
+
+        for(w in 0 until _words)
+            if(_satisfiedWord(br, w) != 0L) {
+                activate()
+                return activation
+            }
+
+        anactivate()
+        return activation
+    }
+}
+
+/**
+ *      Premises comply the "k of n" logic: at least threshold premises (with respect to negations) must be satisfied.
+ *  Threshold 1 makes it the "Or" neuron, threshold equal to the number of premises makes it the "And" neuron.
+ */
+class SpThresholdNeuron(cid: Cid): SpiritLogicalNeuron(cid) {
+
+    /** Minimal number of satisfied premises to activate the neuron. */
+    var threshold: Int = 1
+
+    override fun liveFactory(): ThresholdNeuron {
+        return ThresholdNeuron(this)
+    }
+
+    override fun toString(): String {
+        return super.toString() + "\n    threshold = $threshold"
+    }
+
+    override fun equals(other: Any?): Boolean {
+        return super.equals(other) && threshold == (other as SpThresholdNeuron).threshold
+    }
+
+    override fun serialize(stableSuccSpace: Int, tranSuccSpace: Int): SerializedConceptData {
+        val sCD = super.serialize(
+            stableSuccSpace = stableSuccSpace + Int.SIZE_BYTES,
+            tranSuccSpace = tranSuccSpace + 0
+        )
+        sCD.stable!!.putInt(threshold)
+        return sCD
+    }
+
+    override fun deserialize(sCD: SerializedConceptData) {
+        super.deserialize(sCD)
+        threshold = sCD.stable!!.getInt()
+    }
+}
+
+/** Live. */
+class ThresholdNeuron(spThresholdNeuron: SpThresholdNeuron): LogicalNeuron(spThresholdNeuron) {
+
+    /**
+     *      Calculate activation based on premises.
+     *  @return activation value. Activation is 1 if the number of satisfied premises reaches the threshold, else it is -1.
+     *          If the list of premises is empty, activation is -1.
+     */
+    override fun calculateActivation(br: Branch): Float {
+        val threshold = (sp as SpThresholdNeuron).threshold
+        if      // are the bits kept by the branch?
+                (_active != null)
+        {   //yes: the satisfied count tells it
+            if(_words > 0 && _satisfiedCount >= threshold) activate() else anactivate()
+            return activation
+        }
+
+        var count = 0
+        for(w in 0 until _words) {
+            count += java.lang.Long.bitCount(_satisfiedWord(br, w))
+            if(count >= threshold) {
+                activate()
+                return activation
+            }
+        }
+
+        anactivate()
+        return activation
+    }
+}
+
 /**
  *      Neuron, whose premises are checked one after another (in respect of negations) until an active one found. Then
  *  corresponding effect is chosen. The "corresponding" exactly means, that the first premise has activation 1, the second
@@ -150,17 +533,15 @@ class SpPickNeuron(cid: Cid): SpiritLogicalNeuron(cid) {
         assert(prem != null) {"Premise cannot be null here."}
         if(_premises == null)
             _premises = Array<Prem>(1){ prem!! }
-        else {
-            _premises = Arrays.copyOf(_premises, _premises!!.size + 1)
-            _premises!![_premises!!.lastIndex] = prem!!
-        }
+        else
+            _premises = Arrays.copyOf(_premises, _premises!!.size + 1).also { it[it.lastIndex] = prem!! }
 
         if(effSize == 0)
             _effects = Array<Effect>(1) { Effect(upperBound = 1f, actCids = actCids, branCids = branCids, stemCid = stemCid) }
         else {
             val upperBound = _effects!![effSize - 1].upperBound + 1f
-            _effects = Arrays.copyOf(_effects, effSize + 1)
-            _effects!![effSize] = Effect(upperBound = upperBound, actCids = actCids, branCids = branCids, stemCid = stemCid)
+            _effects = Arrays.copyOf(_effects, effSize + 1).also {
+                it[effSize] = Effect(upperBound = upperBound, actCids = actCids, branCids = branCids, stemCid = stemCid) }
         }
     }
 
@@ -193,18 +574,16 @@ class PickNeuron(spPickNeuron: SpPickNeuron): LogicalNeuron(spPickNeuron) {
      */
     override fun calculateActivation(br: Branch): Float {
         val premises = (sp as SpiritLogicalNeuron).premises
-        if(premises == null) {
+        if(premises == null || _active != null && _satisfiedCount == 0) {
             anactivate()
             return activation
         }
 
-        var actvn = 0f
-        for(prem in premises) {
-            actvn += 1f
-            val premCpt = (br[prem.premCid] as ActivationIfc)
-            if(premCpt.activation > 0 && !prem.negated || premCpt.activation <= 0 && prem.negated) {
-                activation = actvn
-                return actvn
+        for(w in 0 until _words) {
+            val satisfied = _satisfiedWord(br, w)
+            if(satisfied != 0L) {
+                activation = ((w shl 6) + java.lang.Long.numberOfTrailingZeros(satisfied) + 1).toFloat()
+                return activation
             }
         }
 
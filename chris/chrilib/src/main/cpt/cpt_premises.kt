@@ -65,21 +65,38 @@ class SpBreed(cid: Cid): SpBradPrem(cid) {
     var outs: IntArray? = null
         private set(v) {field = v}
 
+    /** The branch of the breed is a pure computation over its ins: it neither spawns brans nor messages, and finishes in
+        one reasoning call. Such brans can be run in parallel out of the pods (see Branch.reasoning()). The flag is checked
+        against the breed's closure, when its template is built (see BranchTemplates.detachable()). */
+    var pure: Boolean = false
+        private set(v) {field = v}
+
     override fun toString(): String {
         var s = super.toString()
         s += "\n    seedCid = ${cidNamed(seedCid)}"
         s += "\n${arrayOfCidsNamed("ins", ins)}".replace("\n", "\n    ")
         s += "\n${arrayOfCidsNamed("outs", outs)}".replace("\n", "\n    ")
+        s += "\n    pure = $pure"
 
         return s
     }
 
+    /**
+     *      Only ins and outs are referred to, since they live in both parent and child brans. The seed is not, it and the
+     *  concepts after it live only in the child.
+     */
+    override fun collectCidRefs(refs: MutableCollection<Cid>) {
+        if(ins != null) for(cid in ins!!) refs.add(cid)
+        if(outs != null) for(cid in outs!!) refs.add(cid)
+    }
+
     override fun equals(other: Any?): Boolean {
         if(super.equals(other) == false)
             return false
         else {
             val o = other as SpBreed
             if(seedCid != o.seedCid) return false
+            if(pure != o.pure) return false
 
             val insSize = ins?.size?:0
             if(insSize != o.ins?.size?:0) return false
@@ -101,7 +118,8 @@ class SpBreed(cid: Cid): SpBradPrem(cid) {
 
         val sCD = super.serialize(
             stableSuccSpace + Cid.SIZE_BYTES + Int.SIZE_BYTES + Int.SIZE_BYTES*insSize  // seedCid + ints size + ints +
-                    + Int.SIZE_BYTES + Int.SIZE_BYTES*outsSize,                                       // outs size + outs
+                    + Int.SIZE_BYTES + Int.SIZE_BYTES*outsSize                                        // outs size + outs +
+                    + 1,                                                                              // pure
             tranSuccSpace + 0
         )
 
@@ -113,6 +131,7 @@ class SpBreed(cid: Cid): SpBradPrem(cid) {
         stable.putInt(outsSize)
         for(i in 0 until outsSize)
             stable.putInt(outs!![i])
+        stable.put((if(pure) 1 else 0).toByte())
 
         return sCD
     }
@@ -135,6 +154,8 @@ class SpBreed(cid: Cid): SpBradPrem(cid) {
             outs = null
         else
             outs = IntArray(outsSize) { stable.getInt() }
+
+        pure = stable.hasRemaining() && stable.get() != 0.toByte()     // the rows, written before the flag, lack it
     }
 
     override fun liveFactory() = Breed(this)
@@ -144,9 +165,12 @@ class SpBreed(cid: Cid): SpBradPrem(cid) {
      *  @param seed Cid of the seed concept
      *  @param ins Cids of concepts, that must be injected into the created branch
      *  @param outs Cids of concepts, that are injected back to the parent branch on finishing of the child
+     *  @param pure the branch is a pure computation over the ins and can be run out of the pods
      */
-    fun load(seed: SpSeed, ins: Array<SpiritDynamicConcept>? = null, outs: Array<SpiritDynamicConcept>? = null): SpBreed {
+    fun load(seed: SpSeed, ins: Array<SpiritDynamicConcept>? = null, outs: Array<SpiritDynamicConcept>? = null,
+             pure: Boolean = false): SpBreed {
         this.seedCid = seed.cid
+        this.pure = pure
         this.ins = if(ins == null || ins.size == 0) null else IntArray(ins.size) {ins[it].cid}
         this.outs = if(outs == null || outs.size == 0) null else IntArray(outs.size) {outs[it].cid}
         return this
@@ -29,6 +29,8 @@ enum class Reg(val clazz: KClass<out SpiritDynamicConcept>, val clid: Clid) {
     _13_772(clazz = SpWeightNeuron::class, clid = 13_772),
     _1_121(clazz = SpAndNeuron::class, clid = 1_121),
     __20_770(clazz = SpPickNeuron::class, clid = -20_770),
+    __26_035(clazz = SpOrNeuron::class, clid = -26_035),
+    __18_796(clazz = SpThresholdNeuron::class, clid = -18_796),
 
     // premises
     _26_189(clazz = SpBradPrem::class, clid = 26_189),
@@ -44,8 +46,6 @@ enum class Reg(val clazz: KClass<out SpiritDynamicConcept>, val clid: Clid) {
     __5_006(clazz = SpNumPrim::class, clid = -5_006),
     __7_614(clazz = SpStringCidDict::class, clid = -7_614),
 
-    //__26_035(clazz = ::class, clid = -26_035),
-    //__18_796(clazz = ::class, clid = -18_796),
     //_16_390(clazz = ::class, clid = 16_390),
     //__25_733(clazz = ::class, clid = -25_733),
     //_2_756(clazz = ::class, clid = 2_756),
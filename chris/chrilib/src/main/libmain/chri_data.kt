@@ -1,17 +1,24 @@
 package libmain
 
 import atn.AttentionDispatcher
+import atn.BranchTemplates
+import atn.ConceptPrefetcher
 import atn.Podpool
 import basemain.CONFIG_FILE
+import basemain.CONFIG_FILE_PROPERTY
 import basemain.Cid
 import basemain.GDEBUG_LV
+import chribase_thread.LogThread
 import cpt.ClassRegistry
 
+/** Asynchronous logger for the debug lines. */
+val _logger_ = LogThread()
+
 /** Configuration parameters from the yaml config. */
 //var _conf_: Conf = parseConfigWithClassLoader(CONFIG_FILE)
 
 /** Configuration parameters from the yaml config. */
-var _conf_: Conf = parseConfigWithFile(CONFIG_FILE)
+var _conf_: Conf = parseConfigWithFile(System.getProperty(CONFIG_FILE_PROPERTY)?: CONFIG_FILE)
 
 /** The database manager. */
 val _dm_ = DbManager(_conf_)
@@ -22,6 +29,18 @@ val _cr_ = ClassRegistry()
 /** Shered spirit map object */
 val _sm_ = SpiritMap(_dm_)
 
+/** Templates of the live maps of brans by breeds. */
+val _bt_ = BranchTemplates()
+
+/** Background writer of the learned data of the spirit concepts. */
+val _lw_ = LearningWriter()
+
+/** Background collector of the stale concept versions. */
+val _vc_ = VersionCollector()
+
+/** Background loader of the concepts of the spawned breeds. */
+val _pf_ = ConceptPrefetcher()
+
 /** If the DEBUG_ON flag is on, this map is created and filled up. */
 val _nm_: HashMap<Cid, String>? = if(GDEBUG_LV >= 0) HashMap() else null
 
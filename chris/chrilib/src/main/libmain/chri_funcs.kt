@@ -1,6 +1,7 @@
 package libmain
 
 import basemain.Cid
+import db.SerializedConceptData
 import org.yaml.snakeyaml.Yaml
 import org.yaml.snakeyaml.constructor.Constructor
 import java.io.File
@@ -73,3 +74,18 @@ fun parseConfigWithFile(filePath: String): Conf {
     val inputStream = FileReader(File(filePath))
     return Yaml(Constructor(Conf::class.java)).load<Conf>(inputStream)
 }
+
+/**
+ *      Hash of the content of a serialized concept: its class and stable data (FNV-1a, 64 bit). Structurally identical
+ *  concepts get the same hash whatever their cids, versions and transient data.
+ *  @param sCD serialized concept
+ *  @return the hash
+ */
+fun contentHash(sCD: SerializedConceptData): Long {
+    var h = (-0x340d631b7bdddcdbL xor (sCD.clid.toLong() and 0xffff))*0x100000001b3L
+    val stable = sCD.stable?.array()?: return h
+    for(b in stable)
+        h = (h xor (b.toLong() and 0xff))*0x100000001b3L
+
+    return h
+}
@@ -3,8 +3,10 @@ package libmain
 import atn.Brad
 import atn.Pod
 import basemain.Cid
+import basemain.Ver
 import chribase_thread.CuteThread
 import chribase_thread.MessageMsg
+import cpt.SpWeightNeuron
 import cpt.abs.DynamicConcept
 
 data class ReaderSendsConsoleLineMsg(val text: String): MessageMsg()
@@ -30,9 +32,17 @@ data class BranchSendsUserItsBradMsg(val brad: Brad): MessageMsg()
  *  @param destBreedCid Cid of the breed for new branch
  *  @param destIns Array of live concepts to be injected into new branch
  *  @param parentBrad Address of the parent branch (for sending back report)
+ *  @param baseVer Base version of the parent, the child sees the concepts as of it
  */
 data class ParentRequestsPodpoolCreateChildMsg(val destBreedCid: Cid, val destIns: Array<out DynamicConcept>?,
-                                               val parentBrad: Brad): MessageMsg()
+                                               val parentBrad: Brad, val baseVer: Ver): MessageMsg()
+
+/**
+ *      Pod pool asks the prefetcher to load the concepts of the breed, then to forward the creation request to the pod.
+ *  @param pod the pod, chosen to host the branch
+ *  @param createMsg the request for creating branch
+ */
+class PodpoolRequestsPrefetcherLoadBreedMsg(val pod: Pod, val createMsg: ParentRequestsPodpoolCreateChildMsg): MessageMsg()
 
 /**
  *      After creation a branch pod reports the fact to podpool, so that it could put the pod back into the hostCanditates set.
@@ -74,6 +84,23 @@ class CircleTellsUserMsg(val text: String): MessageMsg()
  */
 class CirclePromptsUserMsg(): MessageMsg()
 
+/**
+ *      User requests a dump of the flight recorders. The pod pool forwards it to all pods, each pod logs the last steps of
+ *  its branches (only of the requested one, if the brid is given).
+ *  @param steps number of the last steps to dump for each branch
+ *  @param brid brid of the branch to dump, -1 for all branches
+ */
+class UserRequestsDumpFlightRecordersMsg(val steps: Int, val brid: Int = -1): MessageMsg() {
+    override fun toStr(): String {
+        return super.toStr() + ", steps = $steps, brid = $brid"
+    }
+}
+
+/**
+ *      User requests the reasoning metrics. The pod pool forwards it to all pods, each pod logs its metrics.
+ */
+class UserRequestsReasoningMetricsMsg(): MessageMsg()
+
 /**
  *      Base for messages addressed to other branches (inter branch messages). Sent by a branch to another branch. If
  *  cloned concept are passed between branches, they must be cloned at the sender's, not the receiving site to prevent
@@ -137,6 +164,14 @@ class ChildReportsParentItsTerminationIbr(destBrid: Int, val outs: Array<out Dyn
     }
 }
 
+/**
+ *      Parent branch requests termination of its child, when the parent is terminated itself before the child reported
+ *  its termination. The child terminates its own children the same way and is deleted from its pod without reporting
+ *  to the parent.
+ *  @param destBrid address of the child branch
+ */
+class ParentRequestsChildTerminationIbr(destBrid: Int): IbrMsg(destBrid)
+
 /**
  *      Activate concept remotely (i.e. another's branch live concept).
  *  @param destBrid identifier of the destination branch
@@ -187,4 +222,22 @@ class TransportSingleConceptIbr(destBrid: Int, val load: DynamicConcept): IbrMsg
     override fun toStr(): String {
         return super.toStr() + ", load = ${load.toStr()}"
     }
-}
\ No newline at end of file
+}
+
+/**
+ *      Live weight neuron sends the learning writer its accumulated weight adjustments.
+ *  @param spNeuron the spirit neuron to fold the adjustments into
+ *  @param deltas adjustments of the weights in the order of premises
+ */
+class NeuronSendsWriterWeightDeltasMsg(val spNeuron: SpWeightNeuron, val deltas: FloatArray): MessageMsg() {
+    override fun toString(): String {
+        var s = super.toString()
+        s += "\n    spNeuron = ${cidNamed(spNeuron.cid)}"
+        s += "\n    deltas size = ${deltas.size}"
+        return s
+    }
+
+    override fun toStr(): String {
+        return super.toStr() + ", spNeuron = ${cidNamed(spNeuron.cid)}, deltas size = ${deltas.size}"
+    }
+}
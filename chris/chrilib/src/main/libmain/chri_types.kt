@@ -5,6 +5,15 @@ import cpt.abs.SpStaticConcept
 import cpt.abs.SpiritConcept
 import cpt.abs.SpiritDynamicConcept
 import db.DataBase
+import db.SerializedConceptData
+import java.util.Arrays
+import java.util.Base64
+import java.util.Collections
+import java.util.IdentityHashMap
+import java.util.TreeMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReferenceArray
+import java.util.concurrent.atomic.LongAdder
 import kotlin.random.Random
 import kotlin.random.nextULong
 import kotlin.reflect.full.createType
@@ -13,15 +22,53 @@ import kotlin.reflect.full.isSubtypeOf
 
 /**
  *          Synchronized map cid/spiritConcept.
+ *
+ *      It is a bounded cache over the database. Static concepts, cranked concepts and concepts added to the map are pinned
+ *  in memory. Concepts, loaded from the database, and concepts added unpinned (and so written to the database) are kept
+ *  by the cache policy within the weight limit, the weight being the size of the serialized concept.
+ *
+ *      Versions. A concept has its head, the CUR_VER_FLAG version, which is its latest state, and may have images of the
+ *  older states. A commit makes a copy of the current head of a concept its image at curVer (the state was actual up to
+ *  that version), puts the new state in the head and increments curVer. The published concept objects themselves are never
+ *  changed by a commit, since the readers hold them without locking. A reader of a version sees the earliest version of a
+ *  concept, that is not below it, so a branch, that pinned its base version, sees the same concepts all its life whatever
+ *  is committed. The images below the oldest pinned version are never seen and are collected. All versions of a cid are
+ *  loaded from the DB and evicted together, so the versions in the map are never incomplete.
+ *
+ *      Learning is versioned as well. The LearningWriter applies the learned weights to copies of the heads (see headCopy())
+ *  and commits them, so a branch sees the weights as of its base version. When no version is pinned, the learning replaces
+ *  the heads in the curVer, so that it does not use up the versions.
+ *
+ *      Snapshots. Every retained version has an immutable snapshot of the map, cid -> entry seen by the readers of that
+ *  version, made as a persistent trie. The snapshots share all but the changed paths, so a version costs little. Readers
+ *  take a concept from the snapshot without locking, only the misses go under the lock. A writer changes the map under the
+ *  lock and publishes new snapshots in one volatile write at the end, so a reader never sees a half done change, a commit
+ *  in particular. The accesses of the lock-free readers are passed to the cache policy through a lossy buffer.
+ *  @param dbm the database manager
+ *  @param cachePolicy admission/eviction policy for the unpinned concepts
  */
-class SpiritMap(val dbm: DbManager) {
+class SpiritMap(
+    val dbm: DbManager,
+    val cachePolicy: CachePolicy = newCachePolicy(_conf_.spiritCachePolicy, _conf_.spiritCacheSize)
+) {
 
-    /** Current (the latest actual) version. */
+    /** Current (the latest published) version. New branches take it as the base version. */
     var curVer: Ver = 0
         @Synchronized get() = field
         @Synchronized set(value) { field = value}
 
-    /** Minimal actual version. */
+    /** The latest committed version, whose snapshot is already published. Is read without locking, so that the near
+        caches of the pods could notice a commit cheaply (see NearCache). */
+    @Volatile var publishedVer: Ver = 0
+        private set
+
+    /** Number of the evictions of cids from the map and of the commits, that replaced heads in the curVer. Is read without
+        locking, so that the near caches could notice, that a concept they keep may have been evicted and reloaded as a new
+        object or replaced (see NearCache). */
+    @Volatile var evictionEpoch: Long = 0
+        private set
+
+    /** Minimal actual version. A version below it cannot be pinned, its images may be already collected. */
     var minVer: Ver = 0
         @Synchronized get() = field
         @Synchronized set(value) { field = value}
@@ -31,15 +78,23 @@ class SpiritMap(val dbm: DbManager) {
         @Synchronized get() = field
         @Synchronized set(value) { field = value}
 
-    /**  The spirit map. TODO Better isolate the map. Generally it should not be unsynchronizably changeable. */
-    val map = hashMapOf<Cid, SpiritConcept>()
+    /** Number of the pins of the versions, taken by the pinVersion() and not released yet. */
+    val pinCount: Int
+        @Synchronized get() = pins_.values.sum()
+
+    /** Number of the concepts in the map. */
+    val size: Int
+        @Synchronized get() = map_.size
 
     /**
      *      Add a concept to the spirit map. If cid of the concept is not set (0), then it will be generated.
      *  @param cpt concept to add
+     *  @param ver version to keep the concept under
+     *  @param pinned keep the concept in memory. If false, the concept is written to the database and can be evicted
+     *          from the map, so it must be fully set up. Without database concepts are always pinned.
      */
     @UseExperimental(ExperimentalUnsignedTypes::class)
-    @Synchronized fun add(cpt: SpiritConcept, ver: Ver = CUR_VER_FLAG) {
+    @Synchronized fun add(cpt: SpiritConcept, ver: Ver = CUR_VER_FLAG, pinned: Boolean = true) {
 
         if      // is cid not set up?
                 (cpt.cid == 0)
@@ -53,90 +108,336 @@ class SpiritMap(val dbm: DbManager) {
                 cpt is SpiritDynamicConcept) ||
                 (cpt.cid.toUInt() >= MIN_STATIC_CID && cpt.cid.toUInt() <= MAX_STATIC_CID &&
                 cpt is SpStaticConcept)) {"Cid ${cpt.cid} is out of its range. Concept: $cpt"}
-            assert(mapKey(cpt.cid, ver) !in map) {"Cid ${cpt.cid} is already in the map. Concept: $cpt"}
-        }
+            assert(map_[cpt.cid, ver] == null) {"Cid ${cpt.cid} is already in the map. Concept: $cpt"}
 
-        // Must be new
-        require(cpt.cid !in this) {"Cid ${cidNamed(cpt.cid)} must not be present in the map nor in DB, but it is."}
+            // Must be new. A generated cid has already been checked by generateDynamicCid().
+            require(cpt.cid !in this) {"Cid ${cidNamed(cpt.cid)} must not be present in the map nor in DB, but it is."}
+        }
 
         // Put new concept in the map and DB
-        map[mapKey(cpt.cid, ver)] = cpt
-//        if(cpt is SpiritDynamicConcept)
-//            dbm.insertConcept(cpt)
+        if      // can the concept be evicted?
+                (!pinned && cpt is SpiritDynamicConcept && dbm.db_ != null)
+        {   //yes: it must be reloadable, so kept under the version it is written with
+            require(cpt.ver == ver) {"Evictable concept must be added under its own version. ver = $ver, concept: $cpt"}
+            dbm.insertConcept(cpt)
+            cache_(listOf(cpt))
+        }
+        else
+            set_(CacheNode(cpt.cid, ver, cpt, 0, pinned = true))
+        publish_()
     }
 
     /**
-     *      Get concept by cid. If no such concept, the IndexOutOfBoundsException is thrown.
+     *      Put a concept into the map pinned, without checking the database. Used for loading the cranked concepts.
+     *  @param cpt concept to put
+     *  @param ver version to keep the concept under
+     */
+    @Synchronized fun put(cpt: SpiritConcept, ver: Ver = cpt.ver) {
+        require(cpt.cid !in map_) {"Cid ${cidNamed(cpt.cid)} is already in the map."}
+        set_(CacheNode(cpt.cid, ver, cpt, 0, pinned = true))
+        publish_()
+    }
+
+    /**
+     *      Get concept by cid as it is seen by a reader of a version. The snapshot of the version is looked up without
+     *  locking, the map is locked only if the concept is not there.
      *  @param cid
-     *  @param ver version to check
+     *  @param ver version of the reader. CUR_VER_FLAG - the head.
      *  @return the concept or null if not found
      */
-    @Synchronized operator fun get(cid: Cid, ver: Ver = CUR_VER_FLAG): SpiritConcept? {
-        var cpt = map[mapKey(cid, ver)]
+    operator fun get(cid: Cid, ver: Ver = CUR_VER_FLAG): SpiritConcept? {
+        val node = snapshotFor_(ver)?.entries?.get(cid)
+        if(node != null) {
+            hits_.increment()
+            if(!node.pinned) recordRead_(node)
+            return node.cpt
+        }
 
-        // The most likely case is when the commitVer parameter equal the CUR_VER_FLAG
-        if(cpt != null) {
-            assert(cpt.cid == cid && cpt.ver == ver) {"Cid $cid($ver) is not equal cpt.cid = ${cpt!!.cid}(${cpt!!.ver})"}
-            return cpt
+        synchronized(this) {
+            return find_(cid, ver).also { publish_() }
         }
-        else
-            if(ver == CUR_VER_FLAG) {
-                // May be the commitVer is not CUR_VER_FLAG but the curVer instead.
-                cpt = map[mapKey(cid, curVer)]
-                if (cpt != null) {
-                    assert(cpt.cid == cid && cpt.ver == ver) { "Cid $cid($ver) is not equal cpt.cid = ${cpt!!.cid}(${cpt!!.ver})" }
-                    return cpt
-                }
-            }
+    }
+
+    /**
+     *      Load from the database in one query the concepts, that are not in the map, with all their versions, and cache
+     *  them. The map is not locked while the query goes.
+     *  @param cids cids of the concepts
+     *  @return number of the loaded concept versions
+     */
+    fun prefetch(cids: Collection<Cid>): Int {
+        val missing: IntArray
+        synchronized(this) {
+            missing = cids.filter { it !in map_ }.toIntArray()
+        }
+        if(missing.isEmpty()) return 0
 
-        // May be it is in the db under the CUR_VER_FLAG version
-        cpt = _dm_.getConcept(cid, ver)
-        if(cpt != null) {
-            map[mapKey(cid, ver)] = cpt
-            return cpt
+        val cpts = dbm.getConcepts(missing)
+        synchronized(this) {
+            return load_(cpts).size.also { publish_() }
         }
-        else
-            if(ver == CUR_VER_FLAG) {
-                // May be it is in the db under the curVer version
-                cpt = _dm_.getConcept(cid, curVer)
-                if (cpt != null) {
-                    map[mapKey(cid, curVer)] = cpt
-                    return cpt
-                }
-            }
+    }
 
-        // Concept not found
-        return null
+    /**
+     *      Put into the map a batch of concepts, streamed from the database at startup (see SpiritWarmUp). The cids, that
+     *  are already in the map, are skipped.
+     *  @param cpts all versions of the cids of the batch
+     *  @return true if all of them fit, false if the cache is full and further concepts would only evict the loaded ones
+     */
+    @Synchronized fun warmUp(cpts: List<SpiritDynamicConcept>): Boolean {
+        val evictions = evictions_
+        load_(cpts)
+        publish_()
+
+        return evictions_ == evictions
+    }
+
+    /**
+     *      Find a concept with the same content (class and stable data) as the given one among the heads, that are in the
+     *  content index, i.e. were interned in the session.
+     *  @param cpt the concept, fully set up
+     *  @return the equal concept or null if not found
+     */
+    @Synchronized fun findEqual(cpt: SpiritDynamicConcept): SpiritDynamicConcept? {
+        val sCD = cpt.serialize()
+        return findEqual_(sCD, contentHash(sCD)).also { publish_() }
     }
 
     /**
-     *      Check if the map or DB contains this cid. Concept is in the map or DB if it has either the CUR_VER_FLAG or
-     *  curVer version.
+     *      Intern a concept: if a concept with the same content is already there, return it instead, else add the new one
+     *  and put it into the content index. So the structurally identical concepts get a single cid and row. The interned
+     *  concept is shared by everyone, who interned its equal, so it must not be changed afterwards.
+     *  @param cpt the concept, fully set up, without cid (0)
+     *  @param pinned see add()
+     *  @return the equal concept, that is already there, or cpt with the generated cid
+     */
+    @Synchronized fun <T: SpiritDynamicConcept> intern(cpt: T, pinned: Boolean = true): T {
+        require(cpt.cid == 0) {"Interned concept must not have cid. Concept: $cpt"}
+        val sCD = cpt.serialize()
+        val hash = contentHash(sCD)
+        val found = findEqual_(sCD, hash)
+        if(found != null) {
+            interned_++
+            publish_()
+            @Suppress("UNCHECKED_CAST")
+            return found as T
+        }
+
+        add(cpt, pinned = pinned)
+        contentIndex_[hash] = cpt.cid
+
+        return cpt
+    }
+
+    /**
+     *      Check if the map or DB contains this cid. A concept always has the head, so only it is looked for in the DB.
      *  @param cid
      *  @return true/false
      */
     @Synchronized operator fun contains(cid: Cid): Boolean {
-        if(map[mapKey(cid, CUR_VER_FLAG)] != null)
+        if(cid in map_)
             return true
-        else
-            if(map[mapKey(cid, curVer)] != null)
-                return true
 
-        if(dbm.getConcept(cid, CUR_VER_FLAG) != null)
-            return true
-        else
-            if(dbm.getConcept(cid, curVer) != null)
-                return true
+        return dbm.getConcept(cid, CUR_VER_FLAG) != null
+    }
+
+    /**
+     *      Pin a version, so that its images are not collected. Branch on construction gets its base version here.
+     *  @param ver version to pin
+     *  @return pinned version. If the demanded version is below the minVer, the curVer is pinned instead.
+     */
+    @Synchronized fun pinVersion(ver: Ver = curVer): Ver {
+        val pinned = if(ver < minVer) curVer else ver
+        pins_[pinned] = (pins_[pinned]?: 0) + 1
 
-        return false
+        return pinned
     }
 
     /**
-     *      Branch on construction get its base version here.
+     *      Unpin a version, pinned by the pinVersion().
+     *  @param ver the version
      */
-//    @Synchronized fun claimBaseVersion(): Ver {
-//        minVer = minOf(minVer, curVer)
-//    }
+    @Synchronized fun releaseVersion(ver: Ver) {
+        val n = pins_[ver]?: throw IllegalStateException("Version $ver is not pinned.")
+        if(n == 1) pins_.remove(ver) else pins_[ver] = n - 1
+    }
+
+    /**
+     *      Make a copy of the head of a concept, that can be changed and committed as its new state (see commit()). The head
+     *  itself is published and must not be changed.
+     *  @param cid the cid
+     *  @return the copy or null if the concept is not found
+     */
+    @UseExperimental(ExperimentalUnsignedTypes::class)
+    @Synchronized fun headCopy(cid: Cid): SpiritDynamicConcept? {
+        val head = find_(cid, CUR_VER_FLAG) as? SpiritDynamicConcept
+        publish_()
+
+        return if(head == null) null else copyOf_(head, CUR_VER_FLAG)
+    }
+
+    /**
+     *      Publish new states of concepts as a new version. Copies of the heads of the concepts become their images at the curVer,
+     *  the new states become the heads, then the curVer is incremented. A new concept gets only the head. The concepts and
+     *  the curVer are written to the DB in one transaction before the map is changed, so a failed write leaves both the DB and
+     *  the map as they were.
+     *
+     *      With reuseVer, if no version is pinned, the new states replace the heads in the curVer without making images, since
+     *  there is nobody to see the old states, and the curVer is not incremented. The minVer is raised to the curVer, so that
+     *  an older version could not be pinned afterwards. This way frequent commits, like the learning (see LearningWriter),
+     *  do not spend a version each.
+     *  @param cpts new states of the concepts, different cids. They must not be shared with the old states.
+     *  @param reuseVer replace the heads in the curVer if no version is pinned
+     *  @return the new curVer
+     */
+    @UseExperimental(ExperimentalUnsignedTypes::class)
+    @Synchronized fun commit(cpts: List<SpiritDynamicConcept>, reuseVer: Boolean = false): Ver {
+        val inPlace = reuseVer && pins_.isEmpty()
+        if(!inPlace && curVer >= MAX_VER) throw IllegalStateException("Versions are exhausted, curVer = $curVer")
+        val imageVer = curVer
+        val newVer = if(inPlace) imageVer else (imageVer + 1).toShort()
+
+        // Take the old states and make the images
+        val olds = arrayOfNulls<SpiritDynamicConcept>(cpts.size)
+        val images = arrayOfNulls<SpiritDynamicConcept>(cpts.size)
+        for((i, cpt) in cpts.withIndex()) {
+            require(cpt.cid != 0) {"Committed concept must have cid. Concept: $cpt"}
+            val old = find_(cpt.cid, CUR_VER_FLAG) as SpiritDynamicConcept?
+            require(old !== cpt) {"Committed concept must be a new object. Concept: $cpt"}
+            cpt.ver = CUR_VER_FLAG
+            olds[i] = old
+            if(old != null && !inPlace) {
+                require(map_[cpt.cid, imageVer] == null) {"Cid ${cidNamed(cpt.cid)} is committed twice."}
+                images[i] = copyOf_(old, imageVer)
+            }
+        }
+
+        // Write them all or nothing
+        dbm.transaction {
+            for((i, cpt) in cpts.withIndex()) {
+                if(olds[i] == null)
+                    dbm.insertConcept(cpt)
+                else {
+                    images[i]?.let { dbm.insertConcept(it) }
+                    dbm.updateConcept(cpt)
+                }
+            }
+            if(inPlace)
+                dbm.setParam("_min_ver_", newVer.toString())
+            else
+                dbm.setParam("_cur_ver_", newVer.toString())
+        }
+
+        // Put them into the map
+        for((i, cpt) in cpts.withIndex()) {
+            val oldNode = remove_(cpt.cid, CUR_VER_FLAG)
+            if(oldNode != null && oldNode.queue != 0) cachePolicy.remove(oldNode)
+            val pinned = oldNode?.pinned?: (dbm.db_ == null)
+
+            if      // are the other versions of the concept in the map?
+                    (oldNode != null || olds[i] == null)
+            {   //yes: put the new ones too
+                val image = images[i]
+                put_(if(image == null) listOf(cpt) else listOf(image, cpt), pinned)
+            }
+            else    //no: the loaded versions were not cached, let them all be reloaded
+                evictCid_(cpt.cid)
+        }
+
+        if      // are the heads replaced in the curVer?
+                (inPlace)
+        {   //yes: nobody may see the older versions, the near caches must drop the old heads
+            minVer = newVer
+            evictionEpoch++
+            publish_()
+        }
+        else {
+            curVer = newVer
+            publish_(curVer)
+        }
+
+        return curVer
+    }
+
+    /**
+     *      Delete the images, that are not seen by any reader: the ones below the oldest pinned version or below the curVer,
+     *  if nothing is pinned. The minVer is raised to that version, so it cannot be pinned anymore. The DB is cleaned without
+     *  locking the map.
+     *  @return number of the deleted DB records
+     */
+    fun collectStaleVersions(): Int {
+        val oldest: Ver
+        synchronized(this) {
+            oldest = if(pins_.isEmpty()) curVer else pins_.firstKey()
+            if(oldest <= staleVer) return 0
+            minVer = oldest
+
+            val dead = ArrayList<CacheNode>()
+            map_.forEach { _, ver, node -> if(ver < oldest) dead.add(node) }
+            for(node in dead) {
+                if(node.queue != 0) cachePolicy.remove(node)
+                remove_(node.cid, node.ver)
+            }
+            val snapshots = snapshots_
+            snapshots_ = snapshots.filterIndexed { i, snap -> snap.ver >= oldest || i == snapshots.size - 1 }.toTypedArray()
+            publish_()
+            dbm.setParam("_min_ver_", minVer.toString())
+        }
+
+        val deleted = dbm.deleteVersionsBelow(oldest)
+        synchronized(this) {
+            staleVer = oldest
+            dbm.setParam("_stale_ver_", staleVer.toString())
+        }
+
+        return deleted
+    }
+
+    /**
+     *      Call the action for all concepts of the map. The map must not be changed in the action.
+     *  @param action lambda (cid, version, concept)
+     */
+    @Synchronized fun forEach(action: (Cid, Ver, SpiritConcept) -> Unit) {
+        map_.forEach { cid, ver, node -> action(cid, ver, node.cpt) }
+    }
+
+    /**
+     *      Format the cache statistics.
+     *  @return text of the report
+     */
+    @Synchronized fun cacheReport(): String {
+        drainReads_()
+        val hits = hits_.sum()
+        val requests = hits + misses_
+        return "spirit map: concepts = ${map_.size}, cached = ${cachePolicy.size}, " +
+                "cached bytes = ${cachePolicy.weight} of ${cachePolicy.maxWeight}, hits = $hits, misses = $misses_, " +
+                "hit ratio = ${"%.3f".format(if(requests == 0L) 0.0 else hits.toDouble()/requests)}, " +
+                "loads = $loads_, evictions = $evictions_, content index = ${contentIndex_.size}, interned = $interned_"
+    }
+
+    /**
+     *      Format the memory taken by the snapshots: the nodes and bytes of the current one and for every older retained
+     *  version the nodes and bytes it does not share with the current one, that is what it costs to keep the version. The
+     *  bytes are of the tries, without the entries.
+     *  @return text of the report
+     */
+    fun snapshotReport(): String {
+        val snapshots = snapshots_
+        val cur = snapshots.last()
+        val curNodes = Collections.newSetFromMap(IdentityHashMap<Any, Boolean>())
+        var curBytes = 0L
+        cur.entries.walkNodes { node, bytes -> curNodes.add(node); curBytes += bytes; true }
+
+        val sb = StringBuilder("spirit snapshots: current ver = ${cur.ver}, entries = ${cur.entries.size}, " +
+                "nodes = ${curNodes.size}, bytes = $curBytes")
+        for(i in snapshots.size - 2 downTo 0) {
+            var nodes = 0
+            var bytes = 0L
+            snapshots[i].entries.walkNodes { node, b -> if(node in curNodes) false else { nodes++; bytes += b; true } }
+            sb.append("; ver ${snapshots[i].ver}: entries = ${snapshots[i].entries.size}, own nodes = $nodes, own bytes = $bytes")
+        }
+
+        return sb.toString()
+    }
 
     @Synchronized fun generateListOfDynamicCids(size: Int): List<Cid> {
         return listOf<Cid>(*Array<Cid>(size, {generateDynamicCid()}))
@@ -154,17 +455,268 @@ class SpiritMap(val dbm: DbManager) {
 
     //---%%%---%%%---%%%---%%%--- private data ---%%%---%%%---%%%---%%%---%%%---%%%
 
+    /**  The spirit map, (cid, version) -> entry. */
+    private val map_ = VersionMap<CacheNode>()
+
+    /** Pinned versions with their pin counts. */
+    private val pins_ = TreeMap<Ver, Int>()
+
+    /** Source of the dynamic cids. */
+    private val cidAllocator_ = CidAllocator(dbm)
+
+    /**
+     *      Immutable view of the map as seen by the readers of a version.
+     *  @param ver the version
+     *  @param entries cid -> entry, that map_.earliest(cid, ver) gives. Only the entries in the map are here.
+     */
+    private class Snapshot_(val ver: Ver, val entries: PersistentIntMap<CacheNode>)
+
+    /** Snapshots of the retained versions in ascending order, the last one is for the curVer and above. Replaced as a
+        whole, never changed. */
+    @Volatile private var snapshots_ = arrayOf(Snapshot_(0, PersistentIntMap()))
+
+    /** Cids, changed in the map_ since the last publishing of the snapshots. */
+    private val dirty_ = HashSet<Cid>()
+
+    /** Entries, read from the snapshots, for the cache policy. The slots are taken round robin and overwritten, if not
+        drained in time, so a reader never waits. */
+    private val readBuffer_ = AtomicReferenceArray<CacheNode?>(SPIRIT_READ_BUFFER_SIZE)
+    private val readIndex_ = AtomicInteger()
+
+    /** Content hash -> cid of the head with that content (see intern()). Is checked against the concept, so an outdated
+        entry or a collision is only a miss. */
+    private val contentIndex_ = HashMap<Long, Cid>()
+
+    /** Number of the intern() calls, that found an equal concept. */
+    private var interned_ = 0L
+
+    /** Statistics of the cache. */
+    private val hits_ = LongAdder()
+    private var misses_ = 0L
+    private var loads_ = 0L
+    private var evictions_ = 0L
+
     //---%%%---%%%---%%%---%%%--- private funcs ---%%%---%%%---%%%---%%%---%%%---%%%
 
     /**
-     *          Generate cid in the dynamic range that is not used in the spirit map.
+     *      Count a hit and let the policy know of it.
+     *  @param node the entry
+     *  @return the concept
+     */
+    private fun hit_(node: CacheNode): SpiritConcept {
+        hits_.increment()
+        if(node.queue != 0) cachePolicy.recordAccess(node)       // not pinned
+        return node.cpt
+    }
+
+    /**
+     *      Put evictable versions of a cid into the map and evict what the policy decides. All the versions are put before
+     *  the evictions, so that the policy could not drop some of them, while the others are still to come. A victim takes
+     *  all versions of its cid with it (see evictCid_()), these ones too.
+     *  @param cpts versions of the cid, that can be reloaded from the database, each kept under its ver
+     */
+    private fun cache_(cpts: List<SpiritConcept>) {
+        val nodes = cpts.map { cpt ->
+            val sCD = (cpt as SpiritDynamicConcept).serialize()
+            val weight = SPIRIT_CACHE_ENTRY_OVERHEAD + (sCD.stable?.capacity()?: 0) + (sCD.transient?.capacity()?: 0)
+            CacheNode(cpt.cid, cpt.ver, cpt, weight, pinned = false)
+        }
+        for(node in nodes)
+            set_(node)
+
+        drainReads_()
+        val victims = ArrayList<CacheNode>()
+        for(node in nodes)
+            cachePolicy.add(node)?.let { victims.addAll(it) }
+        for(victim in victims)
+            evictCid_(victim.cid)
+    }
+
+    /**
+     *      Evict all unpinned versions of a cid, so that the cid is either fully in the map or reloaded with all versions.
+     *  @param cid the cid
+     */
+    private fun evictCid_(cid: Cid) {
+        val vers = map_.versions(cid)?: return
+        val evictions = evictions_
+        for(ver in vers) {
+            val node = map_[cid, ver]!!
+            if(node.pinned) continue
+            if(node.queue != 0) cachePolicy.remove(node)
+            remove_(cid, ver)
+            evictions_++
+        }
+        if(evictions_ != evictions) evictionEpoch++
+    }
+
+    /**
+     *      Put the versions, loaded from the DB, into the map. The cids, that got into the map while the versions were
+     *  loaded, and the versions below the minVer are skipped.
+     *  @param cpts all versions of the loaded cids
+     *  @return the put versions
+     */
+    private fun load_(cpts: List<SpiritDynamicConcept>): List<SpiritDynamicConcept> {
+        val fresh = cpts.filter { it.cid !in map_ && it.ver >= minVer }
+        for(vers in fresh.groupBy { it.cid }.values)
+            cache_(vers)
+        loads_ += fresh.size
+
+        return fresh
+    }
+
+    /**
+     *      Put versions of a cid into the map, pinned or cached.
+     *  @param cpts the versions, each kept under its ver
+     *  @param pinned keep the versions in memory
+     */
+    private fun put_(cpts: List<SpiritConcept>, pinned: Boolean) {
+        if(pinned)
+            for(cpt in cpts) set_(CacheNode(cpt.cid, cpt.ver, cpt, 0, pinned = true))
+        else
+            cache_(cpts)
+    }
+
+    /**
+     *      Find concept by cid as it is seen by a reader of a version, loading it from the DB if necessary. The map must be
+     *  locked.
+     *  @param cid
+     *  @param ver version of the reader
+     *  @return the concept or null if not found
+     */
+    private fun find_(cid: Cid, ver: Ver): SpiritConcept? {
+        val node = map_.earliest(cid, ver)
+        if(node != null) {
+            assert(node.cpt.cid == cid) {"Cid $cid($ver) is not equal cpt.cid = ${node.cpt.cid}(${node.cpt.ver})"}
+            return hit_(node)
+        }
+        if(cid in map_) return null        // all versions are here, none is seen by the reader
+        misses_++
+
+        // May be it is in the db. Take the version from the loaded ones, the cache could have rejected it.
+        var found: SpiritConcept? = null
+        for(cpt in load_(dbm.getConcepts(intArrayOf(cid))))
+            if(cpt.ver >= ver && (found == null || cpt.ver < found.ver))
+                found = cpt
+
+        return found
+    }
+
+    /**
+     *      Make a copy of a head under a version, for example its image. The head is not touched, it is published and may
+     *  be read.
+     *  @param head the head
+     *  @param ver version of the copy
+     *  @return the copy
+     */
+    private fun copyOf_(head: SpiritDynamicConcept, ver: Ver): SpiritDynamicConcept {
+        val sCD = head.serialize()
+        sCD.ver = ver
+
+        return _cr_.construct(sCD.clid).also { it.deserialize(sCD) }
+    }
+
+    /**
+     *      Find a head with the same content by the content index. The map must be locked.
+     *  @param sCD serialized concept to compare with
+     *  @param hash its content hash
+     *  @return the equal concept or null
      */
     @UseExperimental(ExperimentalUnsignedTypes::class)
+    private fun findEqual_(sCD: SerializedConceptData, hash: Long): SpiritDynamicConcept? {
+        val cid = contentIndex_[hash]?: return null
+        val other = find_(cid, CUR_VER_FLAG) as? SpiritDynamicConcept?: return null
+        val oSCD = other.serialize()
+
+        return if(oSCD.clid == sCD.clid && Arrays.equals(oSCD.stable?.array(), sCD.stable?.array())) other else null
+    }
+
+    /**
+     *      Put an entry into the map and mark its cid for publishing.
+     *  @param node the entry
+     */
+    private fun set_(node: CacheNode) {
+        map_[node.cid, node.ver] = node
+        dirty_.add(node.cid)
+    }
+
+    /**
+     *      Remove an entry from the map and mark its cid for publishing.
+     *  @return the removed entry or null
+     */
+    private fun remove_(cid: Cid, ver: Ver): CacheNode? {
+        val node = map_.remove(cid, ver)?: return null
+        dirty_.add(cid)
+        return node
+    }
+
+    /**
+     *      Bring the snapshots up to the map: for every changed cid take the entry, seen by every snapshot's version. The
+     *  snapshots are replaced in one volatile write.
+     *  @param newVer version, just committed. Its snapshot is made from the previous current one, which stays as the
+     *          snapshot of the old curVer. Null - no commit.
+     */
+    private fun publish_(newVer: Ver? = null) {
+        if(dirty_.isEmpty() && newVer == null) return
+
+        val snapshots = ArrayList(snapshots_.asList())
+        if(newVer != null) snapshots.add(Snapshot_(newVer, snapshots.last().entries))
+        for(i in snapshots.indices) {
+            val snap = snapshots[i]
+            var entries = snap.entries
+            for(cid in dirty_) {
+                val node = map_.earliest(cid, snap.ver)
+                entries = if(node == null) entries.remove(cid) else entries.put(cid, node)
+            }
+            if(entries !== snap.entries) snapshots[i] = Snapshot_(snap.ver, entries)
+        }
+        dirty_.clear()
+
+        snapshots_ = snapshots.toTypedArray()
+        if(newVer != null) publishedVer = newVer
+    }
+
+    /**
+     *      Find the snapshot, a reader of a version sees.
+     *  @param ver version of the reader
+     *  @return the snapshot or null if the version is not retained
+     */
+    private fun snapshotFor_(ver: Ver): Snapshot_? {
+        val snapshots = snapshots_
+        if(ver >= snapshots[snapshots.size - 1].ver) return snapshots[snapshots.size - 1]
+        for(snap in snapshots)
+            if(snap.ver == ver) return snap
+
+        return null
+    }
+
+    /**
+     *      Remember a lock-free read for the cache policy.
+     *  @param node the entry read
+     */
+    private fun recordRead_(node: CacheNode) {
+        readBuffer_.lazySet(readIndex_.getAndIncrement() and (SPIRIT_READ_BUFFER_SIZE - 1), node)
+    }
+
+    /**
+     *      Pass the buffered reads to the cache policy. The map must be locked. The entries, that have left the policy, are
+     *  skipped.
+     */
+    private fun drainReads_() {
+        for(i in 0 until SPIRIT_READ_BUFFER_SIZE) {
+            val node = readBuffer_.getAndSet(i, null)?: continue
+            if(node.queue != 0) cachePolicy.recordAccess(node)
+        }
+    }
+
+    /**
+     *          Generate cid in the dynamic range that is not used in the spirit map. The allocator never repeats a cid,
+     *  the check is only against the cids, written into the cranks.
+     */
     private fun generateDynamicCid(): Cid {
 
         var cid: Cid
         do {
-            cid = Random.nextULong(MIN_DYNAMIC_CID.toULong(), (MAX_DYNAMIC_CID).toULong()).toInt()
+            cid = cidAllocator_.next()
         } while(cid in this)
 
         return cid
@@ -184,19 +736,12 @@ class SpiritMap(val dbm: DbManager) {
         return cid
     }
 
-    /**
-     *      Mix cid and version into a key for the spirit map.
-     *  @param cid cid
-     *  @param ver concept version
-     */
-    private fun mapKey(cid: Cid, ver: Ver): Int {
-        return cid xor (ver.toInt() shl 16)
-    }
-
     init {
         staleVer = requireNotNull(dbm.getParam("_stale_ver_")?.toShort()) {"Parameter _stale_ver_ not found in the DB."}
         minVer = requireNotNull(dbm.getParam("_min_ver_")?.toShort()) {"Parameter _min_ver_ not found in the DB."}
         curVer = requireNotNull(dbm.getParam("_cur_ver_")?.toShort()) {"Parameter _cur_ver_ not found in the DB."}
+        snapshots_ = arrayOf(Snapshot_(curVer, PersistentIntMap()))
+        publishedVer = curVer
     }
 }
 
@@ -224,9 +769,8 @@ open class CrankModule() {
 
                 // Fill in the spirit map
                 val cpt = prop.getter.call(crankGroup) as SpiritConcept
-                require(cpt.cid.toUInt().toULong() >= MIN_DYNAMIC_CID && cpt.cid.toUInt().toULong() <= MAX_DYNAMIC_CID &&
-                        cpt.cid !in sm.map)
-                sm.map[cpt.cid] = cpt
+                require(cpt.cid.toUInt().toULong() >= MIN_DYNAMIC_CID && cpt.cid.toUInt().toULong() <= MAX_DYNAMIC_CID)
+                sm.put(cpt)
 
                 // May be fill in the name map
                 if(GDEBUG_LV >= 0) _nm_!![cpt.cid] = crankGroup::class.simpleName + "." + prop.name
@@ -281,7 +825,7 @@ interface CrankGroup {
  */
 class Conf() {
 
-    /** Map of database paramerers: <param name>: <value> */
+    /** Map of database paramerers: <param name>: <value>. Empty: no database, the concepts live only in memory. */
     var database = HashMap<String, String>()
 
     /** Number pods in podpool. */
@@ -290,23 +834,61 @@ class Conf() {
             require(value >= 1) {"Too few pods in pod pool. Demanded podpool size = $value"}
             field = value
         }
+
+    /** Maximum number of steps in one call of the branch reasoning. If it is reached, the branch is suspended. */
+    var maxReasoningSteps: Int = DEFAULT_MAX_REASONING_STEPS
+        set(value) {
+            require(value >= 1) {"Reasoning step limit must be positive. Demanded limit = $value"}
+            field = value
+        }
+
+    /** Limit of the spirit map cache in bytes of the serialized concepts. */
+    var spiritCacheSize: Long = DEFAULT_SPIRIT_CACHE_SIZE
+        set(value) {
+            require(value >= 1) {"Spirit cache size must be positive. Demanded size = $value"}
+            field = value
+        }
+
+    /** Load the concepts of the database into the spirit map at startup, until the cache is full (see SpiritWarmUp). */
+    var warmUp: Boolean = false
+
+    /** Number of threads, deserializing the concepts for the warm-up. */
+    var warmUpThreads: Int = DEFAULT_WARM_UP_THREADS
+        set(value) {
+            require(value >= 1) {"Too few warm-up threads. Demanded number = $value"}
+            field = value
+        }
+
+    /** Admission/eviction policy of the spirit map cache: "tinylfu" or "lru". */
+    var spiritCachePolicy: String = DEFAULT_SPIRIT_CACHE_POLICY
+        set(value) {
+            require(value == "tinylfu" || value == "lru") {"Unknown spirit cache policy $value"}
+            field = value
+        }
 }
 
 /**
  *      All communication with the database goes through this class. On initialization it creates an object of the DataBase
  *  class which opens the database connection and provides methods for interacting with the tables.
+ *
+ *      Cids of the concepts in the database are kept in a bloom filter, so that looking for a cid, that is not there,
+ *  mostly does not go to the database. That is what checking of a fresh cid does. The filter is stored in the params table
+ *  on closing and loaded on initialization, if the number of concepts did not change in between, else it is built anew
+ *  from the concepts table.
  */
 class DbManager(conf: Conf) {
 
     /**
      *      Close the database connection.
      */
-    fun close() {
-        db_.close()
+    @Synchronized fun close() {
+        if(db_ != null) saveCidFilter_(db_)
+        db_?.close()
     }
 
-    /** The database connection and methods for working with tables. */
-    val db_ = DataBase(
+    /** The database connection and methods for working with tables. null if the config has no database, then the manager
+        works in memory: the parameters are kept in a map, concepts are never found and writes are dropped. */
+    val db_ = if(conf.database.isEmpty()) null else DataBase(
             conf.database["connectionString"]!!,
             conf.database["dbName"]!!,
             conf.database["schema"]!!,
@@ -319,7 +901,7 @@ class DbManager(conf: Conf) {
      *  @param parName
      */
     @Synchronized fun getParam(parName: String): String? {
-        return db_.params.getParam(parName)
+        return if(db_ == null) memParams_[parName] else db_.params.getParam(parName)
     }
 
     /**
@@ -328,7 +910,7 @@ class DbManager(conf: Conf) {
      *  @param value
      */
     @Synchronized fun setParam(parName: String, value: String?) {
-        db_.params.setParam(parName, value)
+        if(db_ == null) memParams_[parName] = value else db_.params.setParam(parName, value)
     }
 
     /**
@@ -338,7 +920,8 @@ class DbManager(conf: Conf) {
      *  @return spirit dynamic concept on null if not found. The static concepts are not kept in the database.
      */
     @Synchronized fun getConcept(cid: Cid, ver: Ver): SpiritDynamicConcept? {
-        val sCD = db_.concepts.getConcept(cid, ver)
+        if(!cidFilter_.mightContain(cid)) return null
+        val sCD = db_?.concepts?.getConcept(cid, ver)
         if(sCD == null) return null
 
         val cpt = _cr_.construct(sCD.clid)
@@ -347,13 +930,44 @@ class DbManager(conf: Conf) {
         return cpt
     }
 
+    /**
+     *      Get all versions of a number of concepts in one query. Cids, that are surely not in the database, are not asked
+     *  for.
+     *  @param cids concept identifiers
+     *  @return list of the found concepts, in no particular order
+     */
+    @Synchronized fun getConcepts(cids: IntArray): List<SpiritDynamicConcept> {
+        if(db_ == null) return emptyList()
+        val present = cids.filter { cidFilter_.mightContain(it) }
+        if(present.isEmpty()) return emptyList()
+
+        return db_.concepts.getConcepts(present.toIntArray()).map { sCD ->
+            _cr_.construct(sCD.clid).also { it.deserialize(sCD) }
+        }
+    }
+
+    /**
+     *      Stream the records of all concepts with versions not below a given one, ordered by cid, through a server-side
+     *  cursor. The records are not deserialized, so that it could be done on other threads. The manager is locked for the
+     *  time of the streaming.
+     *  @param ver the minimal version
+     *  @param action lambda (record) -> false to stop the streaming
+     *  @return number of the streamed records, 0 if there is no database
+     */
+    @Synchronized fun streamConcepts(ver: Ver, action: (SerializedConceptData) -> Boolean): Long {
+        return db_?.concepts?.streamConcepts(ver, WARM_UP_FETCH_SIZE, action)?: 0
+    }
+
     /**
      *      Insert a concept into the database.
      *  @param cpt spirit dynamic concept to insert
      */
     @Synchronized fun insertConcept(cpt: SpiritDynamicConcept) {
+        if(db_ == null) return
         val sCD = cpt.serialize()
         db_.concepts.insertConcept(sCD.cid, sCD.ver, sCD.clid, sCD.stable?.array(), sCD.transient?.array())
+        cidFilter_.add(sCD.cid)
+        if(cidFilter_.count > cidFilter_.capacity) cidFilter_ = buildCidFilter_(db_)
     }
 
     /**
@@ -361,16 +975,130 @@ class DbManager(conf: Conf) {
      *  @param cpt spirit dynamic concept to update
      */
     @Synchronized fun updateConcept(cpt: SpiritDynamicConcept) {
+        if(db_ == null) return
         val sCD = cpt.serialize()
         db_.concepts.updateConcept(sCD.cid, sCD.ver, sCD.clid, sCD.stable?.array(), sCD.transient?.array())
     }
 
+    /**
+     *      Run the database writes in one transaction, so that they are all done or none. The manager is locked for the time
+     *  of the transaction, so no other write gets into it. Without database the block is just run.
+     *  @param block the writes
+     *  @return result of the block
+     */
+    @Synchronized fun <T> transaction(block: () -> T): T {
+        return if(db_ == null) block() else db_.transaction(block)
+    }
+
+    /**
+     *      Delete all concepts with versions below a given one.
+     *  @param ver the version
+     *  @return number of the deleted records
+     */
+    @Synchronized fun deleteVersionsBelow(ver: Ver): Int {
+        return db_?.concepts?.deleteVersionsBelow(ver)?: 0
+    }
+
+    /**
+     *      Reserve a block of the cid allocator's counter. The high-water mark is written at once, so the block is never
+     *  given out again.
+     *  @param size number of the counters
+     *  @return the first counter of the block
+     */
+    @Synchronized fun reserveCids(size: Int): Long {
+        val first = (if(db_ == null) memParams_[CID_COUNTER_PARAM_] else db_.params.findParam(CID_COUNTER_PARAM_))
+            ?.toLong()?: 0L
+        val hwm = first + size
+        if(hwm > CidAllocator.DYNAMIC_CID_COUNT) throw IllegalStateException("Dynamic cids are exhausted.")
+        if(db_ == null)
+            memParams_[CID_COUNTER_PARAM_] = hwm.toString()
+        else
+            db_.params.putParam(CID_COUNTER_PARAM_, hwm.toString(), "High-water mark of the dynamic cid allocator")
+
+        return first
+    }
+
     /**
      *      Get all versions of given concept in the database.
      *  @param cid cid
      *  @return array of versions or null if there no record with this cid in the database.
      */
     @Synchronized fun getConceptVersions(cid: Cid): ShortArray? {
-        return db_.concepts.getConceptVersions(cid)
+        if(!cidFilter_.mightContain(cid)) return null
+        return db_?.concepts?.getConceptVersions(cid)
+    }
+
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+    //
+    //                               Private
+    //
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+
+    //---%%%---%%%---%%%---%%%--- private data ---%%%---%%%---%%%---%%%---%%%---%%%
+
+    /** Parameters of the in-memory mode. The versions start from 0 as in a fresh database. */
+    private val memParams_ = hashMapOf<String, String?>("_stale_ver_" to "0", "_min_ver_" to "0", "_cur_ver_" to "0")
+
+    /** Filter of the cids, present in the database. Without database it is empty. */
+    private var cidFilter_ = if(db_ == null) IntBloomFilter(1) else loadCidFilter_(db_)
+
+    //---%%%---%%%---%%%---%%%--- private funcs ---%%%---%%%---%%%---%%%---%%%---%%%
+
+    /**
+     *      Load the stored cid filter. If it is absent or stale, build it from the concepts table. The stored filter is
+     *  cleared at once, so that only a clean shutdown (see close()) leaves a valid one: after a crash the cids, inserted
+     *  since the start, would be missing in it, and the number of concepts alone does not show that.
+     *  @param db the database
+     *  @return the filter
+     */
+    private fun loadCidFilter_(db: DataBase): IntBloomFilter {
+        val saved = db.params.findParam(CID_FILTER_PARAM_)?.split(';')
+        if(saved != null) db.params.setParam(CID_FILTER_PARAM_, null)
+        if      // is there a stored filter?
+                (saved != null && saved.size == 4)
+        {   //yes: take it, if it was stored with the same number of concepts
+            val filter = IntBloomFilter.fromBytes(saved[1].toInt(), saved[2].toInt(), Base64.getDecoder().decode(saved[3]))
+            if(filter != null && saved[0].toInt() == db.concepts.countConcepts())
+                return filter
+        }
+
+        return buildCidFilter_(db)
+    }
+
+    /**
+     *      Build the cid filter from the concepts table, with the capacity twice the number of the cids.
+     *  @param db the database
+     *  @return the filter
+     */
+    private fun buildCidFilter_(db: DataBase): IntBloomFilter {
+        var cids = IntArray(CID_FILTER_MIN_CAPACITY)
+        var n = 0
+        db.concepts.forEachCid {
+            if(n == cids.size) cids = Arrays.copyOf(cids, 2*n)
+            cids[n++] = it
+        }
+        val filter = IntBloomFilter(maxOf(CID_FILTER_MIN_CAPACITY, 2*n))
+        for(i in 0 until n)
+            filter.add(cids[i])
+
+        return filter
+    }
+
+    /**
+     *      Store the cid filter along with the number of concepts, so that the staleness can be seen on loading.
+     *  @param db the database
+     */
+    private fun saveCidFilter_(db: DataBase) {
+        val value = "${db.concepts.countConcepts()};${cidFilter_.capacity};${cidFilter_.count};" +
+                Base64.getEncoder().encodeToString(cidFilter_.toBytes())
+        db.params.putParam(CID_FILTER_PARAM_, value, "Bloom filter of the cids in the concepts table")
+    }
+
+    companion object {
+        /** Name of the parameter, that keeps the cid filter. */
+        private const val CID_FILTER_PARAM_ = "_cid_filter_"
+
+        /** Name of the parameter, that keeps the high-water mark of the cid allocator. */
+        private const val CID_COUNTER_PARAM_ = "_cid_counter_"
     }
 }
\ No newline at end of file
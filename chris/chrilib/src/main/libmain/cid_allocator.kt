@@ -0,0 +1,91 @@
+package libmain
+
+import basemain.CID_BLOCK_SIZE
+import basemain.Cid
+import basemain.MAX_DYNAMIC_CID
+import basemain.MIN_DYNAMIC_CID
+import basemain.PERMUTE_CIDS
+
+/**
+ *      Allocator of the dynamic cids. Cids are made of a counter, which runs through the dynamic range once. The counter
+ *  is reserved from the database in blocks, the high-water mark is kept in the params table, so a cid is never given out
+ *  twice, even if the program is restarted. The allocator is not synchronized: it is used by the spirit map under the
+ *  map's lock, so one block serves all threads.
+ *
+ *  If PERMUTE_CIDS is on, the counter is put through a fixed bijective permutation of the range, so the cids look random,
+ *  like the ones, written into the cranks, but still never collide with each other.
+ *  @param dbm the database manager, that keeps the high-water mark
+ *  @param blockSize number of cids in a block
+ */
+class CidAllocator(val dbm: DbManager, val blockSize: Int = CID_BLOCK_SIZE) {
+
+    /**
+     *      Take the next cid of the block. The caller must hold the lock of the spirit map.
+     *  @return the cid. It was never given out by the allocator, but it may be taken by a crank.
+     */
+    fun next(): Cid {
+        if(next_ == end_) {
+            next_ = dbm.reserveCids(blockSize)
+            end_ = next_ + blockSize
+        }
+
+        return toCid(next_++)
+    }
+
+    companion object {
+
+        /** Number of the dynamic cids. */
+        @UseExperimental(ExperimentalUnsignedTypes::class)
+        val DYNAMIC_CID_COUNT = (MAX_DYNAMIC_CID - MIN_DYNAMIC_CID + 1u).toLong()
+
+        /**
+         *      Make cid of a counter.
+         *  @param counter the counter, 0 until DYNAMIC_CID_COUNT
+         *  @return the cid
+         */
+        @UseExperimental(ExperimentalUnsignedTypes::class)
+        fun toCid(counter: Long): Cid {
+            assert(counter in 0 until DYNAMIC_CID_COUNT) {"Counter $counter is out of the dynamic cid range."}
+            if(!PERMUTE_CIDS) return (MIN_DYNAMIC_CID.toLong() + counter).toInt()
+
+            // The permutation is of all 32-bit values, walk the cycle until it gets into the range
+            var x = counter.toInt()
+            do {
+                x = permute_(x)
+            } while(x.toLong() and 0xffffffffL >= DYNAMIC_CID_COUNT)
+
+            return (MIN_DYNAMIC_CID.toLong() + (x.toLong() and 0xffffffffL)).toInt()
+        }
+
+        /**
+         *      Bijective permutation of 32-bit values: a four round Feistel network of 16-bit halves.
+         */
+        private fun permute_(x: Int): Int {
+            var l = x ushr 16
+            var r = x and 0xffff
+            for(key in FEISTEL_KEYS_) {
+                val f = ((r*0x9e37 + key) xor (r ushr 3)) * 0x2545 ushr 7
+                val t = (l xor f) and 0xffff
+                l = r
+                r = t
+            }
+
+            return (l shl 16) or r
+        }
+
+        /** Keys of the rounds. They must never change, or the new cids would collide with the given out ones. */
+        private val FEISTEL_KEYS_ = intArrayOf(0x5bd1, 0xe995, 0x2c1b, 0x7a3f)
+    }
+
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+    //
+    //                               Private
+    //
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+
+    //---%%%---%%%---%%%---%%%--- private data ---%%%---%%%---%%%---%%%---%%%---%%%
+
+    /** Reserved counters: [next_, end_). */
+    private var next_ = 0L
+    private var end_ = 0L
+}
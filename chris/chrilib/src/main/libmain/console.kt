@@ -3,6 +3,7 @@ package libmain
 import atn.AttentionDispatcher
 import atn.Brad
 import basemain.EMULATE_CONSOLE
+import basemain.FLIGHT_RECORDER_SIZE
 import chribase_thread.CuteThread
 import chribase_thread.MessageMsg
 import chribase_thread.TerminationRequestMsg
@@ -53,12 +54,24 @@ class ConsoleThread(threadName: String = "console"): CuteThread(1000, 0, threadN
     override protected fun _messageProc(msg: MessageMsg?): Boolean {
         when (msg) {
             is ReaderSendsConsoleLineMsg -> {
+                val dumpArgs = parseDumpCommand_(msg.text)
                 if      // did userThread request termination?
                         (msg.text == "p")
                 {   //yes: request termination from dispatcher and pass it to the ancesstor
                     _atnDispatcher_.putInQueue(TerminationRequestMsg())
                     this.putInQueue(TerminationRequestMsg())
                 }
+                else if // did userThread request dump of the flight recorders ("dump [<steps> [<brid>]]")?
+                        (dumpArgs != null)
+                {   //yes: send the request to pod pool, it will forward it to pods
+                    _pp_.putInQueue(UserRequestsDumpFlightRecordersMsg(dumpArgs.getOrElse(0) { FLIGHT_RECORDER_SIZE },
+                        dumpArgs.getOrElse(1) { -1 }))
+                }
+                else if // did userThread request the reasoning metrics?
+                        (msg.text == METRICS_COMMAND)
+                {   //yes: send the request to pod pool, it will forward it to pods
+                    _pp_.putInQueue(UserRequestsReasoningMetricsMsg())
+                }
                 else {//no: resend the console line to the circle
                     circleBrad_!!.pod.putInQueue(UserTellsCircleMsg(circleBrad_!!.brid, msg.text))
                 }
@@ -128,9 +141,29 @@ class ConsoleThread(threadName: String = "console"): CuteThread(1000, 0, threadN
     /** The circle branch to talk to. */
     private var circleBrad_: Brad? = null
 
+    /** Console command for dumping flight recorders of all branches or of one branch. */
+    private val DUMP_COMMAND = "dump"
+
+    /** Console command for logging the reasoning metrics of all pods. */
+    private val METRICS_COMMAND = "metrics"
+
     /** This iterator is used to answer circle's prompts in the debugging mode. */
     private lateinit var userLinesIterator_: ListIterator<String>
 
+    //---%%%---%%%---%%%---%%%--- private funcs ---%%%---%%%---%%%---%%%---%%%---%%%
+
+    /**
+     *      Parse the dump command. The line is a dump command only if it is the DUMP_COMMAND word followed by at most two
+     *  integers, so that a user sentence like "dump the old words" goes to the circle.
+     *  @param line console line
+     *  @return arguments of the command (steps, brid), possibly empty, or null if the line is not a dump command
+     */
+    private fun parseDumpCommand_(line: String): List<Int>? {
+        val words = line.trim().split(Regex("\\s+"))
+        if(words[0] != DUMP_COMMAND || words.size > 3) return null
+        return words.drop(1).map { it.toIntOrNull()?: return null }
+    }
+
     /**
      *      Object construction.
      */
@@ -0,0 +1,118 @@
+package libmain
+
+import basemain.IntMap
+import basemain.LEARNING_WRITE_PERIOD
+import basemain.logit
+import chribase_thread.CuteThread
+import chribase_thread.MessageMsg
+import chribase_thread.TerminationRequestMsg
+import chribase_thread.TimeoutMsg
+import cpt.SpWeightNeuron
+import cpt.abs.SpiritDynamicConcept
+
+/**
+ *      Background writer of the learned data. Live neurons send it their accumulated adjustments, it sums them up by
+ *  neurons and commits them to the spirit map as new versions of the neurons (see SpiritMap.commit()), so that the
+ *  branches spawned after the commit get the learned weights and the running ones keep seeing the weights of their base
+ *  version. The commit writes the neurons to the DB, so learning adds no DB latency to the reasoning.
+ *
+ *  The adjustments are committed not more often than every LEARNING_WRITE_PERIOD and on termination. If no version is
+ *  pinned at the time, the commit replaces the heads without taking a version, else it takes one. A failed commit, for
+ *  example when the versions are exhausted, is logged and the adjustments are kept to be tried with the next write. The
+ *  learned data is loaded with the concepts from the DB as a part of their transient data.
+ */
+class LearningWriter(threadName: String = "learning_writer"): CuteThread(LEARNING_WRITE_PERIOD, 0, threadName) {
+
+    /** Number of the written concepts. */
+    var written: Long = 0
+        private set
+
+    //~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$
+    //
+    //                                  Protected
+    //
+    //~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$
+
+    //---$$$---$$$---$$$---$$$---$$$--- protected methods ---$$$---$$$---$$$---$$$---$$$---
+
+    override protected fun _messageProc(msg: MessageMsg?): Boolean {
+        when(msg) {
+            is NeuronSendsWriterWeightDeltasMsg -> {
+                // The learning goes to the head, whatever version the branch saw. If the head has got other premises
+                // since, the deltas are not for it, that is checked again on the commit.
+                val cid = msg.spNeuron.cid
+                val sum = dirty_[cid]
+                if(sum == null) {
+                    if(msg.spNeuron.size != msg.deltas.size) return true
+                    if(dirty_.size == 0) firstDirtyTime_ = System.currentTimeMillis()
+                    dirty_[cid] = msg.deltas.copyOf()
+                }
+                else if(sum.size == msg.deltas.size)
+                    for(i in sum.indices) sum[i] += msg.deltas[i]
+                if(System.currentTimeMillis() - firstDirtyTime_ >= LEARNING_WRITE_PERIOD)
+                    write_()
+
+                return true
+            }
+
+            is TimeoutMsg -> {
+                write_()
+                return true
+            }
+
+            is TerminationRequestMsg -> {
+                write_()
+                return true
+            }
+        }
+
+        return false
+    }
+
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+    //
+    //                               Private
+    //
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+
+    //---%%%---%%%---%%%---%%%--- private data ---%%%---%%%---%%%---%%%---%%%---%%%
+
+    /** Map cid/sum of the adjustments of the spirit neuron since the last write. */
+    private val dirty_ = IntMap<FloatArray>()
+
+    /** Time of the first adjustment since the last write. */
+    private var firstDirtyTime_ = 0L
+
+    //---%%%---%%%---%%%---%%%--- private funcs ---%%%---%%%---%%%---%%%---%%%---%%%
+
+    /**
+     *      Apply the adjustments to copies of the heads of the neurons and commit them in one version. The spirit map is
+     *  locked for the whole time, so no other commit gets between taking the heads and committing their new states. If the
+     *  commit fails, the adjustments are kept.
+     */
+    private fun write_() {
+        if(dirty_.size == 0) return
+
+        synchronized(_sm_) {
+            val cpts = ArrayList<SpiritDynamicConcept>(dirty_.size)
+            dirty_.forEach { cid, deltas ->
+                val spNeuron = _sm_.headCopy(cid) as? SpWeightNeuron
+                if(spNeuron != null && spNeuron.size == deltas.size) {
+                    spNeuron.learn(deltas)
+                    cpts.add(spNeuron)
+                }
+            }
+            try {
+                if(cpts.isNotEmpty()) _sm_.commit(cpts, reuseVer = true)
+            } catch(e: Throwable) {
+                // The thread must survive, or the messages of the neurons would pile up in its queue. The sums are
+                // tried again after the next period.
+                logit("$threadName: commit of the learning failed: $e")
+                firstDirtyTime_ = System.currentTimeMillis()
+                return
+            }
+            written += cpts.size
+        }
+        dirty_.clear()
+    }
+}
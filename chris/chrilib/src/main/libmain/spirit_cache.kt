@@ -0,0 +1,282 @@
+package libmain
+
+import basemain.Cid
+import basemain.FrequencySketch
+import basemain.Ver
+import cpt.abs.SpiritConcept
+
+/**
+ *      Entry of the spirit map. Pinned entries are never evicted and are not seen by the cache policy. The links are owned
+ *  by the policy, that keeps the entry.
+ *  @param cid cid of the concept
+ *  @param ver version, under which the concept is kept
+ *  @param cpt the concept
+ *  @param weight size of the concept in bytes, as it is serialized, plus the entry overhead
+ *  @param pinned the entry is never evicted
+ */
+class CacheNode(val cid: Cid, val ver: Ver, val cpt: SpiritConcept, val weight: Int, val pinned: Boolean) {
+
+    /** Key of the entry for the frequency sketch. */
+    val key: Long
+        get() = (cid.toLong() shl 16) or (ver.toLong() and 0xffff)
+
+    /** Neighbours in the policy's queue. */
+    var prev: CacheNode? = null
+    var next: CacheNode? = null
+
+    /** Queue of the policy, the entry is in. 0 - none. */
+    var queue = 0
+}
+
+/**
+ *      Admission and eviction policy of the spirit map. It keeps the entries, loaded from the database, within the weight
+ *  limit. Called under the lock of the spirit map.
+ */
+interface CachePolicy {
+
+    /** Maximum total weight of the entries. */
+    val maxWeight: Long
+
+    /** Total weight of the entries. */
+    val weight: Long
+
+    /** Number of the entries. */
+    val size: Int
+
+    /**
+     *      An entry was read.
+     *  @param node the entry
+     */
+    fun recordAccess(node: CacheNode)
+
+    /**
+     *      Take a new entry.
+     *  @param node the entry
+     *  @return entries to evict, possibly the new one, or null if nothing is to be evicted
+     */
+    fun add(node: CacheNode): List<CacheNode>?
+
+    /**
+     *      Forget an entry.
+     *  @param node the entry
+     */
+    fun remove(node: CacheNode)
+}
+
+/**
+ *      Create a cache policy by name.
+ *  @param name "tinylfu" or "lru"
+ *  @param maxWeight maximum total weight of the entries
+ */
+fun newCachePolicy(name: String, maxWeight: Long): CachePolicy {
+    return when(name) {
+        "tinylfu" -> WTinyLfuPolicy(maxWeight)
+        "lru" -> LruPolicy(maxWeight)
+        else -> throw IllegalStateException("Unknown cache policy $name")
+    }
+}
+
+/**
+ *      Least recently used entries are evicted first.
+ *  @param maxWeight maximum total weight of the entries
+ */
+class LruPolicy(override val maxWeight: Long): CachePolicy {
+
+    override val weight: Long
+        get() = queue_.weight
+
+    override val size: Int
+        get() = queue_.size
+
+    override fun recordAccess(node: CacheNode) {
+        queue_.moveToLast(node)
+    }
+
+    override fun add(node: CacheNode): List<CacheNode>? {
+        queue_.addLast(node)
+        var evicted: ArrayList<CacheNode>? = null
+        while(queue_.weight > maxWeight) {
+            val victim = queue_.first!!
+            queue_.remove(victim)
+            evicted = evicted?: ArrayList()
+            evicted.add(victim)
+        }
+
+        return evicted
+    }
+
+    override fun remove(node: CacheNode) {
+        queue_.remove(node)
+    }
+
+    //---%%%---%%%---%%%---%%%--- private data ---%%%---%%%---%%%---%%%---%%%---%%%
+
+    /** Entries from the least to the most recently used. */
+    private val queue_ = NodeQueue(1)
+}
+
+/**
+ *      Window TinyLFU. New entries come into a small LRU window. An entry, pushed out of the window, competes with the
+ *  victim of the main space: the one, that was accessed more often according to the frequency sketch, stays. The main
+ *  space is a segmented LRU: entries get into the probation segment, accessed ones are promoted into the protected one.
+ *  So a burst of one-time reads, like a scan, does not wash out the frequently used concepts.
+ *  @param maxWeight maximum total weight of the entries
+ */
+class WTinyLfuPolicy(override val maxWeight: Long): CachePolicy {
+
+    override val weight: Long
+        get() = window_.weight + probation_.weight + protected_.weight
+
+    override val size: Int
+        get() = window_.size + probation_.size + protected_.size
+
+    override fun recordAccess(node: CacheNode) {
+        sketch_.increment(node.key)
+        when(node.queue) {
+            WINDOW_ -> window_.moveToLast(node)
+            PROTECTED_ -> protected_.moveToLast(node)
+            PROBATION_ -> {
+                probation_.remove(node)
+                protected_.addLast(node)
+                while(protected_.weight > maxProtected_ && protected_.size > 1) {
+                    val demoted = protected_.first!!
+                    protected_.remove(demoted)
+                    probation_.addLast(demoted)
+                }
+            }
+        }
+    }
+
+    override fun add(node: CacheNode): List<CacheNode>? {
+        sketch_.increment(node.key)
+        window_.addLast(node)
+        sketch_.ensureCapacity(size)
+
+        // Push the window's overflow to the main space as candidates. They are the tail of the probation segment.
+        var candidate: CacheNode? = null
+        while(window_.weight > maxWindow_ && window_.size > 1) {
+            val pushed = window_.first!!
+            window_.remove(pushed)
+            probation_.addLast(pushed)
+            if(candidate == null) candidate = pushed
+        }
+
+        // Let the candidates compete with the victims, the winning candidate meets the next victim
+        var evicted: ArrayList<CacheNode>? = null
+        while(weight > maxWeight) {
+            val victim = probation_.first
+            val loser = when {
+                victim == null -> protected_.first?: window_.first!!
+                candidate == null || candidate === victim -> victim
+                sketch_.frequency(candidate.key) > sketch_.frequency(victim.key) -> victim
+                else -> candidate
+            }
+            if(loser === candidate) candidate = loser.next
+            queueOf_(loser).remove(loser)
+            evicted = evicted?: ArrayList()
+            evicted.add(loser)
+        }
+
+        return evicted
+    }
+
+    override fun remove(node: CacheNode) {
+        queueOf_(node).remove(node)
+    }
+
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+    //
+    //                               Private
+    //
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+
+    //---%%%---%%%---%%%---%%%--- private data ---%%%---%%%---%%%---%%%---%%%---%%%
+
+    private val window_ = NodeQueue(WINDOW_)
+    private val probation_ = NodeQueue(PROBATION_)
+    private val protected_ = NodeQueue(PROTECTED_)
+
+    /** The window takes 1% of the weight, the protected segment 80% of the rest. */
+    private val maxWindow_ = maxOf(1L, maxWeight/100)
+    private val maxProtected_ = (maxWeight - maxWindow_)*8/10
+
+    private val sketch_ = FrequencySketch()
+
+    //---%%%---%%%---%%%---%%%--- private funcs ---%%%---%%%---%%%---%%%---%%%---%%%
+
+    private fun queueOf_(node: CacheNode): NodeQueue {
+        return when(node.queue) {
+            WINDOW_ -> window_
+            PROBATION_ -> probation_
+            PROTECTED_ -> protected_
+            else -> throw IllegalStateException("Node of cid ${node.cid}(${node.ver}) is not in the cache.")
+        }
+    }
+
+    companion object {
+        private const val WINDOW_ = 1
+        private const val PROBATION_ = 2
+        private const val PROTECTED_ = 3
+    }
+}
+
+/**
+ *      Doubly linked queue of cache entries, from the first (least recently used) to the last one. Keeps the total
+ *  weight of the entries.
+ *  @param id the number, marking the entries of the queue
+ */
+class NodeQueue(val id: Int) {
+
+    var first: CacheNode? = null
+        private set
+    var last: CacheNode? = null
+        private set
+
+    /** Number of the entries. */
+    var size = 0
+        private set
+
+    /** Total weight of the entries. */
+    var weight = 0L
+        private set
+
+    /**
+     *      Append an entry, that is in no queue.
+     *  @param node the entry
+     */
+    fun addLast(node: CacheNode) {
+        assert(node.queue == 0) {"Node of cid ${node.cid}(${node.ver}) is already in the queue ${node.queue}."}
+        node.prev = last
+        node.next = null
+        if(last == null) first = node else last!!.next = node
+        last = node
+        node.queue = id
+        size++
+        weight += node.weight
+    }
+
+    /**
+     *      Take out an entry of this queue.
+     *  @param node the entry
+     */
+    fun remove(node: CacheNode) {
+        assert(node.queue == id) {"Node of cid ${node.cid}(${node.ver}) is in the queue ${node.queue}, not in $id."}
+        if(node.prev == null) first = node.next else node.prev!!.next = node.next
+        if(node.next == null) last = node.prev else node.next!!.prev = node.prev
+        node.prev = null
+        node.next = null
+        node.queue = 0
+        size--
+        weight -= node.weight
+    }
+
+    /**
+     *      Make an entry of this queue the last one.
+     *  @param node the entry
+     */
+    fun moveToLast(node: CacheNode) {
+        if(node === last) return
+        remove(node)
+        addLast(node)
+    }
+}
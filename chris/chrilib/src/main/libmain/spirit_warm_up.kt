@@ -0,0 +1,137 @@
+package libmain
+
+import basemain.WARM_UP_BATCH_SIZE
+import basemain.WARM_UP_LOG_PERIOD
+import basemain.logit
+import db.SerializedConceptData
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicReference
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ *      Bulk loading of the spirit map at startup. Without it only the static and cranked concepts are in the map after a
+ *  start and every dynamic concept is loaded from the DB by the pod, that touches it first. The warm-up streams the live
+ *  versions of all concepts from the DB through a server-side cursor, cuts them into batches, keeping the versions of a cid
+ *  in one batch, deserializes the batches on a pool of threads and puts them into the spirit map. The streaming waits if
+ *  the threads fall behind, so only a few batches are in memory at a time. It stops when the cache gets full. The progress
+ *  and the throughput are logged every WARM_UP_LOG_PERIOD.
+ *
+ *  The warm-up is run once, before the pods start.
+ *  @param sm the spirit map
+ *  @param threads number of the deserializing threads
+ */
+class SpiritWarmUp(val sm: SpiritMap, val threads: Int = _conf_.warmUpThreads) {
+
+    /** Number of the streamed records. */
+    var rows: Long = 0
+        private set
+
+    /** Bytes of the serialized data of the streamed records. */
+    var bytes: Long = 0
+        private set
+
+    /** Number of the deserialized concepts, given to the spirit map. */
+    val loaded: Long
+        get() = loaded_.sum()
+
+    /**
+     *      Stream the concepts and put them into the spirit map. Returns when all streamed batches are in the map.
+     *  @param source lambda, that gives the records ordered by cid to its argument until the argument returns false. By
+     *          default the versions not below the minVer are streamed from the database.
+     *  @return number of the concepts, given to the spirit map
+     */
+    fun run(source: ((SerializedConceptData) -> Boolean) -> Unit = { sm.dbm.streamConcepts(sm.minVer, it) }): Long {
+        val start = System.currentTimeMillis()
+        var lastLog = start
+        var batch = ArrayList<SerializedConceptData>(WARM_UP_BATCH_SIZE)
+        try {
+            source { sCD ->
+                if      // is the batch full and are all versions of its last cid in it?
+                        (batch.size >= WARM_UP_BATCH_SIZE && sCD.cid != batch[batch.size - 1].cid)
+                {   //yes: give it to the pool
+                    submit_(batch)
+                    batch = ArrayList(WARM_UP_BATCH_SIZE)
+                }
+                batch.add(sCD)
+                rows++
+                bytes += (sCD.stable?.capacity()?: 0) + (sCD.transient?.capacity()?: 0)
+
+                val now = System.currentTimeMillis()
+                if(now - lastLog >= WARM_UP_LOG_PERIOD) {
+                    logit("Warm-up of the spirit map: ${progress_(now - start)}")
+                    lastLog = now
+                }
+
+                !full_ && error_.get() == null
+            }
+            if(batch.isNotEmpty() && !full_) submit_(batch)     // the stream is over, the last cid is complete
+        } finally {
+            pool_.shutdown()
+            pool_.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS)
+        }
+
+        val error = error_.get()
+        if(error != null) throw IllegalStateException("Warm-up of the spirit map failed: $error", error)
+        logit("Warm-up of the spirit map is done${if(full_) ", the cache is full" else ""}: " +
+                progress_(System.currentTimeMillis() - start))
+
+        return loaded
+    }
+
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+    //
+    //                               Private
+    //
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+
+    //---%%%---%%%---%%%---%%%--- private data ---%%%---%%%---%%%---%%%---%%%---%%%
+
+    /** Deserializing threads. */
+    private val pool_: ExecutorService = Executors.newFixedThreadPool(threads) { Thread(it, "spirit_warm_up") }
+
+    /** Batches, given to the pool and not finished yet. Two per thread, so that a thread never waits for the stream. */
+    private val inFlight_ = Semaphore(2*threads)
+
+    /** Counter of the loaded concepts. */
+    private val loaded_ = LongAdder()
+
+    /** The cache got full, the streaming must stop. */
+    @Volatile private var full_ = false
+
+    /** The first error of the threads. */
+    private val error_ = AtomicReference<Throwable?>()
+
+    //---%%%---%%%---%%%---%%%--- private funcs ---%%%---%%%---%%%---%%%---%%%---%%%
+
+    /**
+     *      Deserialize a batch on the pool and put it into the spirit map. Waits, if too many batches are in flight.
+     *  @param batch all versions of a number of cids
+     */
+    private fun submit_(batch: List<SerializedConceptData>) {
+        inFlight_.acquire()
+        pool_.execute {
+            try {
+                val cpts = batch.map { sCD -> _cr_.construct(sCD.clid).also { it.deserialize(sCD) } }
+                if(!full_ && !sm.warmUp(cpts)) full_ = true
+                loaded_.add(cpts.size.toLong())
+            } catch(e: Throwable) {
+                error_.compareAndSet(null, e)
+            } finally {
+                inFlight_.release()
+            }
+        }
+    }
+
+    /**
+     *      Format the progress.
+     *  @param millis time from the start
+     */
+    private fun progress_(millis: Long): String {
+        val sec = maxOf(millis, 1)/1000.0
+        return "rows = $rows, MB = ${"%.1f".format(bytes/1e6)}, loaded = $loaded, rows/s = ${(rows/sec).toLong()}, " +
+                "MB/s = ${"%.1f".format(bytes/1e6/sec)}, time = ${"%.1f".format(sec)} s"
+    }
+}
@@ -0,0 +1,61 @@
+package libmain
+
+import basemain.VERSION_COLLECT_PERIOD
+import basemain.logit
+import chribase_thread.CuteThread
+import chribase_thread.MessageMsg
+import chribase_thread.TerminationRequestMsg
+import chribase_thread.TimeoutMsg
+
+/**
+ *      Background collector of the stale concept versions. Every VERSION_COLLECT_PERIOD it deletes from the spirit map and
+ *  the DB the images of the concepts below the oldest version, pinned by the branches (see SpiritMap.collectStaleVersions()),
+ *  so that neither the concepts table nor the heap grow with the dead versions. The last collection is done on termination.
+ */
+class VersionCollector(threadName: String = "version_collector"): CuteThread(VERSION_COLLECT_PERIOD, 0, threadName) {
+
+    /** Number of the deleted DB records. */
+    var deleted: Long = 0
+        private set
+
+    //~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$
+    //
+    //                                  Protected
+    //
+    //~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$~~~$$$
+
+    //---$$$---$$$---$$$---$$$---$$$--- protected methods ---$$$---$$$---$$$---$$$---$$$---
+
+    override protected fun _messageProc(msg: MessageMsg?): Boolean {
+        when(msg) {
+            is TimeoutMsg -> {
+                collect_()
+                return true
+            }
+
+            is TerminationRequestMsg -> {
+                collect_()
+                return true
+            }
+        }
+
+        return false
+    }
+
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+    //
+    //                               Private
+    //
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+
+    //---%%%---%%%---%%%---%%%--- private funcs ---%%%---%%%---%%%---%%%---%%%---%%%
+
+    /**
+     *      Collect the stale versions and log the result, if anything was deleted.
+     */
+    private fun collect_() {
+        val n = _sm_.collectStaleVersions()
+        if(n > 0) logit("Stale concept versions deleted: $n, minVer = ${_sm_.minVer}. ${_sm_.snapshotReport()}")
+        deleted += n
+    }
+}
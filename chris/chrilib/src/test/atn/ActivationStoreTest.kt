@@ -0,0 +1,28 @@
+package atn
+
+import org.junit.Test
+
+class ActivationStoreTest {
+
+    /**
+     * Slots survive the growth of the store, the snapshot is an independent copy and restoring it does not touch the
+     * slots allocated after it.
+     */
+    @Test fun snapshotAndRestore() {
+        val store = ActivationStore(2)
+        for(i in 0 until 10)
+            assert(store.allocate(i.toFloat()) == i)
+        assert(store.size == 10)
+
+        val snapshot = store.snapshot()
+        store.fill(-1f)
+        assert(store.values.take(10).all { it == -1f })
+        assert(snapshot[9] == 9f)
+
+        val slot = store.allocate(5f)
+        store.restore(snapshot)
+        for(i in 0 until 10)
+            assert(store.values[i] == i.toFloat())
+        assert(store.values[slot] == 5f)
+    }
+}
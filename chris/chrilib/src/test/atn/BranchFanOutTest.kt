@@ -0,0 +1,73 @@
+package atn
+
+import basemain.acts
+import basemain.brans
+import basemain.outs
+import cpt.ActivationIfc
+import cpt.Breed
+import cpt.SpA
+import cpt.SpBreed
+import cpt.SpPegPrem
+import cpt.SpSeed
+import cpt.abs.F
+import libmain._bt_
+import libmain._pp_
+import libmain._sm_
+import org.junit.Test
+
+class BranchFanOutTest {
+
+    /**
+     * The outs of the finished detached children are joined into the parent, an unfinished child and a wrongly flagged
+     * pure breed go to the pod pool, and the version pins of the children are released.
+     */
+    @Test fun fanOut() {
+        if(_sm_[FINISH_.cid] == null) _sm_.add(FINISH_)
+        val finish = SpA(0).also { _sm_.add(it) }.load(FINISH_)
+
+        // Children: two of them finish with their outs, one yields unfinished, one spawns brans
+        val outs = Array(2) { SpPegPrem(0).also { _sm_.add(it) } }
+        val finishing = Array(2) {
+            val seed = SpSeed(0).also { _sm_.add(it) }
+            seed.load(acts(finish))
+            SpBreed(0).also { _sm_.add(it) }.load(seed, outs = outs(outs[it]), pure = true)
+        }
+        val yielding = SpBreed(0).also { _sm_.add(it) }.load(SpSeed(0).also { _sm_.add(it) }, pure = true)
+        val spawningSeed = SpSeed(0).also { _sm_.add(it) }
+        spawningSeed.load(acts(finish), brans(finishing[0]))
+        val spawning = SpBreed(0).also { _sm_.add(it) }.load(spawningSeed, pure = true)
+
+        val seed = SpSeed(0).also { _sm_.add(it) }
+        seed.load(brans = brans(finishing[0], finishing[1], yielding, spawning))
+        val breed = SpBreed(0).also { _sm_.add(it) }.load(seed)
+
+        val pins = _sm_.pinCount
+        val requests = _pp_.size()
+        val br = Branch(breed.cid, Brad(Pod("test_pod", 0), 0), null)
+        assert(!_bt_.detachable(spawning.cid, br.baseVer) && _bt_.detachable(yielding.cid, br.baseVer))
+        br.reasoning()
+
+        for(out in outs)
+            assert((br[out.cid] as ActivationIfc).activation > 0f)
+        for(child in finishing)
+            assert((br[child.cid] as Breed).activation < 0f)
+        assert((br[yielding.cid] as Breed).activation == 0f && (br[spawning.cid] as Breed).activation == 0f)
+        assert(_pp_.size() == requests + 2)     // the unfinished one is respawned, the spawning one is not detached
+        assert(_sm_.pinCount == pins + 1)
+
+        br.close()
+        assert(_sm_.pinCount == pins)
+    }
+
+    /**
+     *      Finish a detached branch, activating its outs.
+     */
+    private object FINISH_: F(99_901) {
+        override fun func(br: Branch) {
+            val outs = (br[br.breedCid].sp as SpBreed).outs!!
+            val outCpts = Array(outs.size) { br[outs[it]] }
+            for(cpt in outCpts) (cpt as ActivationIfc).activate()
+            br.finishDetached(outCpts)
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package atn
+
+import cpt.SpBreed
+import cpt.SpSeed
+import libmain._sm_
+import org.junit.Test
+
+class BranchSuspensionTest {
+
+    /**
+     * A suspended branch of a pod requests termination of its live child before it reports to its parent and asks its
+     * pod to terminate it.
+     */
+    @Test fun suspendWithLiveChild() {
+        val seed = SpSeed(0).also { _sm_.add(it) }
+        seed.load()
+        seed.stem(seed)     // a quiet cycle, the branch will be suspended
+        val breed = SpBreed(0).also { _sm_.add(it) }.load(seed)
+
+        val ownPod = Pod("own_pod", 0)
+        val parentPod = Pod("parent_pod", 1)
+        val childPod = Pod("child_pod", 2)
+        val br = Branch(breed.cid, Brad(ownPod, 1), Brad(parentPod, 2))
+        br.addChild(Brad(childPod, 3))
+        br.reasoning()
+
+        assert(br.suspended)
+        assert(childPod.size() == 1)    // the termination request to the child
+        assert(parentPod.size() == 1 && ownPod.size() == 1)
+
+        br.terminateChildren()      // the children are requested only once
+        assert(childPod.size() == 1)
+        br.close()
+    }
+}
@@ -0,0 +1,33 @@
+package atn
+
+import basemain.Cid
+import basemain.brans
+import basemain.outs
+import cpt.SpBreed
+import cpt.SpPegPrem
+import cpt.SpSeed
+import libmain._sm_
+import org.junit.Test
+
+class BranchTemplatesTest {
+
+    /**
+     * The closure is walked level by level from the breed and its seed and stops at the child breed's ins/outs.
+     */
+    @Test fun breedClosure() {
+        val out = SpPegPrem(0).also { _sm_.add(it) }
+        val childSeed = SpSeed(0).also { _sm_.add(it) }
+        val child = SpBreed(0).also { _sm_.add(it) }.load(childSeed, outs = outs(out), pure = true)
+        val seed = SpSeed(0).also { _sm_.add(it) }
+        seed.load(brans = brans(child))
+        val breed = SpBreed(0).also { _sm_.add(it) }.load(seed)
+
+        val levels = ArrayList<List<Cid>>()
+        val visited = ArrayList<Cid>()
+        walkBreedClosure(breed.cid, loadLevel = { levels.add(ArrayList(it)) }) { visited.add(it.cid) }
+
+        assert(levels == listOf(listOf(breed.cid), listOf(seed.cid), listOf(child.cid), listOf(out.cid)))
+        assert(visited == listOf(breed.cid, seed.cid, child.cid, out.cid))
+        assert(childSeed.cid !in visited)
+    }
+}
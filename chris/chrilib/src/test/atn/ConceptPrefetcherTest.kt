@@ -0,0 +1,28 @@
+package atn
+
+import basemain.CUR_VER_FLAG
+import chribase_thread.TerminationRequestMsg
+import libmain.ParentRequestsPodpoolCreateChildMsg
+import libmain.PodpoolRequestsPrefetcherLoadBreedMsg
+import org.junit.Test
+
+class ConceptPrefetcherTest {
+
+    /**
+     * A failing prefetch (here the breed is not there at all) still delivers the creation request to the pod, and the
+     * prefetcher keeps working.
+     */
+    @UseExperimental(ExperimentalUnsignedTypes::class)
+    @Test fun failingPrefetchDeliversRequest() {
+        val pf = ConceptPrefetcher("test_prefetcher")
+        val pod = Pod("test_pod", 0)
+        val createMsg = ParentRequestsPodpoolCreateChildMsg(2_999_999, null, Brad(pod, 0), CUR_VER_FLAG)
+        pf.start()
+        pf.putInQueue(PodpoolRequestsPrefetcherLoadBreedMsg(pod, createMsg))
+        pf.putInQueue(PodpoolRequestsPrefetcherLoadBreedMsg(pod, createMsg))
+        pf.putInQueue(TerminationRequestMsg())
+        pf.join(10_000)
+
+        assert(!pf.isAlive && pod.size() == 2)
+    }
+}
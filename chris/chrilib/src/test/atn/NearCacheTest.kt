@@ -0,0 +1,47 @@
+package atn
+
+import basemain.CUR_VER_FLAG
+import cpt.SpPegPrem
+import libmain.Conf
+import libmain.DbManager
+import libmain.LruPolicy
+import libmain.SpiritMap
+import org.junit.Test
+
+class NearCacheTest {
+
+    /**
+     * Entries are taken from the near cache until a newer version is asked for; the older versions go to the spirit map.
+     */
+    @UseExperimental(ExperimentalUnsignedTypes::class)
+    @Test fun versions() {
+        val sm = SpiritMap(DbManager(Conf()), LruPolicy(1 shl 20))
+        val old = SpPegPrem(2_000_001).also { sm.add(it) }
+        val nc = NearCache(sm, 16)
+        val base = sm.curVer
+
+        assert(nc[2_000_001, base] === old && nc[2_000_001, CUR_VER_FLAG] === old)
+        assert(nc.hits == 1L && nc.misses == 1L)
+
+        val new = SpPegPrem(2_000_001)
+        sm.commit(listOf(new))
+        assert(nc[2_000_001, CUR_VER_FLAG] === new && nc.invalidations == 1L)
+        assert(nc[2_000_001, sm.curVer] === new && nc.hits == 2L)
+        assert(nc[2_000_001, base] == old && nc[2_000_001, base] !== new && nc.invalidations == 1L)     // passed by
+        assert(nc[2_000_002, sm.curVer] == null)
+    }
+
+    /**
+     * An eviction in the spirit map drops the entries, so an evicted concept is not served anymore.
+     */
+    @Test fun evictions() {
+        val sm = SpiritMap(DbManager(Conf()), LruPolicy(10_000))
+        sm.warmUp(listOf(SpPegPrem(2_000_001)))
+        val nc = NearCache(sm, 16)
+        val cpt = nc[2_000_001, sm.curVer]!!
+        assert(nc[2_000_001, sm.curVer] === cpt && nc.hits == 1L)
+
+        assert(!sm.warmUp(List(1000) { SpPegPrem(2_001_000 + it) }))       // evicts it
+        assert(nc[2_000_001, sm.curVer] == null && nc.invalidations == 1L)
+    }
+}
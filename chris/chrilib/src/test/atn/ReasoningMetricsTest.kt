@@ -0,0 +1,16 @@
+package atn
+
+import org.junit.Test
+
+class ReasoningMetricsTest {
+
+    /**
+     * A breed with only skipped calls has no steps per call to divide.
+     */
+    @Test fun onlySkips() {
+        val rm = ReasoningMetrics()
+        rm.recordSkip(2_000_001)
+        val report = rm.report()
+        assert("calls = 0" in report && "NaN" !in report && "evaluations skipped = 1" in report) {report}
+    }
+}
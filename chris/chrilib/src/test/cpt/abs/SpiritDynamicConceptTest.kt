@@ -1,7 +1,9 @@
 package cpt.abs
 
+import atn.Branch
 import basemain.acts
 import basemain.brans
+import basemain.outs
 import cpt.*
 import libmain._cr_
 import org.junit.Test
@@ -44,4 +46,102 @@ class SpiritDynamicConceptTest {
 
         assert(dcp == scp)
     }
-}
\ No newline at end of file
+
+    @Test
+    fun testWeightNeuronSerialization() {
+        val scp = SpWeightNeuron(2_000_001)
+        scp.bias = -0.5f
+        for(i in 0 until 100)
+            scp.addPrem(SpPegPrem(2_000_002 + i), i*0.01f)
+        scp.addEff(0f, stem = SpPickNeuron(2_000_200))
+        scp.addEff(Float.POSITIVE_INFINITY, acts(SpA(2_000_201)))
+
+        val sCD = scp.serialize()
+        val dcp = _cr_.construct(sCD.clid)
+        dcp.deserialize(sCD)
+
+        assert(dcp == scp)
+    }
+
+    @Test
+    fun testWeightNeuronLearning() {
+        val scp = SpWeightNeuron(2_000_001)
+        for(i in 0 until 10)
+            scp.addPrem(SpPegPrem(2_000_002 + i), 1f)
+        scp.learn(FloatArray(10) { it*0.5f })
+        scp.learn(FloatArray(10) { 0.25f })
+
+        val sCD = scp.serialize()
+        assert(sCD.transient != null)
+        val dcp = _cr_.construct(sCD.clid) as SpWeightNeuron
+        dcp.deserialize(sCD)
+
+        assert(dcp == scp)
+        for(i in 0 until 10) {
+            assert(dcp.learned(i) == i*0.5f + 0.25f)
+            assert(dcp.weight(i) == 1f + i*0.5f + 0.25f)
+        }
+    }
+
+    @Test
+    fun testThresholdNeuronSerialization() {
+        val scp = SpThresholdNeuron(2_000_001)
+        scp.threshold = 3
+        scp.loadPrems(*Array<Any>(70) { if(it%3 == 0) !SpPegPrem(2_000_002 + it) else SpPegPrem(2_000_002 + it) })
+        scp.addEff(0f, stem = SpPickNeuron(2_000_100))
+        scp.addEff(Float.POSITIVE_INFINITY, acts(SpA(2_000_101)))
+
+        val sCD = scp.serialize()
+        val dcp = _cr_.construct(sCD.clid) as SpThresholdNeuron
+        dcp.deserialize(sCD)
+
+        assert(dcp == scp)
+        assert(dcp.posMask!!.size == 2)
+        for(i in 0 until 70) {
+            val bit = 1L shl i
+            assert(dcp.negMask!![i ushr 6] and bit != 0L == (i%3 == 0))
+            assert(dcp.posMask!![i ushr 6] and bit != 0L == (i%3 != 0))
+        }
+    }
+
+    @Test
+    fun testCidRefs() {
+        val scp = SpAndNeuron(2_000_001)
+        scp.loadPrems(
+            SpStringPrem(2_000_002),
+            !SpPegPrem(2_000_003)
+        ).addEff(
+            Float.POSITIVE_INFINITY,
+            acts(
+                SpA(2_000_004)
+            ),
+            brans(
+                SpBreed(2_000_005)
+            ),
+            stem = SpPickNeuron(2_000_006)
+        )
+        val refs = HashSet<Int>()
+        scp.collectCidRefs(refs)
+        assert(refs == hashSetOf(2_000_002, 2_000_003, 2_000_004, 2_000_005, 2_000_006))
+
+        // Parameters of an action are its references, the static functor is not
+        val func = object: FCid(1) { override fun func(br: Branch, cptCid: Int) {} }
+        val act = SpA_Cid(2_000_007).load(func, SpMarkPrim(2_000_008))
+        refs.clear()
+        act.collectCidRefs(refs)
+        assert(refs == hashSetOf(2_000_008))
+    }
+
+    @Test
+    fun testBreedWithoutPureFlag() {
+        val scp = SpBreed(2_000_001).load(SpSeed(2_000_002), outs = outs(SpPegPrem(2_000_003)), pure = true)
+        val sCD = scp.serialize()
+
+        // A row, written before the pure flag was added, is one byte shorter
+        val old = sCD.stable!!.array()
+        sCD.stable = java.nio.ByteBuffer.wrap(old.copyOf(old.size - 1)).order(java.nio.ByteOrder.nativeOrder())
+        val dcp = _cr_.construct(sCD.clid) as SpBreed
+        dcp.deserialize(sCD)
+        assert(dcp.seedCid == 2_000_002 && dcp.outs!!.contentEquals(intArrayOf(2_000_003)) && !dcp.pure)
+    }
+}
@@ -0,0 +1,162 @@
+package cpt.abs
+
+import atn.Brad
+import atn.Branch
+import atn.Pod
+import cpt.ActivationIfc
+import cpt.SpAndNeuron
+import cpt.SpBreed
+import cpt.SpOrNeuron
+import cpt.SpPegPrem
+import cpt.SpPickNeuron
+import cpt.SpSeed
+import cpt.SpThresholdNeuron
+import libmain._sm_
+import org.junit.Test
+import java.lang.management.ManagementFactory
+import java.util.Random
+
+class SpiritNeuronTest {
+
+    /**
+     * Bisection over many spans must select the same effects as the scan over few spans would.
+     */
+    @Test fun selectEffectWithManySpans() {
+        val neuron = SpPickNeuron(2_000_001)
+        for(i in 1..100)
+            neuron.addPremEff(Prem(2_000_001 + i, false), stemCid = 2_000_200 + i)
+        neuron.disableCutoff()
+
+        assert(neuron.selectEffect(-5f).stemCid == 2_000_201)
+        for(i in 1..100) {
+            assert(neuron.selectEffect(i.toFloat()).stemCid == 2_000_200 + i)
+            assert(neuron.selectEffect(i - 0.5f).stemCid == 2_000_200 + i)
+        }
+        assert(neuron.selectEffectIndex(100.5f) == NO_SPAN_EFFECT_INDEX)
+        assert(neuron.selectEffect(100.5f) === NO_SPAN_EFFECT)
+    }
+
+    /**
+     * A waiting neuron (activation under the cutoff) and an activation beyond all spans get the shared sentinel effects,
+     * so selecting the effect produces no garbage.
+     */
+    @Test fun selectEffectDoesNotAllocate() {
+        val neuron = SpAndNeuron(2_000_001)
+        neuron.addEffect(1f, stemCid = 2_000_002)
+        assert(neuron.selectEffect(-1f) === CUTOFF_EFFECT)
+        assert(neuron.selectEffect(2f) === NO_SPAN_EFFECT)
+
+        val mx = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+        val tid = Thread.currentThread().id
+        var stems = 0
+        for(round in 0 until 2) {       // the first round warms up
+            val before = mx.getThreadAllocatedBytes(tid)
+            for(i in 0 until 100_000) {
+                stems += neuron.selectEffect(-1f).stemCid
+                stems += neuron.selectEffect(2f).stemCid
+            }
+            val allocated = mx.getThreadAllocatedBytes(tid) - before
+            if(round == 1) {
+                println("allocated $allocated bytes on 200_000 selections")
+                assert(allocated < 1000)
+            }
+        }
+        assert(stems == 0)
+    }
+
+    /**
+     * A reasoning call, in which the stem is a waiting "and" neuron, produces no garbage either.
+     */
+    @Test fun waitingReasoningDoesNotAllocate() {
+        val peg = SpPegPrem(0).also { _sm_.add(it) }
+        val and = SpAndNeuron(0).also { _sm_.add(it) }
+        and.loadPrems(peg)
+        and.addEff(Float.POSITIVE_INFINITY)
+        val seed = SpSeed(0).also { _sm_.add(it) }
+        seed.load(stem = and)
+        val breed = SpBreed(0).also { _sm_.add(it) }.load(seed)
+
+        val br = Branch(breed.cid, Brad(Pod("test_pod", 0), 0), null)
+        br.reasoning()
+        val stem = br[and.cid] as Neuron
+        assert(br.flightRecorder.totalSteps == 2L && stem.activation < 0f)
+
+        val mx = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+        val tid = Thread.currentThread().id
+        for(round in 0 until 2) {       // the first round warms up
+            val before = mx.getThreadAllocatedBytes(tid)
+            for(i in 0 until 100_000) {
+                stem.inputsChanged = true
+                br.reasoning()
+            }
+            val allocated = mx.getThreadAllocatedBytes(tid) - before
+            if(round == 1) {
+                println("allocated $allocated bytes on 100_000 reasoning calls")
+                assert(allocated < 1000)
+            }
+        }
+        assert(br.flightRecorder.totalSteps == 200_002L)
+        br.close()
+    }
+
+    /**
+     * As the premises flip inside a branch, the logical neurons, that keep the packed bits and the satisfied count, must
+     * get the same activation as their clones out of the branch, that pack the premises on the fly.
+     */
+    @Test fun logicalNeuronsFollowFlippedPremises() {
+        val pegs = Array(70) { SpPegPrem(0).also { _sm_.add(it) } }     // two words of premises
+        val premoids = Array<Any>(pegs.size) { if(it%3 == 0) !pegs[it] else pegs[it] }
+        val and = SpAndNeuron(0).also { _sm_.add(it) }.loadPrems(*premoids)
+        val or = SpOrNeuron(0).also { _sm_.add(it) }.loadPrems(*premoids)
+        val pick = SpPickNeuron(0).also { _sm_.add(it) }.loadPrems(*premoids)
+        val threshold = SpThresholdNeuron(0).also { _sm_.add(it) }.loadPrems(*premoids) as SpThresholdNeuron
+        threshold.threshold = 35
+        val seed = SpSeed(0).also { _sm_.add(it) }
+        seed.load(stem = and)
+        val breed = SpBreed(0).also { _sm_.add(it) }.load(seed)
+
+        val br = Branch(breed.cid, Brad(Pod("test_pod", 0), 0), null)
+        val neurons = arrayOf(and, or, pick, threshold).map { br[it.cid] as LogicalNeuron }
+        fun setPeg(i: Int, active: Boolean) {
+            val prem = br[pegs[i].cid] as ActivationIfc
+            if(active) prem.activate() else prem.anactivate()
+        }
+        fun check(): FloatArray {
+            val acts = FloatArray(neurons.size) { neurons[it].calculateActivation(br) }
+            for(i in neurons.indices)
+                assert(neurons[i].clone().calculateActivation(br) == acts[i])
+            return acts
+        }
+
+        // All premises satisfied: negated ones inactive, the rest active
+        for(i in pegs.indices) setPeg(i, i%3 != 0)
+        var acts = check()
+        assert(acts[0] == 1f && acts[1] == 1f && acts[2] == 1f && acts[3] == 1f)
+
+        // Unsatisfy the first one of the second word
+        setPeg(64, false)
+        acts = check()
+        assert(acts[0] == -1f && acts[1] == 1f && acts[2] == 1f && acts[3] == 1f)
+
+        // Satisfied only the premise 64 and the negated premise 66
+        for(i in pegs.indices) setPeg(i, i%3 == 0)
+        setPeg(64, true)
+        setPeg(66, false)
+        acts = check()
+        assert(acts[0] == -1f && acts[1] == 1f && acts[2] == 65f && acts[3] == -1f)
+
+        // Nothing satisfied
+        setPeg(64, false)
+        setPeg(66, true)
+        acts = check()
+        assert(acts[0] == -1f && acts[1] == -1f && acts[2] == -1f && acts[3] == -1f)
+
+        // Random flips, setting the same activation again included
+        val rnd = Random(2_026)
+        for(step in 0 until 2_000) {
+            setPeg(rnd.nextInt(pegs.size), rnd.nextBoolean())
+            check()
+        }
+        br.close()
+    }
+}
@@ -0,0 +1,24 @@
+package libmain
+
+import basemain.IntMap
+import basemain.MIN_DYNAMIC_CID
+import org.junit.Test
+
+class CidAllocatorTest {
+
+    /**
+     * Counters give distinct cids in the dynamic range, the last counter of the range included.
+     */
+    @UseExperimental(ExperimentalUnsignedTypes::class)
+    @Test fun distinctCids() {
+        val seen = IntMap<Boolean>(1_000_000)
+        for(counter in 0L until 1_000_000L) {
+            val cid = CidAllocator.toCid(counter)
+            assert(cid.toUInt() >= MIN_DYNAMIC_CID) {"Cid $cid of counter $counter is out of the range."}
+            assert(cid !in seen) {"Cid $cid of counter $counter is repeated."}
+            seen[cid] = true
+        }
+        for(counter in CidAllocator.DYNAMIC_CID_COUNT - 1000 until CidAllocator.DYNAMIC_CID_COUNT)
+            assert(CidAllocator.toCid(counter).toUInt() >= MIN_DYNAMIC_CID)
+    }
+}
@@ -0,0 +1,81 @@
+package libmain
+
+import cpt.SpPegPrem
+import org.junit.Test
+
+class SpiritCacheTest {
+
+    /**
+     * The weight limit is kept and the least recently used entries go first.
+     */
+    @Test fun lru() {
+        val policy = LruPolicy(1000)
+        val nodes = Array(20) { node_(2_000_001 + it, 100) }
+        val evicted = ArrayList<CacheNode>()
+        for(i in 0 until 10) policy.add(nodes[i])?.let { evicted.addAll(it) }
+        assert(evicted.isEmpty() && policy.weight == 1000L)
+
+        policy.recordAccess(nodes[0])
+        policy.add(nodes[10])?.let { evicted.addAll(it) }
+        assert(evicted.size == 1 && evicted[0] === nodes[1])
+        assert(policy.size == 10 && policy.weight == 1000L)
+
+        policy.remove(nodes[0])
+        assert(policy.size == 9 && policy.weight == 900L)
+    }
+
+    /**
+     * A scan of one-time entries must not wash out the frequently used ones.
+     */
+    @Test fun tinyLfuResistsScan() {
+        val policy = WTinyLfuPolicy(10_000)
+        val cached = HashSet<CacheNode>()
+        fun add(node: CacheNode) {
+            cached.add(node)
+            policy.add(node)?.let { cached.removeAll(it) }
+        }
+
+        // Hot set, accessed many times
+        val hot = Array(50) { node_(2_000_001 + it, 100) }
+        for(node in hot) add(node)
+        for(round in 0 until 10)
+            for(node in hot)
+                if(node in cached) policy.recordAccess(node)
+
+        // Scan
+        for(i in 0 until 1000) add(node_(2_001_000 + i, 100))
+
+        assert(policy.weight <= 10_000L)
+        assert(cached.size == policy.size)
+        assert(hot.count { it in cached } >= 45) {"Hot entries left: ${hot.count { it in cached }}"}
+    }
+
+    /**
+     * The same scan washes out the LRU completely.
+     */
+    @Test fun lruLosesToScan() {
+        val policy = LruPolicy(10_000)
+        val cached = HashSet<CacheNode>()
+        val hot = Array(50) { node_(2_000_001 + it, 100) }
+        for(node in hot) { cached.add(node); policy.add(node)?.let { cached.removeAll(it) } }
+        for(i in 0 until 1000) { val n = node_(2_001_000 + i, 100); cached.add(n); policy.add(n)?.let { cached.removeAll(it) } }
+
+        assert(hot.none { it in cached })
+    }
+
+    /**
+     * Only the entries, pushed out of the window by this add, compete with the victim.
+     */
+    @Test fun tinyLfuAdmitsOnlyPushedOut() {
+        val policy = WTinyLfuPolicy(10_000)
+        val nodes = Array(200) { node_(2_000_001 + it, 50) }
+        for(node in nodes) assert(policy.add(node) == null)
+        policy.remove(nodes[198])       // the window is empty now
+        policy.remove(nodes[199])
+
+        val evicted = policy.add(node_(2_001_000, 150))       // it fits into the window alone
+        assert(evicted != null && evicted.size == 1 && evicted[0] === nodes[0])
+    }
+
+    private fun node_(cid: Int, weight: Int) = CacheNode(cid, 0, SpPegPrem(cid), weight, pinned = false)
+}
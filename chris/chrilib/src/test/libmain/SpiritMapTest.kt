@@ -0,0 +1,130 @@
+package libmain
+
+import basemain.CUR_VER_FLAG
+import cpt.SpMarkPrim
+import cpt.SpPegPrem
+import cpt.SpStringPrim
+import cpt.SpWeightNeuron
+import org.junit.Test
+
+class SpiritMapTest {
+
+    /**
+     * A pinned reader keeps seeing the old state after a commit, the collector drops it only when it is unpinned.
+     */
+    @UseExperimental(ExperimentalUnsignedTypes::class)
+    @Test fun versions() {
+        val sm = SpiritMap(DbManager(Conf()), LruPolicy(1 shl 20))
+        val old = SpPegPrem(2_000_001)
+        sm.add(old)
+        val base = sm.pinVersion()
+        assert(base == sm.curVer)
+
+        val new = SpPegPrem(2_000_001)
+        assert(sm.commit(listOf(new)) == (base + 1).toShort())
+        assert(sm[2_000_001] === new)
+        val image = sm[2_000_001, base]!!
+        assert(image !== old && image == old && image.ver == base && old.ver == CUR_VER_FLAG)     // the old head is untouched
+        assert(sm[2_000_001, sm.curVer] === new)
+
+        // The image is pinned
+        sm.collectStaleVersions()
+        assert(sm[2_000_001, base] === image && sm.size == 2)
+
+        // Now it is not
+        sm.releaseVersion(base)
+        sm.collectStaleVersions()
+        assert(sm[2_000_001, base] === new && sm.size == 1)
+        assert(sm.minVer == sm.curVer)
+        assert(sm.pinVersion(base) == sm.curVer)
+    }
+
+    /**
+     * Every committed version gets its snapshot, sharing the unchanged nodes with the current one. The collector drops
+     * the snapshots of the versions, that are not pinned.
+     */
+    @Test fun snapshots() {
+        val sm = SpiritMap(DbManager(Conf()), LruPolicy(1 shl 20))
+        for(i in 0 until 1000) sm.add(SpPegPrem(2_000_000 + i))
+        val base = sm.pinVersion()
+        val old = sm[2_000_007]
+
+        val new = SpPegPrem(2_000_007)
+        sm.commit(listOf(new))
+        assert(sm[2_000_007, base] == old && sm[2_000_007, base] !== new && sm[2_000_007] === new)
+        assert(sm[2_000_008, base] === sm[2_000_008])
+        val report = sm.snapshotReport()
+        assert("ver $base: entries = 1000" in report) {report}
+
+        sm.releaseVersion(base)
+        sm.collectStaleVersions()
+        assert("ver $base:" !in sm.snapshotReport())
+        assert(sm[2_000_007, base] === new)
+    }
+
+    /**
+     * Interning gives the concept with the same class and stable data, a different one is added.
+     */
+    @Test fun intern() {
+        val sm = SpiritMap(DbManager(Conf()), LruPolicy(1 shl 20))
+        val a = sm.intern(SpStringPrim(0).load("word"))
+        assert(a.cid != 0 && sm[a.cid] === a)
+        assert(sm.intern(SpStringPrim(0).load("word")) === a)
+        assert(sm.findEqual(SpStringPrim(0).load("word")) === a)
+
+        val b = sm.intern(SpStringPrim(0).load("other"))
+        assert(b !== a && b.cid != a.cid)
+        assert(sm.intern(SpMarkPrim(0)).cid != sm.intern(SpStringPrim(0)).cid)        // same stable data, other class
+        assert(sm.size == 4)
+    }
+
+    /**
+     * A copy of the head, changed and committed, is the new head. The reader of the base version keeps the old weights.
+     */
+    @Test fun commitHeadCopy() {
+        val sm = SpiritMap(DbManager(Conf()), LruPolicy(1 shl 20))
+        val old = SpWeightNeuron(2_000_001)
+        old.addPrem(SpPegPrem(2_000_002), 1f)
+        sm.add(old)
+        val base = sm.pinVersion()
+
+        val new = sm.headCopy(2_000_001) as SpWeightNeuron
+        assert(new !== old && new == old)
+        new.learn(floatArrayOf(0.5f))
+        sm.commit(listOf(new))
+        assert((sm[2_000_001] as SpWeightNeuron).weight(0) == 1.5f)
+        assert((sm[2_000_001, base] as SpWeightNeuron).weight(0) == 1f && old.weight(0) == 1f)
+        sm.releaseVersion(base)
+    }
+
+    /**
+     * With reuseVer and nothing pinned the head is replaced in the curVer, a pinned version makes it a regular commit.
+     */
+    @Test fun commitInPlace() {
+        val sm = SpiritMap(DbManager(Conf()), LruPolicy(1 shl 20))
+        sm.add(SpPegPrem(2_000_001))
+        val ver = sm.curVer
+
+        val new = SpPegPrem(2_000_001)
+        val epoch = sm.evictionEpoch
+        assert(sm.commit(listOf(new), reuseVer = true) == ver)
+        assert(sm[2_000_001] === new && sm[2_000_001, ver] === new && sm.size == 1)
+        assert(sm.minVer == ver && sm.evictionEpoch == epoch + 1)
+
+        val base = sm.pinVersion()
+        assert(sm.commit(listOf(SpPegPrem(2_000_001)), reuseVer = true) == (ver + 1).toShort())
+        assert(sm[2_000_001, base] == new && sm.size == 2)
+        sm.releaseVersion(base)
+    }
+
+    /**
+     * The versions of a loaded cid are cached together: if the policy drops any of them, none stays, so a reader of an
+     * old version is never given the head.
+     */
+    @UseExperimental(ExperimentalUnsignedTypes::class)
+    @Test fun loadAllVersionsOrNone() {
+        val sm = SpiritMap(DbManager(Conf()), LruPolicy(100))       // one entry fits
+        assert(!sm.warmUp(shortArrayOf(3, 5, CUR_VER_FLAG).map { v -> SpPegPrem(2_000_001).also { it.ver = v } }))
+        assert(sm.size == 0 && sm[2_000_001, 3] == null)
+    }
+}
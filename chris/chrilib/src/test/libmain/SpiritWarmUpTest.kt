@@ -0,0 +1,44 @@
+package libmain
+
+import basemain.CUR_VER_FLAG
+import cpt.SpPegPrem
+import db.SerializedConceptData
+import org.junit.Test
+
+class SpiritWarmUpTest {
+
+    /**
+     * All streamed versions get into the map, the ones of a cid together.
+     */
+    @UseExperimental(ExperimentalUnsignedTypes::class)
+    @Test fun loadsAllVersions() {
+        val sm = SpiritMap(DbManager(Conf()), LruPolicy(1 shl 20))
+        repeat(6) { sm.commit(emptyList()) }        // the images are below the curVer
+        val warmUp = SpiritWarmUp(sm, 3)
+        assert(warmUp.run { action -> stream_(5000).all(action) } == 7500L)
+        assert(warmUp.rows == 7500L && sm.size == 7500)
+        assert(sm[3_000_010, 0]?.ver == 5.toShort() && sm[3_000_010]?.ver == CUR_VER_FLAG)
+        assert(sm[3_000_011, 0]?.ver == CUR_VER_FLAG)
+    }
+
+    /**
+     * The streaming stops when the cache is full.
+     */
+    @Test fun stopsWhenFull() {
+        val sm = SpiritMap(DbManager(Conf()), LruPolicy(100_000))
+        val warmUp = SpiritWarmUp(sm, 2)
+        warmUp.run { action -> stream_(100_000).all(action) }
+        assert(warmUp.rows < 150_000 && sm.size > 0)
+    }
+
+    /**
+     *      Serialized concepts, ordered by cid. Even cids have an image at version 5 besides the head.
+     */
+    @UseExperimental(ExperimentalUnsignedTypes::class)
+    private fun stream_(n: Int) = sequence<SerializedConceptData> {
+        for(i in 0 until n) {
+            if(i%2 == 0) yield(SpPegPrem(3_000_000 + i).also { it.ver = 5 }.serialize())
+            yield(SpPegPrem(3_000_000 + i).also { it.ver = CUR_VER_FLAG }.serialize())
+        }
+    }
+}
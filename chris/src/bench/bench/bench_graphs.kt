@@ -0,0 +1,120 @@
+package bench
+
+import basemain.acts
+import basemain.brans
+import basemain.outs
+import cpt.*
+import cpt.abs.SpiritDynamicConcept
+import cpt.abs.SpiritNeuron
+import cpt.abs.SpiritPremise
+import libmain._sm_
+import stat.cmnSt
+
+/**
+ *      Synthetic crank graph, built into the shared spirit map. The concepts get generated cids, so any number of graphs
+ *  can be built side by side. Every graph ends with a neuron without stem, so one reasoning call runs it through.
+ *  @param name name of the benchmark
+ *  @param breed breed of the branch, that runs the graph
+ *  @param opened premises, that are activated in the new branch before the reasoning, like the injected ins
+ */
+class SynthGraph(val name: String, val breed: SpBreed, val opened: Array<out SpiritPremise> = arrayOf())
+
+/**
+ *      Chain of action neurons, each of them runs an act.
+ *  @param length number of the neurons
+ */
+fun actionChain(length: Int): SynthGraph {
+    val peg = add_(SpPegPrem(0))
+    val act = add_(SpA_Cid(0)).load(cmnSt.activate, peg)
+    var next: SpActionNeuron? = null
+    for(i in 0 until length)
+        next = add_(SpActionNeuron(0)).load(acts(act), stem = next)
+
+    return SynthGraph("action chain $length", breed_(next))
+}
+
+/**
+ *      Chain of wide "and" neurons, all of them on the same premises. All premises are opened, so the whole chain is
+ *  passed.
+ *  @param width number of the premises
+ *  @param depth number of the neurons
+ */
+fun andValves(width: Int, depth: Int): SynthGraph {
+    val pegs = Array(width) { add_(SpPegPrem(0)) }
+    var next: SpAndNeuron? = null
+    for(i in 0 until depth) {
+        val valve = add_(SpAndNeuron(0))
+        valve.loadPrems(*pegs)
+        valve.addEff(Float.POSITIVE_INFINITY, stem = next)
+        next = valve
+    }
+
+    return SynthGraph("and valves $width x $depth", breed_(next), pegs)
+}
+
+/**
+ *      Chain of "pick" neurons, all of them on the same premises. Only the last premise is opened, so every neuron looks
+ *  through all of them before it steps down the ladder.
+ *  @param width number of the premises
+ *  @param depth number of the neurons
+ */
+fun pickLadder(width: Int, depth: Int): SynthGraph {
+    val pegs = Array(width) { add_(SpPegPrem(0)) }
+    var next: SpPickNeuron? = null
+    for(i in 0 until depth) {
+        val rung = add_(SpPickNeuron(0))
+        for(peg in pegs)
+            rung.add(peg, stem = if(peg === pegs.last()) next else null)
+        next = rung
+    }
+
+    return SynthGraph("pick ladder $width x $depth", breed_(next), arrayOf(pegs.last()))
+}
+
+/**
+ *      Seed, that spawns a number of brans of pure breeds. Every child activates its out and finishes, so the parent gets
+ *  the outs in the same reasoning call.
+ *  @param fanOut number of the children
+ */
+fun spawnTree(fanOut: Int): SynthGraph {
+    val finish = add_(SpA(0)).load(cmnSt.requestParentFinishBranch)
+    val children = Array(fanOut) {
+        val out = add_(SpPegPrem(0))
+        val seed = add_(SpSeed(0))
+        seed.load(acts(add_(SpA_Cid(0)).load(cmnSt.activate, out), finish))
+        add_(SpBreed(0)).load(seed, outs = outs(out), pure = true)
+    }
+    val seed = add_(SpSeed(0))
+    seed.load(brans = brans(*children))
+
+    return SynthGraph("spawn tree $fanOut", add_(SpBreed(0)).load(seed))
+}
+
+//###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+//
+//                               Private
+//
+//###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+
+//---%%%---%%%---%%%---%%%--- private funcs ---%%%---%%%---%%%---%%%---%%%---%%%
+
+/**
+ *      Put a concept into the spirit map with a generated cid.
+ *  @param cpt the concept with cid 0
+ *  @return the concept
+ */
+private fun <T: SpiritDynamicConcept> add_(cpt: T): T {
+    _sm_.add(cpt)
+    return cpt
+}
+
+/**
+ *      Breed with a seed, that steps to the head of the graph.
+ *  @param head the first neuron of the graph
+ */
+private fun breed_(head: SpiritNeuron?): SpBreed {
+    val seed = add_(SpSeed(0))
+    seed.load(stem = head)
+
+    return add_(SpBreed(0)).load(seed)
+}
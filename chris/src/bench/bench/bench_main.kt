@@ -0,0 +1,47 @@
+package bench
+
+import basemain.CONFIG_FILE_PROPERTY
+import basemain.logit
+import stat.loadStaticConcepts
+
+/** Config of the benchmarks: no database, the spirit map lives only in memory. */
+const val BENCH_CONFIG_FILE = "src/bench/bench_config.yaml"
+
+/**
+ *      Benchmarks of the branch reasoning on synthetic graphs. Run from the chris directory, the config can be overridden
+ *  with -Dchris.config=<path>. The graphs are built in memory, so neither the database nor the console are needed.
+ *
+ *  For every graph it reports reasoning steps per second, latency of spawning a branch and allocation per operation.
+ *  Then the weighted sum of the weight neuron is timed against the boxed way of the legacy neuron.
+ *
+ *  Not measured: the pods are never started, so "spawn ns/op" is only the construction of a branch in the caller's
+ *  thread. The way of a spawn request through the pod pool, the prefetcher and the pod's queue is not covered, since a
+ *  branch spawned so reports its creation and termination to a parent branch, and the benchmarks have no parent to take
+ *  the reports. The latency of that way has to be looked at on a running system.
+ */
+fun main() {
+    if(System.getProperty(CONFIG_FILE_PROPERTY) == null)
+        System.setProperty(CONFIG_FILE_PROPERTY, BENCH_CONFIG_FILE)
+
+    // Build the graphs
+    loadStaticConcepts()
+    val graphs = listOf(
+        actionChain(10),
+        actionChain(100),
+        andValves(8, 10),
+        andValves(64, 10),
+        pickLadder(8, 10),
+        pickLadder(64, 10),
+        spawnTree(4),
+        spawnTree(16)
+    )
+
+    // Run
+    val runner = BenchRunner()
+    logit(BenchResult.HEADER)
+    for(graph in graphs)
+        logit(runner.run(graph).toString())
+
+    // The neuron's weighted sum on its own
+    logit(weightedSumAgainstBoxed())
+}
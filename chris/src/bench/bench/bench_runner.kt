@@ -0,0 +1,126 @@
+package bench
+
+import atn.Brad
+import atn.Branch
+import atn.Pod
+import cpt.ActivationIfc
+import java.lang.management.ManagementFactory
+
+/**
+ *      Measurements of a benchmark over all measured iterations.
+ *  @param name name of the benchmark
+ *  @param ops number of operations. An operation is spawning a branch of the graph's breed and one call of its reasoning.
+ *  @param steps number of the reasoning steps of the spawned brans (the detached children are not counted)
+ *  @param spawnNanos time of creating the brans in the caller's thread and opening their premises
+ *  @param reasoningNanos time of the reasoning calls
+ *  @param allocated bytes allocated by the benchmark thread
+ */
+class BenchResult(val name: String, val ops: Long, val steps: Long, val spawnNanos: Long, val reasoningNanos: Long,
+                  val allocated: Long)
+{
+    override fun toString(): String {
+        return "%-28s %14.0f %12.0f %14.0f %12d".format(name, steps*1e9/reasoningNanos, spawnNanos.toDouble()/ops,
+            reasoningNanos.toDouble()/ops, if(allocated < 0) -1 else allocated/ops)
+    }
+
+    companion object {
+        /** Header line for the toString() lines. */
+        val HEADER = "%-28s %14s %12s %14s %12s".format("benchmark", "steps/s", "spawn ns/op", "reasoning ns/op",
+            "bytes/op")
+    }
+}
+
+/**
+ *      Runner of the benchmarks in the manner of JMH. The warm-up iterations are run and thrown away, so that the JIT
+ *  has compiled the reasoning, then the measured iterations are summed up.
+ *
+ *  The brans are created and run in the caller's thread on a pod, that is never started, so neither the pod pool nor
+ *  the console are involved, and the spawn latency does not include the way through the pod pool (see main()). Allocation is taken from the thread's counter, so the ForkJoin workers of a parallel
+ *  fan-out are not counted.
+ *  @param warmups number of the warm-up iterations
+ *  @param iterations number of the measured iterations
+ *  @param opsPerIteration number of operations in an iteration
+ */
+class BenchRunner(val warmups: Int = 5, val iterations: Int = 10, val opsPerIteration: Int = 10_000) {
+
+    /**
+     *      Run a benchmark.
+     *  @param graph the graph to run
+     *  @return the measurements
+     */
+    fun run(graph: SynthGraph): BenchResult {
+        repeat(warmups) { iteration_(graph) }
+
+        var steps = 0L
+        var spawnNanos = 0L
+        var reasoningNanos = 0L
+        val allocatedBefore = allocated_()
+        repeat(iterations) {
+            iteration_(graph)
+            steps += steps_
+            spawnNanos += spawnNanos_
+            reasoningNanos += reasoningNanos_
+        }
+        val allocatedAfter = allocated_()
+
+        return BenchResult(graph.name, iterations.toLong()*opsPerIteration, steps, spawnNanos, reasoningNanos,
+            if(allocatedBefore < 0) -1 else allocatedAfter - allocatedBefore)
+    }
+
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+    //
+    //                               Private
+    //
+    //###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%###%%%
+
+    //---%%%---%%%---%%%---%%%--- private data ---%%%---%%%---%%%---%%%---%%%---%%%
+
+    /** Address of the benchmarked brans. The pod is only a holder of the metrics, its thread is not started. */
+    private val brad_ = Brad(Pod("bench_pod", 0), 0)
+
+    /** Counters of the last iteration. */
+    private var steps_ = 0L
+    private var spawnNanos_ = 0L
+    private var reasoningNanos_ = 0L
+
+    /** Sink for the brans, so that the JIT could not throw away their creation. */
+    private var sink_ = 0
+
+    //---%%%---%%%---%%%---%%%--- private funcs ---%%%---%%%---%%%---%%%---%%%---%%%
+
+    /**
+     *      Run an iteration.
+     *  @param graph the graph to run
+     */
+    private fun iteration_(graph: SynthGraph) {
+        steps_ = 0
+        spawnNanos_ = 0
+        reasoningNanos_ = 0
+        for(i in 0 until opsPerIteration) {
+            val spawnStart = System.nanoTime()
+            val br = Branch(graph.breed.cid, brad_, null)
+            for(prem in graph.opened)
+                (br[prem.cid] as ActivationIfc).activate()
+            val reasoningStart = System.nanoTime()
+            br.reasoning()
+            val end = System.nanoTime()
+
+            spawnNanos_ += reasoningStart - spawnStart
+            reasoningNanos_ += end - reasoningStart
+            steps_ += br.flightRecorder.totalSteps
+            sink_ += br.activations.size
+            br.close()
+        }
+    }
+
+    /**
+     *      Bytes allocated by the current thread so far.
+     *  @return the bytes or -1 if the JVM does not count them
+     */
+    private fun allocated_(): Long {
+        val mxBean = ManagementFactory.getThreadMXBean() as? com.sun.management.ThreadMXBean?: return -1
+        if(!mxBean.isThreadAllocatedMemorySupported || !mxBean.isThreadAllocatedMemoryEnabled) return -1
+
+        return mxBean.getThreadAllocatedBytes(Thread.currentThread().id)
+    }
+}
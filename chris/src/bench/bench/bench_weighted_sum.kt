@@ -0,0 +1,39 @@
+package bench
+
+import basemain.esquash
+import basemain.weightedSum
+import kotlin.random.Random
+
+/**
+ *      Weighted sum over primitive arrays against the boxed list of (cid, weight) pairs and a map of activations, like the
+ *  legacy WeighedSum_nrn worked. The warm-up rounds are run and thrown away, then each way is measured.
+ *  @param n number of premises
+ *  @param rounds number of evaluations in the warm-up and in each measurement
+ *  @return the report line with the time per neuron evaluation
+ */
+fun weightedSumAgainstBoxed(n: Int = 500, rounds: Int = 20_000): String {
+    val rnd = Random(2)
+    val weights = FloatArray(n) { rnd.nextFloat() }
+    val activations = FloatArray(n) { if(rnd.nextBoolean()) 1f else -1f }
+    val lots = List(n) { Pair(it, weights[it]) }                     // boxed cid and weight
+    val actMap = HashMap<Int, Float>().also { for(i in 0 until n) it[i] = activations[i] }
+
+    fun boxed(): Float {
+        var s: Double = 0.0
+        for(lot in lots) s += lot.second*actMap[lot.first]!!
+        return esquash(s.toFloat())
+    }
+    fun primitive() = esquash(weightedSum(weights, activations, n, 0f))
+
+    // Warm up, then measure
+    var sink = 0f
+    for(i in 0 until rounds) { sink += boxed(); sink += primitive() }
+    var t = System.nanoTime()
+    for(i in 0 until rounds) sink += boxed()
+    val boxedNs = (System.nanoTime() - t)/rounds
+    t = System.nanoTime()
+    for(i in 0 until rounds) sink += primitive()
+    val primitiveNs = (System.nanoTime() - t)/rounds
+
+    return "weighted sum of $n premises: boxed $boxedNs ns, primitive $primitiveNs ns per evaluation (sink $sink)"
+}
@@ -1,5 +1,7 @@
 
 import basemain.GDEBUG_LV
+import basemain.logit
+import chribase_thread.TerminationRequestMsg
 import cpt.logSomeFreeClids
 import crank.actualizeCrankedConceptsInDb
 import crank.loadAndCrankDynamicConcepts
@@ -35,10 +37,18 @@ fun main(args: Array<String>) {
         loadNameMap(_nm_)
     }
 
+    // May be load the concepts from the DB in bulk, so that the pods would not fault them in one by one
+    if(_conf_.warmUp) SpiritWarmUp(_sm_).run()
+
+    if(GDEBUG_LV >= 0) _logger_.start()
+
     logSomeFreeClids()
     logSomeFreeStaticCids()
     logSomeFreeDynamicCids()
 
+    _lw_.start()
+    _vc_.start()
+    _pf_.start()
     _pp_.start()
     _pp_.startPods()
     _atnDispatcher_.start()
@@ -48,5 +58,12 @@ fun main(args: Array<String>) {
     _pp_.join()
     _atnDispatcher_.join()
     _console_.join()
+    _lw_.putInQueue(TerminationRequestMsg())       // the pods are finished, nothing will be learned anymore
+    _lw_.join()
+    _vc_.putInQueue(TerminationRequestMsg())       // the branches are finished, no version is pinned anymore
+    _vc_.join()
+    logit(_sm_.cacheReport())
+    logit(_sm_.snapshotReport())
+    if(GDEBUG_LV >= 0) _logger_.terminate()
     _dm_.close()
 }
\ No newline at end of file
@@ -48,8 +48,8 @@ fun actualizeCrankedConceptsInDb(sm: SpiritMap){
 
     var inserted = 0
     var updated = 0
-    for((cid, cpt) in sm.map) {
-        assert(cid == cpt.cid) { "Cid $cid is not equal to _sm_[cid].cid"}
+    sm.forEach { cid, ver, cpt ->
+        assert(cid == cpt.cid && ver == cpt.ver) { "Cid $cid($ver) is not equal to _sm_[cid].cid(ver)"}
 
         // Make sure all dynamic concept in the spirit map are present in the database and equal.
         if( cpt is SpiritDynamicConcept) {
@@ -31,6 +31,13 @@ object requestParentFinishBranch: F(34_395) {
             else
                 null
 
+        if      // is it a detached branch of a parallel fan-out?
+                (br.detached)
+        {   //yes: the parent waits for it and takes the outs itself
+            br.finishDetached(outCpts)
+            return
+        }
+
         val parentBrad = br.parentBrad
         assert(parentBrad != null) {"Ordinary branch ${br.branchName()} must have not null parent."}
         parentBrad!!.pod.putInQueue(ChildReportsParentItsTerminationIbr(parentBrad.brid, outCpts, br.ownBrad, br.breedCid))
@@ -118,6 +125,8 @@ object anactivate: FCid(53_479) {
  *      Activate concept in another branch.
  */
 object activateRemotely: F2Cid(75_671) {
+    override val messaging = true
+
     /**
      *  @param br current branch
      *  @param destBradPrem Cid of the Brad or Breed premise for the destination branch
@@ -133,6 +142,8 @@ object activateRemotely: F2Cid(75_671) {
  *      Anactivate concept in another branch.
  */
 object anactivateRemotely: F2Cid(59_771) {
+    override val messaging = true
+
     /**
      *  @param br current branch
      *  @param destBradPrem Cid of the Brad or Breed premise for the destination branch
@@ -162,6 +173,8 @@ object copyPremise: F2Cid(43_137) {
  *      Clone live concept and pass to given branch.
  */
 object transportSingleConcept: F2Cid(72_493) {
+    override val messaging = true
+
     /**
      *  @param br current branch
      *  @param whereTo Cid of the destination branch brad premise
@@ -169,7 +182,7 @@ object transportSingleConcept: F2Cid(72_493) {
      */
     override fun func(br: Branch, whereTo: Cid, load: Cid) {
         val destBrad = (br[whereTo] as BradPrem).brad as Brad
-        destBrad.pod.putInQueue(TransportSingleConceptIbr(destBrad.brid, br[load].clone() as DynamicConcept))
+        destBrad.pod.putInQueue(TransportSingleConceptIbr(destBrad.brid, br[load].clone()))
     }
 }
 
@@ -21,6 +21,8 @@ object mnSt: StatModule() {
  *      Send branch address to the user.
  */
 object branchSendsUserItsBrad: FCid(19_223) {
+    override val messaging = true
+
     /**
      *  @param br current branch
      *  @param userThread_premCid Cid of the premise, containing the user thread object reference.
@@ -36,6 +38,8 @@ object branchSendsUserItsBrad: FCid(19_223) {
  *      Send line of text to user.
  */
 object circleTellsUser: F2Cid(93_270) {
+    override val messaging = true
+
     /**
      *  @param br current branch
      *  @param userThread_premCid Cid of the premise, containing the user thread object reference.
@@ -50,6 +54,8 @@ object circleTellsUser: F2Cid(93_270) {
 }
 
 object circlePromtsUser: FCid(27_383) {
+    override val messaging = true
+
     override fun func(br: Branch,  userThread_premCid: Cid) {
         val userThread = (br[userThread_premCid] as CuteThreadPrem).thread as CuteThread
         userThread.putInQueue(CirclePromptsUserMsg())
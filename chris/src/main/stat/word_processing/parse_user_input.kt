@@ -48,7 +48,7 @@ object adoptNewWordForms: F2Cid(61_969) {
         for(w in chain.queue)
             if(w !in map) {
                 val newSpStringPrim = SpStringPrim(0)
-                _sm_.add(newSpStringPrim)
+                _sm_.add(newSpStringPrim, pinned = false)     // the word forms are many, let the cache hold them
                 val cid = newSpStringPrim.cid
                 (br[cid] as StringPrim).set(w)
                 map[w] = cid